@@ -0,0 +1,47 @@
+package edu.unc.genomics;
+
+/**
+ * Accumulates reads (or any interval data) into the values for one chunk of a
+ * chromosome. ReadMapperTool creates one accumulator per chunk and feeds it
+ * every read that may contribute to the chunk, either from an indexed query or
+ * from a single sequential pass over sorted input.
+ *
+ * @author timpalpant
+ *
+ */
+public abstract class ChunkAccumulator {
+
+  protected final Interval chunk;
+
+  /**
+   * @param chunk
+   *          the interval that this accumulator computes values for
+   */
+  public ChunkAccumulator(Interval chunk) {
+    this.chunk = chunk;
+  }
+
+  /**
+   * @return the interval that this accumulator computes values for
+   */
+  public Interval getChunk() {
+    return chunk;
+  }
+
+  /**
+   * Map a read onto this chunk. Reads may lie partially or entirely outside of
+   * the chunk, and should only contribute to the bases that they affect.
+   *
+   * @param read
+   *          the read to add
+   */
+  public abstract void add(Interval read);
+
+  /**
+   * Get the final values for this chunk once all reads have been added
+   *
+   * @return one value for every base pair in the chunk
+   */
+  public abstract float[] getValues();
+
+}
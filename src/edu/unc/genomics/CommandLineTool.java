@@ -38,18 +38,7 @@ public abstract class CommandLineTool {
    * @param args
    */
   public void instanceMain(String[] args) throws CommandLineToolException {
-    // Initialize the command-line options parser
-    JCommander jc = new JCommander(this);
-
-    // Add factories for parsing Paths, Assemblies, IntervalFiles, and WigFiles
-    jc.addConverterFactory(new PathFactory());
-    jc.addConverterFactory(new AssemblyFactory());
-
-    // Set the program name to be the class name
-    String[] nameParts = getClass().getName().split("\\.");
-    String shortName = StringUtils.join(Arrays.copyOfRange(nameParts, nameParts.length - 2, nameParts.length), '.');
-    jc.setProgramName(shortName);
-
+    JCommander jc = newParser();
     try {
       jc.parse(args);
     } catch (ParameterException e) {
@@ -68,4 +57,25 @@ public abstract class CommandLineTool {
       SAMFileReader.setDefaultValidationStringency(stringency);
     }
   }
+
+  /**
+   * Create a command-line options parser for this tool
+   * 
+   * @return a parser that sets the parameters of this tool
+   */
+  public JCommander newParser() {
+    // Initialize the command-line options parser
+    JCommander jc = new JCommander(this);
+
+    // Add factories for parsing Paths, Assemblies, IntervalFiles, and WigFiles
+    jc.addConverterFactory(new PathFactory());
+    jc.addConverterFactory(new AssemblyFactory());
+
+    // Set the program name to be the class name
+    String[] nameParts = getClass().getName().split("\\.");
+    String shortName = StringUtils.join(Arrays.copyOfRange(nameParts, nameParts.length - 2, nameParts.length), '.');
+    jc.setProgramName(shortName);
+
+    return jc;
+  }
 }
@@ -0,0 +1,227 @@
+package edu.unc.genomics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.unc.genomics.io.IntervalFileReader;
+
+/**
+ * A set of genomic regions to exclude (such as a blacklist), held in memory as
+ * a sorted array of merged, non-overlapping intervals for each chromosome.
+ * Data for a chunk is masked in place by binary searching for the first
+ * excluded interval that reaches the chunk and walking forward, so masking
+ * costs O(log n + k) per chunk for k intervals overlapping it.
+ *
+ * @author timpalpant
+ *
+ */
+public class IntervalMask {
+
+  private final Map<String, Regions> regions = new HashMap<>();
+
+  /**
+   * Load all of the intervals in a file into a mask
+   *
+   * @param p
+   *          an interval file (Bed, BedGraph, GFF, BAM, etc.)
+   * @return a mask excluding all of the intervals in p
+   * @throws IOException
+   */
+  public static IntervalMask load(Path p) throws IOException {
+    IntervalMask mask = new IntervalMask();
+    mask.addAll(p);
+    return mask;
+  }
+
+  private static class Regions {
+    int[] lows = new int[16];
+    int[] highs = new int[16];
+    int n = 0;
+    boolean merged = true;
+
+    void add(int low, int high) {
+      if (n == lows.length) {
+        lows = Arrays.copyOf(lows, 2 * n);
+        highs = Arrays.copyOf(highs, 2 * n);
+      }
+      // Sorted, disjoint intervals are already merged
+      if (n > 0 && (low < lows[n - 1] || low <= highs[n - 1] + 1)) {
+        merged = false;
+      }
+      lows[n] = low;
+      highs[n] = high;
+      n++;
+    }
+
+    /**
+     * Sort the intervals and merge any that overlap or abut
+     */
+    void merge() {
+      if (!merged) {
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; i++) {
+          sorted[i] = ((long) lows[i] << 32) | (highs[i] & 0xffffffffL);
+        }
+        Arrays.sort(sorted);
+        for (int i = 0; i < n; i++) {
+          lows[i] = (int) (sorted[i] >> 32);
+          highs[i] = (int) sorted[i];
+        }
+      }
+
+      int m = 0;
+      for (int i = 0; i < n; i++) {
+        if (m > 0 && lows[i] <= highs[m - 1] + 1) {
+          highs[m - 1] = Math.max(highs[m - 1], highs[i]);
+        } else {
+          lows[m] = lows[i];
+          highs[m] = highs[i];
+          m++;
+        }
+      }
+      n = m;
+      merged = true;
+    }
+
+    /**
+     * @return the index of the first interval with high >= bp
+     */
+    int search(int bp) {
+      int lo = 0;
+      int hi = n;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (highs[mid] < bp) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+  }
+
+  /**
+   * Add an interval to the mask
+   */
+  public synchronized void add(Interval interval) {
+    Regions chrRegions = regions.get(interval.getChr());
+    if (chrRegions == null) {
+      chrRegions = new Regions();
+      regions.put(interval.getChr(), chrRegions);
+    }
+    chrRegions.add(interval.low(), interval.high());
+  }
+
+  /**
+   * Add all of the intervals in a file to the mask
+   *
+   * @param p
+   *          an interval file (Bed, BedGraph, GFF, BAM, etc.)
+   * @throws IOException
+   */
+  public void addAll(Path p) throws IOException {
+    try (IntervalFileReader<? extends Interval> reader = IntervalFileReader.autodetect(p)) {
+      for (Interval interval : reader) {
+        add(interval);
+      }
+    }
+  }
+
+  private synchronized Regions get(String chr) {
+    Regions chrRegions = regions.get(chr);
+    if (chrRegions != null && !chrRegions.merged) {
+      chrRegions.merge();
+    }
+    return chrRegions;
+  }
+
+  /**
+   * @return the number of merged intervals in the mask
+   */
+  public synchronized int size() {
+    int size = 0;
+    for (String chr : regions.keySet()) {
+      size += get(chr).n;
+    }
+    return size;
+  }
+
+  /**
+   * @return true if any part of the given region is masked
+   */
+  public boolean overlaps(String chr, int low, int high) {
+    Regions chrRegions = get(chr);
+    if (chrRegions == null) {
+      return false;
+    }
+    int i = chrRegions.search(low);
+    return i < chrRegions.n && chrRegions.lows[i] <= high;
+  }
+
+  /**
+   * Set the values for masked base pairs to NaN, in place
+   *
+   * @param chunk
+   *          the region that values holds data for
+   * @param values
+   *          one value for each base pair in chunk
+   */
+  public void apply(Interval chunk, float[] values) {
+    apply(chunk, values, 1);
+  }
+
+  /**
+   * Set the values that overlap masked base pairs to NaN, in place
+   *
+   * @param chunk
+   *          the region that values holds data for
+   * @param values
+   *          one value for every step base pairs in chunk
+   * @param step
+   *          the number of base pairs covered by each value
+   */
+  public void apply(Interval chunk, float[] values, int step) {
+    Regions chrRegions = get(chunk.getChr());
+    if (chrRegions == null) {
+      return;
+    }
+
+    int low = chunk.low();
+    int high = chunk.high();
+    for (int i = chrRegions.search(low); i < chrRegions.n && chrRegions.lows[i] <= high; i++) {
+      int from = (Math.max(chrRegions.lows[i], low) - low) / step;
+      int to = Math.min((Math.min(chrRegions.highs[i], high) - low) / step, values.length - 1);
+      Arrays.fill(values, from, to + 1, Float.NaN);
+    }
+  }
+
+  /**
+   * @return the parts of chunk that are not masked, in order
+   */
+  public List<Interval> unmasked(Interval chunk) {
+    List<Interval> runs = new ArrayList<>();
+    Regions chrRegions = get(chunk.getChr());
+    int low = chunk.low();
+    int high = chunk.high();
+    int start = low;
+    if (chrRegions != null) {
+      for (int i = chrRegions.search(low); i < chrRegions.n && chrRegions.lows[i] <= high; i++) {
+        if (chrRegions.lows[i] > start) {
+          runs.add(new Interval(chunk.getChr(), start, chrRegions.lows[i] - 1));
+        }
+        start = chrRegions.highs[i] + 1;
+      }
+    }
+    if (start <= high) {
+      runs.add(new Interval(chunk.getChr(), start, high));
+    }
+    return runs;
+  }
+
+}
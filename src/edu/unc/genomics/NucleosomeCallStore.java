@@ -0,0 +1,466 @@
+package edu.unc.genomics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import edu.unc.genomics.io.IntervalFileFormatException;
+import edu.unc.genomics.io.IntervalFileReader;
+
+/**
+ * A compact, columnar binary file of nucleosome calls
+ *
+ * The calls for each chromosome are stored sorted by dyad as parallel int and
+ * double columns (start, stop, length, lengthStdev, dyad, dyadStdev,
+ * conditionalPosition, dyadMean, occupancy), taking 52 bytes per call. Files
+ * are memory-mapped when opened, so only the pages that are used are read and
+ * calls are not materialized until they are requested. Interval queries binary
+ * search the dyad column, which is the index, widened by the largest distance
+ * from a dyad to the end of its call. All fields are stored at full precision.
+ *
+ * A store can be used anywhere that an IntervalFileReader of nucleosome calls
+ * is expected, and is thread-safe. Use write() or the NucleosomeCallsToBinary
+ * tool to create one.
+ *
+ * @author timpalpant
+ *
+ */
+public class NucleosomeCallStore extends IntervalFileReader<NucleosomeCall> {
+
+  /** "NUCS" */
+  public static final int MAGIC = 0x4E554353;
+  public static final int VERSION = 2;
+  /**
+   * The size (bytes) of each column's values, in file order
+   */
+  private static final int[] COLUMN_BYTES = { 4, 4, 4, 8, 4, 8, 8, 4, 8 };
+  private static final int RECORD_BYTES = 52;
+
+  private final FileChannel channel;
+  private final Map<String, Calls> chromosomes = new LinkedHashMap<>();
+
+  public NucleosomeCallStore(Path p) throws IOException {
+    super(p);
+    channel = FileChannel.open(p, StandardOpenOption.READ);
+    try {
+      DataInputStream header = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+      if (header.readInt() != MAGIC) {
+        throw new IntervalFileFormatException("Not a binary nucleosome calls file: " + p);
+      }
+      int version = header.readInt();
+      if (version != VERSION) {
+        throw new IntervalFileFormatException("Unsupported binary nucleosome calls version: " + version);
+      }
+      int nChr = header.readInt();
+      for (int i = 0; i < nChr; i++) {
+        String chr = header.readUTF();
+        int n = header.readInt();
+        int maxReach = header.readInt();
+        long offset = header.readLong();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) RECORD_BYTES * n);
+        chromosomes.put(chr, new Calls(chr, n, maxReach, buffer));
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return true if p is a binary nucleosome calls file
+   */
+  public static boolean isStore(Path p) throws IOException {
+    try (InputStream is = Files.newInputStream(p)) {
+      byte[] magic = new byte[4];
+      int n = 0;
+      int read;
+      while (n < magic.length && (read = is.read(magic, n, magic.length - n)) > 0) {
+        n += read;
+      }
+      return n == magic.length && ByteBuffer.wrap(magic).getInt() == MAGIC;
+    }
+  }
+
+  /**
+   * The calls on one chromosome, sorted by dyad
+   */
+  public static class Calls {
+    private final String chr;
+    private final int n;
+    private final int maxReach;
+    private final IntBuffer start, stop, length, dyad, dyadMean;
+    private final DoubleBuffer lengthStdev, dyadStdev, conditionalPosition, occupancy;
+
+    private Calls(String chr, int n, int maxReach, ByteBuffer buffer) {
+      this.chr = chr;
+      this.n = n;
+      this.maxReach = maxReach;
+      start = column(buffer, 0).asIntBuffer();
+      stop = column(buffer, 1).asIntBuffer();
+      length = column(buffer, 2).asIntBuffer();
+      lengthStdev = column(buffer, 3).asDoubleBuffer();
+      dyad = column(buffer, 4).asIntBuffer();
+      dyadStdev = column(buffer, 5).asDoubleBuffer();
+      conditionalPosition = column(buffer, 6).asDoubleBuffer();
+      dyadMean = column(buffer, 7).asIntBuffer();
+      occupancy = column(buffer, 8).asDoubleBuffer();
+    }
+
+    private ByteBuffer column(ByteBuffer buffer, int i) {
+      int position = 0;
+      for (int c = 0; c < i; c++) {
+        position += COLUMN_BYTES[c] * n;
+      }
+      ByteBuffer column = buffer.duplicate();
+      column.position(position);
+      column.limit(position + COLUMN_BYTES[i] * n);
+      return column.slice();
+    }
+
+    public String getChr() {
+      return chr;
+    }
+
+    /**
+     * @return the number of calls on this chromosome
+     */
+    public int size() {
+      return n;
+    }
+
+    public int getStart(int i) {
+      return start.get(i);
+    }
+
+    public int getStop(int i) {
+      return stop.get(i);
+    }
+
+    public int getDyad(int i) {
+      return dyad.get(i);
+    }
+
+    public double getOccupancy(int i) {
+      return occupancy.get(i);
+    }
+
+    /**
+     * @return the index of the first call with dyad >= bp (or size() if there
+     *         are none)
+     */
+    public int indexOf(int bp) {
+      int lo = 0;
+      int hi = n;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (dyad.get(mid) < bp) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    /**
+     * @return true if call i overlaps low-high (by at least 1 bp)
+     */
+    public boolean overlaps(int i, int low, int high) {
+      return Math.min(start.get(i), stop.get(i)) <= high && Math.max(start.get(i), stop.get(i)) >= low;
+    }
+
+    /**
+     * @return call i as a NucleosomeCall
+     */
+    public NucleosomeCall get(int i) {
+      NucleosomeCall call = new NucleosomeCall(chr, start.get(i), stop.get(i));
+      call.setLength(length.get(i));
+      call.setLengthStdev(lengthStdev.get(i));
+      call.setDyad(dyad.get(i));
+      call.setDyadStdev(dyadStdev.get(i));
+      call.setConditionalPosition(conditionalPosition.get(i));
+      call.setDyadMean(dyadMean.get(i));
+      call.setOccupancy(occupancy.get(i));
+      return call;
+    }
+  }
+
+  /**
+   * @return the calls for chr, or null if there are none
+   */
+  public Calls getCalls(String chr) {
+    return chromosomes.get(chr);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  @Override
+  public int count() {
+    int count = 0;
+    for (Calls calls : chromosomes.values()) {
+      count += calls.size();
+    }
+    return count;
+  }
+
+  @Override
+  public Set<String> chromosomes() {
+    return Collections.unmodifiableSet(chromosomes.keySet());
+  }
+
+  @Override
+  public Iterator<NucleosomeCall> iterator() {
+    final Iterator<Calls> it = chromosomes.values().iterator();
+    return new Iterator<NucleosomeCall>() {
+      Calls current;
+      int i = 0;
+
+      @Override
+      public boolean hasNext() {
+        while ((current == null || i == current.size()) && it.hasNext()) {
+          current = it.next();
+          i = 0;
+        }
+        return current != null && i < current.size();
+      }
+
+      @Override
+      public NucleosomeCall next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return current.get(i++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * @return the calls that overlap chr:start-stop, in order of their dyads
+   */
+  @Override
+  public Iterator<NucleosomeCall> query(String chr, int start, int stop) {
+    final Calls calls = chromosomes.get(chr);
+    if (calls == null) {
+      return Collections.<NucleosomeCall> emptyList().iterator();
+    }
+
+    final int low = Math.min(start, stop);
+    final int high = Math.max(start, stop);
+    final int from = calls.indexOf((int) Math.max((long) low - calls.maxReach, Integer.MIN_VALUE));
+    final int to = calls.indexOf((int) Math.min((long) high + calls.maxReach + 1, Integer.MAX_VALUE));
+    return new Iterator<NucleosomeCall>() {
+      int i = advance(from);
+
+      private int advance(int j) {
+        while (j < to && !calls.overlaps(j, low, high)) {
+          j++;
+        }
+        return j;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return i < to;
+      }
+
+      @Override
+      public NucleosomeCall next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        NucleosomeCall call = calls.get(i);
+        i = advance(i + 1);
+        return call;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Accumulates the columns for one chromosome while writing
+   */
+  private static class Columns {
+    int n = 0;
+    int[][] ints = new int[5][1024];
+    double[][] doubles = new double[4][1024];
+
+    void add(NucleosomeCall call) {
+      if (n == ints[0].length) {
+        for (int c = 0; c < ints.length; c++) {
+          ints[c] = Arrays.copyOf(ints[c], 2 * n);
+        }
+        for (int c = 0; c < doubles.length; c++) {
+          doubles[c] = Arrays.copyOf(doubles[c], 2 * n);
+        }
+      }
+      ints[0][n] = call.getStart();
+      ints[1][n] = call.getStop();
+      ints[2][n] = call.getLength();
+      ints[3][n] = call.getDyad();
+      ints[4][n] = call.getDyadMean();
+      doubles[0][n] = call.getLengthStdev();
+      doubles[1][n] = call.getDyadStdev();
+      doubles[2][n] = call.getConditionalPosition();
+      doubles[3][n] = call.occupancy();
+      n++;
+    }
+
+    /**
+     * @return the order of the calls sorted by dyad (ties in input order)
+     */
+    int[] order() {
+      long[] keys = new long[n];
+      for (int i = 0; i < n; i++) {
+        keys[i] = ((long) ints[3][i] << 32) | i;
+      }
+      Arrays.sort(keys);
+      int[] order = new int[n];
+      for (int i = 0; i < n; i++) {
+        order[i] = (int) keys[i];
+      }
+      return order;
+    }
+
+    /**
+     * @return the largest distance from a dyad to either end of its call
+     */
+    int maxReach() {
+      int maxReach = 0;
+      for (int i = 0; i < n; i++) {
+        int low = Math.min(ints[0][i], ints[1][i]);
+        int high = Math.max(ints[0][i], ints[1][i]);
+        maxReach = Math.max(maxReach, Math.max(ints[3][i] - low, high - ints[3][i]));
+      }
+      return maxReach;
+    }
+  }
+
+  /**
+   * Write nucleosome calls to a binary file. The calls for all chromosomes are
+   * held in memory (as primitive columns) until they are written.
+   *
+   * @param calls
+   *          the calls to write, in any order
+   * @param p
+   *          the output file
+   * @return the number of calls written
+   * @throws IOException
+   */
+  public static int write(Iterable<NucleosomeCall> calls, Path p) throws IOException {
+    Map<String, Columns> columns = new LinkedHashMap<>();
+    int count = 0;
+    for (NucleosomeCall call : calls) {
+      if (call == null) {
+        continue;
+      }
+      Columns chrColumns = columns.get(call.getChr());
+      if (chrColumns == null) {
+        chrColumns = new Columns();
+        columns.put(call.getChr(), chrColumns);
+      }
+      chrColumns.add(call);
+      count++;
+    }
+
+    // The header has a fixed size, so write it once to find the offset of the
+    // first chromosome
+    List<String> chrs = new ArrayList<>(columns.keySet());
+    long[] offsets = new long[chrs.size()];
+    int[] maxReach = new int[chrs.size()];
+    for (int i = 0; i < chrs.size(); i++) {
+      maxReach[i] = columns.get(chrs.get(i)).maxReach();
+    }
+    long offset = header(chrs, columns, maxReach, offsets).length;
+    for (int i = 0; i < chrs.size(); i++) {
+      offsets[i] = offset;
+      offset += (long) RECORD_BYTES * columns.get(chrs.get(i)).n;
+    }
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(p), 1 << 16))) {
+      out.write(header(chrs, columns, maxReach, offsets));
+      for (String chr : chrs) {
+        Columns chrColumns = columns.get(chr);
+        int[] order = chrColumns.order();
+        // Columns in file order: start, stop, length, lengthStdev, dyad,
+        // dyadStdev, conditionalPosition, dyadMean, occupancy
+        writeColumn(out, chrColumns.ints[0], order);
+        writeColumn(out, chrColumns.ints[1], order);
+        writeColumn(out, chrColumns.ints[2], order);
+        writeColumn(out, chrColumns.doubles[0], order);
+        writeColumn(out, chrColumns.ints[3], order);
+        writeColumn(out, chrColumns.doubles[1], order);
+        writeColumn(out, chrColumns.doubles[2], order);
+        writeColumn(out, chrColumns.ints[4], order);
+        writeColumn(out, chrColumns.doubles[3], order);
+        // Free each chromosome's columns once they have been written
+        columns.put(chr, null);
+      }
+    }
+
+    return count;
+  }
+
+  private static byte[] header(List<String> chrs, Map<String, Columns> columns, int[] maxReach, long[] offsets)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(chrs.size());
+      for (int i = 0; i < chrs.size(); i++) {
+        out.writeUTF(chrs.get(i));
+        out.writeInt(columns.get(chrs.get(i)).n);
+        out.writeInt(maxReach[i]);
+        out.writeLong(offsets[i]);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeColumn(DataOutputStream out, int[] values, int[] order) throws IOException {
+    for (int i : order) {
+      out.writeInt(values[i]);
+    }
+  }
+
+  private static void writeColumn(DataOutputStream out, double[] values, int[] order) throws IOException {
+    for (int i : order) {
+      out.writeDouble(values[i]);
+    }
+  }
+
+}
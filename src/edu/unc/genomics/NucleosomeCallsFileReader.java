@@ -7,6 +7,7 @@ import net.sf.samtools.TabixWriter;
 import net.sf.samtools.TabixWriter.Conf;
 
 import edu.unc.genomics.IntervalFactory;
+import edu.unc.genomics.io.IntervalFileReader;
 import edu.unc.genomics.io.TextIntervalFileReader;
 
 /**
@@ -21,6 +22,22 @@ public class NucleosomeCallsFileReader extends TextIntervalFileReader<Nucleosome
     super(p, new NucleosomeCallFactory());
   }
 
+  /**
+   * Open a nucleosome calls file in either the text or the binary
+   * (NucleosomeCallStore) format
+   * 
+   * @param p
+   *          a nucleosome calls file
+   * @return a reader for the calls in p
+   * @throws IOException
+   */
+  public static IntervalFileReader<NucleosomeCall> autodetect(Path p) throws IOException {
+    if (NucleosomeCallStore.isStore(p)) {
+      return new NucleosomeCallStore(p);
+    }
+    return new NucleosomeCallsFileReader(p);
+  }
+
   public static class NucleosomeCallFactory implements IntervalFactory<NucleosomeCall> {
 
     public static final TabixWriter.Conf NUCLEOSOME_CALL_CONF = new TabixWriter.Conf(0, 1, 2, 3, '#', 0);
@@ -0,0 +1,103 @@
+package edu.unc.genomics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs tasks on a pool of threads and hands their results to handle() in the
+ * order that they were submitted. Tasks may only run ahead of the oldest
+ * unhandled result by a few tasks per thread, so submit() waits on that result
+ * once the window is full, and the number of results held in memory is
+ * bounded.
+ *
+ * If a task fails, its exception is rethrown as a CommandLineToolException when
+ * its result is reached. Closing the executor cancels any tasks that are still
+ * running and waits for them to stop.
+ *
+ * @author timpalpant
+ *
+ */
+public class OrderedExecutor<T> implements Closeable {
+
+  private static final Logger log = Logger.getLogger(OrderedExecutor.class);
+
+  private final ExecutorService pool;
+  private final int window;
+  private final Deque<Future<T>> futures = new ArrayDeque<>();
+
+  /**
+   * @param nThreads
+   *          the number of threads to run tasks on
+   */
+  public OrderedExecutor(int nThreads) {
+    pool = Executors.newFixedThreadPool(nThreads);
+    window = 2 * nThreads;
+  }
+
+  /**
+   * Called on the submitting thread with the result of each task, in order.
+   * Does nothing by default, for tasks that write their own output.
+   *
+   * @param result
+   *          the result of the next task
+   * @throws IOException
+   */
+  protected void handle(T result) throws IOException {
+  }
+
+  /**
+   * Submit a task, first handling the oldest result if the window is full
+   *
+   * @param task
+   *          the task to run
+   * @throws IOException
+   */
+  public void submit(Callable<T> task) throws IOException {
+    if (futures.size() >= window) {
+      handle(next());
+    }
+    futures.add(pool.submit(task));
+  }
+
+  /**
+   * Wait for all of the submitted tasks and handle their results
+   *
+   * @throws IOException
+   */
+  public void finish() throws IOException {
+    while (!futures.isEmpty()) {
+      handle(next());
+    }
+  }
+
+  private T next() {
+    try {
+      return futures.poll().get();
+    } catch (InterruptedException e) {
+      throw new CommandLineToolException(e);
+    } catch (ExecutionException e) {
+      throw new CommandLineToolException("Exception in worker thread", e.getCause());
+    }
+  }
+
+  @Override
+  public void close() {
+    pool.shutdownNow();
+    try {
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      log.warn("Interrupted while waiting for threads to finish");
+    }
+  }
+
+}
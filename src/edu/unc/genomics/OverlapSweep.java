@@ -0,0 +1,98 @@
+package edu.unc.genomics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds all of the overlapping pairs between a set of query intervals (such as
+ * loci) and a set of target intervals (such as nucleosome calls) on one
+ * chromosome with a single sweep. Both sets are visited in order of their low
+ * coordinate, holding only the targets that may still overlap the current
+ * query, so each chromosome costs O(n log n + k) for k overlapping pairs when
+ * queries are not nested deeply.
+ *
+ * @author timpalpant
+ *
+ */
+public class OverlapSweep {
+
+  private static final Comparator<Interval> LOW_COMPARATOR = new Comparator<Interval>() {
+    @Override
+    public int compare(Interval o1, Interval o2) {
+      return Integer.compare(o1.low(), o2.low());
+    }
+  };
+
+  /**
+   * Receives the overlapping pairs of a sweep
+   */
+  public interface Visitor<T extends Interval> {
+    /**
+     * Called for each target overlapping a query. Queries are visited in order
+     * of their low coordinate, and the targets for each query in order of
+     * their low coordinate (ties in both are visited in their original order).
+     *
+     * @param query
+     *          the index of the query in the list of queries
+     * @param target
+     *          a target that overlaps the query (by at least 1 bp)
+     */
+    void visit(int query, T target);
+  }
+
+  /**
+   * Sweep over the queries and targets, which should all be on the same
+   * chromosome
+   *
+   * @param queries
+   *          the query intervals, in any order
+   * @param targets
+   *          the target intervals, which will be sorted in place by low
+   * @param visitor
+   *          receives each overlapping (query, target) pair
+   */
+  public static <T extends Interval> void sweep(List<? extends Interval> queries, List<T> targets,
+      Visitor<? super T> visitor) {
+    // Sort the queries by low, breaking ties by index
+    long[] order = new long[queries.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = ((long) queries.get(i).low() << 32) | i;
+    }
+    Arrays.sort(order);
+    Collections.sort(targets, LOW_COMPARATOR);
+
+    // Indices of the targets that start before the current query ends, in
+    // order
+    int[] active = new int[16];
+    int nActive = 0;
+    int next = 0;
+    for (long key : order) {
+      int i = (int) key;
+      Interval query = queries.get(i);
+      while (next < targets.size() && targets.get(next).low() <= query.high()) {
+        if (nActive == active.length) {
+          active = Arrays.copyOf(active, 2 * nActive);
+        }
+        active[nActive++] = next++;
+      }
+
+      // Drop targets that end before this query (and so before all later
+      // queries), and visit the ones that overlap it
+      int k = 0;
+      for (int j = 0; j < nActive; j++) {
+        T target = targets.get(active[j]);
+        if (target.high() < query.low()) {
+          continue;
+        }
+        active[k++] = active[j];
+        if (target.low() <= query.high()) {
+          visitor.visit(i, target);
+        }
+      }
+      nActive = k;
+    }
+  }
+
+}
@@ -0,0 +1,202 @@
+package edu.unc.genomics;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.BinaryCodec;
+import edu.unc.genomics.io.BAMFileReader;
+import edu.unc.genomics.io.IntervalFileReader;
+import edu.unc.utils.ParallelBlockCompressedInputStream;
+
+/**
+ * A BAM file reader that inflates BGZF blocks on a pool of worker threads when
+ * iterating through the whole file. Records are decoded and returned in file
+ * order on the calling thread. Indexed queries are passed through to a regular
+ * BAMFileReader, since they only touch a few blocks.
+ *
+ * @author timpalpant
+ *
+ */
+public class ParallelBAMFileReader extends IntervalFileReader<SAMEntry> {
+
+  private static final Logger log = Logger.getLogger(ParallelBAMFileReader.class);
+
+  private static final byte[] BAM_MAGIC = { 'B', 'A', 'M', 1 };
+
+  private final BAMFileReader reader;
+  private final int nThreads;
+  private final List<InputStream> openStreams = new ArrayList<>();
+  private SAMFileHeader header;
+
+  /**
+   * @param reader
+   *          the BAM file to read
+   * @param nThreads
+   *          the number of threads to use for inflating BGZF blocks
+   */
+  public ParallelBAMFileReader(BAMFileReader reader, int nThreads) {
+    super(reader.getPath());
+    if (nThreads < 1) {
+      throw new IllegalArgumentException("Must use at least 1 inflater thread");
+    }
+    this.reader = reader;
+    this.nThreads = nThreads;
+  }
+
+  /**
+   * Open an interval file, inflating BAM files with nThreads
+   *
+   * @param p
+   *          the interval file to open
+   * @param nThreads
+   *          the number of threads to use for inflating BAM files, or 0 to
+   *          inflate on the calling thread
+   * @return a reader for p
+   * @throws IOException
+   */
+  public static IntervalFileReader<? extends Interval> autodetect(Path p, int nThreads) throws IOException {
+    IntervalFileReader<? extends Interval> reader = IntervalFileReader.autodetect(p);
+    if (nThreads > 0 && reader instanceof BAMFileReader) {
+      log.debug("Inflating BAM file with " + nThreads + " threads");
+      return new ParallelBAMFileReader((BAMFileReader) reader, nThreads);
+    }
+    return reader;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (openStreams) {
+      for (InputStream stream : openStreams) {
+        stream.close();
+      }
+      openStreams.clear();
+    }
+    reader.close();
+  }
+
+  @Override
+  public int count() {
+    return reader.count();
+  }
+
+  @Override
+  public Set<String> chromosomes() {
+    return reader.chromosomes();
+  }
+
+  @Override
+  public Iterator<SAMEntry> query(String chr, int start, int stop) {
+    return reader.query(chr, start, stop);
+  }
+
+  @Override
+  public Iterator<SAMEntry> iterator() {
+    try {
+      return new SAMEntryStream();
+    } catch (IOException e) {
+      throw new CommandLineToolException("Error opening BAM file " + p, e);
+    }
+  }
+
+  private synchronized SAMFileHeader getHeader() {
+    if (header == null) {
+      SAMFileReader samReader = new SAMFileReader(p.toFile());
+      header = samReader.getFileHeader();
+      samReader.close();
+    }
+    return header;
+  }
+
+  /**
+   * Decodes records in file order from a parallel-inflated stream
+   */
+  private class SAMEntryStream implements Iterator<SAMEntry> {
+
+    private final InputStream stream;
+    private final BAMRecordCodec codec;
+    private SAMRecord next;
+
+    SAMEntryStream() throws IOException {
+      stream = new ParallelBlockCompressedInputStream(new BufferedInputStream(Files.newInputStream(p)), nThreads);
+      synchronized (openStreams) {
+        openStreams.add(stream);
+      }
+
+      // Skip over the binary header
+      BinaryCodec binary = new BinaryCodec(stream);
+      byte[] magic = new byte[BAM_MAGIC.length];
+      binary.readBytes(magic);
+      for (int i = 0; i < magic.length; i++) {
+        if (magic[i] != BAM_MAGIC[i]) {
+          throw new IOException("Invalid BAM file header: " + p);
+        }
+      }
+      binary.readBytes(new byte[binary.readInt()]);
+      int nReferences = binary.readInt();
+      for (int i = 0; i < nReferences; i++) {
+        binary.readBytes(new byte[binary.readInt()]);
+        binary.readInt();
+      }
+
+      codec = new BAMRecordCodec(getHeader());
+      codec.setInputStream(stream);
+      advance();
+    }
+
+    private void advance() {
+      do {
+        next = codec.decode();
+      } while (next != null && next.getReadUnmappedFlag() && !reader.doesAllowUnmappedReads());
+
+      if (next == null) {
+        close();
+      }
+    }
+
+    private void close() {
+      synchronized (openStreams) {
+        openStreams.remove(stream);
+      }
+      try {
+        stream.close();
+      } catch (IOException e) {
+        log.error("Error closing BAM file " + p, e);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public SAMEntry next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      SAMEntry entry = new SAMEntry(next);
+      advance();
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Cannot remove records from BAM file");
+    }
+  }
+
+}
@@ -2,6 +2,16 @@ package edu.unc.genomics;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -10,21 +20,28 @@ import com.beust.jcommander.Parameter;
 import edu.ucsc.genome.TrackHeader;
 import edu.unc.genomics.Contig;
 import edu.unc.genomics.Interval;
+import edu.unc.genomics.io.BAMFileReader;
 import edu.unc.genomics.io.IntervalFileReader;
-import edu.unc.genomics.io.WigFileException;
 import edu.unc.genomics.io.WigFileWriter;
 
 /**
  * Abstract base class for writing programs that take reads and produce counts
  * in Wig files
- * 
+ *
  * ReadMapperTool takes the input reads file, finds the intersecting set of
  * chromosomes with the specified Assembly, and then iterates through the reads
- * in a chunk-by-chunk fashion, calling compute() on each chunk
- * 
- * The compute method must return the counts for that chunk (one value for each
+ * in a chunk-by-chunk fashion, feeding each read to a ChunkAccumulator for
+ * each chunk that it may affect.
+ *
+ * By default, the reads for each chunk are retrieved with an indexed query,
+ * optionally on multiple threads that each have their own reader. In
+ * streaming mode (for coordinate-sorted input), the input file is read once
+ * from start to finish, and each chunk is written as soon as the stream has
+ * passed the last read that can affect it.
+ *
+ * The accumulator must return the counts for that chunk (one value for each
  * base pair) which will then be written into a new output Wig file.
- * 
+ *
  * @author timpalpant
  *
  */
@@ -44,78 +61,593 @@ public abstract class ReadMapperTool extends CommandLineTool {
   public Path outputFile;
   @Parameter(names = { "-b", "--split" }, description = "Write each chromosome into its own output file")
   public boolean split = false;
+  @Parameter(names = { "-t", "--stream" }, description = "Read sorted input in a single pass rather than querying each chunk")
+  public boolean stream = false;
+  @Parameter(names = { "-p", "--threads" }, description = "Number of threads to use for querying and computing chunks")
+  public int nThreads = 1;
+  @Parameter(names = { "-j", "--inflaters" }, description = "Number of threads for inflating BAM input (0 = inflate on the main thread)")
+  public int inflaterThreads = 0;
 
   /**
-   * Do the computation on a chunk and return the results Must return
-   * chunk.length() values (one for every base pair in chunk)
-   * 
+   * Create a new accumulator to map reads onto the values for a chunk
+   *
+   * @param chunk
+   *          the interval to compute values for
+   * @return an accumulator for chunk
+   */
+  public abstract ChunkAccumulator newAccumulator(Interval chunk);
+
+  /**
+   * The maximum distance outside of its own extent at which a read can affect
+   * the output, e.g. if reads are extended or shifted. Reads within this
+   * distance of a chunk are fed to the chunk's accumulator.
+   *
+   * @return the padding (bp)
+   */
+  public int getPadding() {
+    return 0;
+  }
+
+  /**
+   * Do the computation on a chunk and return the results, querying the reads
+   * for the chunk from the reader. Returns chunk.length() values (one for every
+   * base pair in chunk)
+   *
+   * @param reader
+   *          the reads file
    * @param chunk
    *          the interval to process
    * @return the results of the computation for this chunk
    * @throws IOException
-   * @throws WigFileException
    */
-  public abstract float[] compute(IntervalFileReader<? extends Interval> reader, Interval chunk) throws IOException;
+  public float[] compute(IntervalFileReader<? extends Interval> reader, Interval chunk) throws IOException {
+    ChunkAccumulator accumulator = newAccumulator(chunk);
+    accumulate(reader, assembly, chunk, getPadding(), accumulator);
+    return accumulator.getValues();
+  }
+
+  /**
+   * Query the reads that may affect chunk and feed them to accumulators
+   * 
+   * @param reader
+   *          the reads file
+   * @param assembly
+   *          the genome assembly
+   * @param chunk
+   *          the interval to process
+   * @param padding
+   *          the maximum distance outside of its extent that a read can affect
+   * @param accumulators
+   *          the accumulators to add each read to
+   */
+  private static void accumulate(IntervalFileReader<? extends Interval> reader, Assembly assembly, Interval chunk,
+      int padding, ChunkAccumulator... accumulators) {
+    accumulate(reader.query(getPaddedQuery(assembly, chunk, padding)), accumulators);
+  }
+
+  /**
+   * Need to pad the query if reads can affect bases outside their extent
+   */
+  private static Interval getPaddedQuery(Assembly assembly, Interval chunk, int padding) {
+    int paddedStart = chunk.getStart();
+    int paddedStop = chunk.getStop();
+    if (padding > 0) {
+      paddedStart = Math.max(chunk.getStart() - padding, 1);
+      paddedStop = Math.min(chunk.getStop() + padding, assembly.getChrLength(chunk.getChr()));
+    }
+    return new Interval(chunk.getChr(), paddedStart, paddedStop);
+  }
+
+  private static void accumulate(Iterator<? extends Interval> it, ChunkAccumulator... accumulators) {
+    while (it.hasNext()) {
+      Interval read = it.next();
+      for (ChunkAccumulator accumulator : accumulators) {
+        accumulator.add(read);
+      }
+    }
+  }
 
   @Override
   public final void run() throws IOException {
     log.debug("Processing reads and writing result to disk");
-    TrackHeader header = TrackHeader.newWiggle();
-    header.setName("Processed " + intervalFile.getFileName());
-    header.setDescription("Processed " + intervalFile.getFileName());
-    try (IntervalFileReader<? extends Interval> reader = IntervalFileReader.autodetect(intervalFile)) {
-      if (split) {
-        for (String chr : reader.chromosomes()) {
-          // Construct a filename for this chromosome from the given output
-          // filename
-          String outputFileStr = outputFile.getFileName().toString();
-          String base = outputFileStr.substring(0, outputFileStr.lastIndexOf('.'));
-          String ext = outputFileStr.substring(outputFileStr.lastIndexOf('.'));
-          try (WigFileWriter writer = new WigFileWriter(outputFile.resolveSibling(base + "." + chr + ext), header)) {
-            processChromosome(reader, writer, chr);
-          }
-        }
+    try (IntervalFileReader<? extends Interval> reader = ParallelBAMFileReader.autodetect(intervalFile, inflaterThreads)) {
+      mapReads(reader, assembly, chunkSize, stream, nThreads, Collections.singletonList(this));
+    }
+  }
+
+  /**
+   * Map reads with several mappers at once, so that each read is only read and
+   * decoded once. Each mapper writes its own output file(s) according to its
+   * own output options.
+   * 
+   * @param reader
+   *          the reads file
+   * @param assembly
+   *          the genome assembly
+   * @param chunkSize
+   *          the size to chunk each chromosome into (bp)
+   * @param stream
+   *          whether to stream through sorted reads in a single pass rather
+   *          than querying each chunk
+   * @param nThreads
+   *          the number of threads to query and compute chunks with (when not
+   *          streaming)
+   * @param mappers
+   *          the mappers to feed each read to
+   * @throws IOException
+   */
+  public static void mapReads(IntervalFileReader<? extends Interval> reader, Assembly assembly, int chunkSize,
+      boolean stream, int nThreads, List<? extends ReadMapperTool> mappers) throws IOException {
+    if (nThreads < 1) {
+      throw new CommandLineToolException("Must use at least 1 thread");
+    }
+
+    List<MapperOutput> outputs = new ArrayList<>();
+    try {
+      for (ReadMapperTool mapper : mappers) {
+        outputs.add(new MapperOutput(mapper, reader.getPath()));
+      }
+
+      Mapping mapping = new Mapping(reader, assembly, chunkSize, outputs);
+      if (stream) {
+        mapping.stream();
+      } else if (nThreads > 1) {
+        mapping.query(nThreads);
       } else {
-        try (WigFileWriter writer = new WigFileWriter(outputFile, header)) {
-          for (String chr : reader.chromosomes()) {
-            processChromosome(reader, writer, chr);
-          }
+        mapping.query();
+      }
+    } finally {
+      for (MapperOutput output : outputs) {
+        output.close();
+      }
+    }
+  }
+
+  /**
+   * Construct a filename for a chromosome from the given output filename
+   *
+   * @param chr
+   *          the chromosome
+   * @return the output file for chr in --split mode
+   */
+  protected Path getSplitOutputFile(String chr) {
+    String outputFileStr = outputFile.getFileName().toString();
+    String base = outputFileStr.substring(0, outputFileStr.lastIndexOf('.'));
+    String ext = outputFileStr.substring(outputFileStr.lastIndexOf('.'));
+    return outputFile.resolveSibling(base + "." + chr + ext);
+  }
+
+  /**
+   * A chunk of a chromosome, numbered in the order that it should be written
+   */
+  private static class Chunk {
+
+    final Interval interval;
+    /** The position of this chunk amongst all chunks */
+    final int index;
+    /** The position of this chunk within its chromosome */
+    final int chrIndex;
+
+    Chunk(Interval interval, int index, int chrIndex) {
+      this.interval = interval;
+      this.index = index;
+      this.chrIndex = chrIndex;
+    }
+  }
+
+  /**
+   * A Wig file that chunks are written to in order. Chunks may be completed in
+   * any order (by any thread), and are held until all of the preceding chunks
+   * have been written.
+   */
+  private static class OrderedWigWriter {
+
+    final WigFileWriter writer;
+    final boolean fixedStep;
+    final int nChunks;
+    final Map<Integer, Contig> pending = new HashMap<>();
+    int next = 0;
+
+    /**
+     * @param writer
+     *          the Wig file to write to
+     * @param fixedStep
+     *          whether to force fixedStep output
+     * @param nChunks
+     *          the number of chunks that will be written, or -1 if unknown
+     */
+    OrderedWigWriter(WigFileWriter writer, boolean fixedStep, int nChunks) {
+      this.writer = writer;
+      this.fixedStep = fixedStep;
+      this.nChunks = nChunks;
+    }
+
+    /**
+     * Write the chunk with sequence number i, and any following chunks that
+     * were waiting for it
+     *
+     * @return true if all chunks have been written
+     */
+    synchronized boolean write(int i, Contig contig) {
+      pending.put(i, contig);
+      while ((contig = pending.remove(next)) != null) {
+        // Write the count at each base pair to the output file
+        if (fixedStep) {
+          writer.writeFixedStepContig(contig);
+        } else {
+          writer.write(contig);
         }
+        next++;
       }
+      return next == nChunks;
+    }
+
+    void close() throws IOException {
+      writer.close();
     }
   }
 
-  private void processChromosome(IntervalFileReader<? extends Interval> reader, WigFileWriter writer, String chr)
-      throws IOException {
-    if (!assembly.includes(chr)) {
-      log.info("Skipping " + chr + " not in assembly " + assembly);
-      return;
+  /**
+   * The output Wig file(s) for one mapper
+   */
+  private static class MapperOutput {
+
+    final ReadMapperTool mapper;
+    final TrackHeader header;
+    /** The output for all chromosomes, unless split */
+    final OrderedWigWriter all;
+    /** The output for each chromosome in --split mode */
+    final Map<String, OrderedWigWriter> split = new ConcurrentHashMap<>();
+
+    MapperOutput(ReadMapperTool mapper, Path input) throws IOException {
+      this.mapper = mapper;
+      header = TrackHeader.newWiggle();
+      header.setName("Processed " + input.getFileName());
+      header.setDescription("Processed " + input.getFileName());
+      if (mapper.split) {
+        all = null;
+      } else {
+        all = new OrderedWigWriter(new WigFileWriter(mapper.outputFile, header), mapper.fixedStep, -1);
+      }
     }
 
-    log.debug("Processing chromosome " + chr);
-    int chunkStart = 1;
-    while (chunkStart < assembly.getChrLength(chr)) {
-      int chunkStop = Math.min(chunkStart + chunkSize - 1, assembly.getChrLength(chr));
-      Interval chunk = new Interval(chr, chunkStart, chunkStop);
-      log.debug("Processing chunk " + chunk);
-      float[] result = compute(reader, chunk);
-
-      // Verify that the computation returned the correct number of values for
-      // the chunk
-      if (result.length != chunk.length()) {
-        log.error("Expected result length=" + chunk.length() + ", got=" + result.length);
+    /**
+     * Prepare to write a chromosome. Must be called (in order) before any of
+     * its chunks are written.
+     */
+    void startChromosome(String chr, int nChunks) throws IOException {
+      if (mapper.split) {
+        WigFileWriter writer = new WigFileWriter(mapper.getSplitOutputFile(chr), header);
+        if (nChunks == 0) {
+          writer.close();
+        } else {
+          split.put(chr, new OrderedWigWriter(writer, mapper.fixedStep, nChunks));
+        }
+      }
+    }
+
+    /**
+     * Verify that the computation returned the correct number of values for the
+     * chunk and write them to the output file once all preceding chunks have
+     * been written
+     */
+    void write(Chunk chunk, float[] result) throws IOException {
+      if (result.length != chunk.interval.length()) {
+        log.error("Expected result length=" + chunk.interval.length() + ", got=" + result.length);
         throw new CommandLineToolException("Result of mapping computation is not the expected length!");
       }
 
-      // Write the count at each base pair to the output file
-      if (fixedStep) {
-        writer.writeFixedStepContig(new Contig(chunk, result));
+      Contig contig = new Contig(chunk.interval, result);
+      if (mapper.split) {
+        String chr = chunk.interval.getChr();
+        OrderedWigWriter writer = split.get(chr);
+        if (writer.write(chunk.chrIndex, contig)) {
+          split.remove(chr);
+          writer.close();
+        }
       } else {
-        writer.write(new Contig(chunk, result));
+        all.write(chunk.index, contig);
+      }
+    }
+
+    void close() throws IOException {
+      if (all != null) {
+        all.close();
+      }
+      for (OrderedWigWriter writer : split.values()) {
+        writer.close();
       }
+      split.clear();
+    }
+  }
 
-      // Process the next chunk
-      chunkStart = chunkStop + 1;
+  /**
+   * Feeds the reads for each chunk to the accumulators of every mapper
+   */
+  private static class Mapping {
+
+    final IntervalFileReader<? extends Interval> reader;
+    final Assembly assembly;
+    final int chunkSize;
+    final List<MapperOutput> outputs;
+    final int padding;
+    int nextIndex = 0;
+
+    Mapping(IntervalFileReader<? extends Interval> reader, Assembly assembly, int chunkSize,
+        List<MapperOutput> outputs) {
+      this.reader = reader;
+      this.assembly = assembly;
+      this.chunkSize = chunkSize;
+      this.outputs = outputs;
+      int maxPadding = 0;
+      for (MapperOutput output : outputs) {
+        maxPadding = Math.max(maxPadding, output.mapper.getPadding());
+      }
+      padding = maxPadding;
+    }
+
+    /**
+     * @return the number of chunks that chr is processed in
+     */
+    int getNumChunks(String chr) {
+      int chrLength = assembly.getChrLength(chr);
+      return (chrLength > 1) ? (chrLength - 2) / chunkSize + 1 : 0;
+    }
+
+    /**
+     * Get the k-th chunk of a chromosome
+     */
+    Chunk getChunk(String chr, int k) {
+      int chunkStart = 1 + k * chunkSize;
+      int chunkStop = Math.min(chunkStart + chunkSize - 1, assembly.getChrLength(chr));
+      return new Chunk(new Interval(chr, chunkStart, chunkStop), nextIndex++, k);
+    }
+
+    ChunkAccumulator[] newAccumulators(Chunk chunk) {
+      ChunkAccumulator[] accumulators = new ChunkAccumulator[outputs.size()];
+      for (int i = 0; i < accumulators.length; i++) {
+        accumulators[i] = outputs.get(i).mapper.newAccumulator(chunk.interval);
+      }
+      return accumulators;
+    }
+
+    void write(Chunk chunk, ChunkAccumulator[] accumulators) throws IOException {
+      for (int i = 0; i < accumulators.length; i++) {
+        outputs.get(i).write(chunk, accumulators[i].getValues());
+      }
+    }
+
+    /**
+     * @return the chunks of chr, after preparing the outputs for them
+     */
+    List<Chunk> startChromosome(String chr) throws IOException {
+      log.debug("Processing chromosome " + chr);
+      int nChunks = getNumChunks(chr);
+      for (MapperOutput output : outputs) {
+        output.startChromosome(chr, nChunks);
+      }
+
+      List<Chunk> chunks = new ArrayList<>(nChunks);
+      for (int k = 0; k < nChunks; k++) {
+        chunks.add(getChunk(chr, k));
+      }
+      return chunks;
+    }
+
+    /**
+     * @return the chromosomes in the reads file that are in the assembly
+     */
+    List<String> getChromosomes() {
+      List<String> chromosomes = new ArrayList<>();
+      for (String chr : reader.chromosomes()) {
+        if (assembly.includes(chr)) {
+          chromosomes.add(chr);
+        } else {
+          log.info("Skipping " + chr + " not in assembly " + assembly);
+        }
+      }
+      return chromosomes;
+    }
+
+    /**
+     * Query the reads for each chunk from the index
+     */
+    void query() throws IOException {
+      for (String chr : getChromosomes()) {
+        for (Chunk chunk : startChromosome(chr)) {
+          log.debug("Processing chunk " + chunk.interval);
+          ChunkAccumulator[] accumulators = newAccumulators(chunk);
+          accumulate(reader, assembly, chunk.interval, padding, accumulators);
+          write(chunk, accumulators);
+        }
+      }
+    }
+
+    /**
+     * Query and compute chunks on a pool of threads, each with its own reader.
+     * Each chunk is written by the thread that completes it once all preceding
+     * chunks in its output file have been written, so output stays in order
+     * and separate files (--split) are written in parallel.
+     * 
+     * @param nThreads
+     *          the number of threads to use
+     */
+    void query(int nThreads) throws IOException {
+      log.debug("Initializing thread pool with " + nThreads + " threads");
+      // BAM files are queried with a separate reader for each thread. Other
+      // files are indexed when they are first queried, so they are shared and
+      // each query is loaded into memory while holding the reader's lock.
+      final boolean bam = (reader instanceof BAMFileReader || reader instanceof ParallelBAMFileReader);
+      final List<IntervalFileReader<? extends Interval>> readers = Collections
+          .synchronizedList(new ArrayList<IntervalFileReader<? extends Interval>>());
+      final ThreadLocal<IntervalFileReader<? extends Interval>> localReader = new ThreadLocal<IntervalFileReader<? extends Interval>>() {
+        @Override
+        protected IntervalFileReader<? extends Interval> initialValue() {
+          try {
+            IntervalFileReader<? extends Interval> r = IntervalFileReader.autodetect(reader.getPath());
+            readers.add(r);
+            return r;
+          } catch (IOException e) {
+            throw new CommandLineToolException("Error opening reads file " + reader.getPath(), e);
+          }
+        }
+      };
+
+      // Limit the number of chunks that are held in memory waiting to be
+      // written by only running ahead of the oldest unfinished chunk by
+      // a few chunks per thread
+      try (OrderedExecutor<Void> executor = new OrderedExecutor<>(nThreads)) {
+        for (String chr : getChromosomes()) {
+          for (final Chunk chunk : startChromosome(chr)) {
+            executor.submit(new Callable<Void>() {
+              @Override
+              public Void call() throws IOException {
+                log.debug("Processing chunk " + chunk.interval);
+                ChunkAccumulator[] accumulators = newAccumulators(chunk);
+                Interval query = getPaddedQuery(assembly, chunk.interval, padding);
+                if (bam) {
+                  accumulate(localReader.get().query(query), accumulators);
+                } else {
+                  accumulate(reader.load(query).iterator(), accumulators);
+                }
+                write(chunk, accumulators);
+                return null;
+              }
+            });
+          }
+        }
+        executor.finish();
+      } finally {
+        for (IntervalFileReader<? extends Interval> r : readers) {
+          r.close();
+        }
+      }
+    }
+
+    /**
+     * Make a single pass through sorted input, routing each read to the open
+     * chunks that it may affect and writing chunks once the stream has passed
+     * them
+     */
+    void stream() throws IOException {
+      log.debug("Streaming through sorted reads");
+      Set<String> seen = new HashSet<>();
+      ChromosomeStream current = null;
+      String currentChr = null;
+      for (Interval read : reader) {
+        if (!read.getChr().equals(currentChr)) {
+          if (current != null) {
+            current.finish();
+          }
+
+          currentChr = read.getChr();
+          if (!seen.add(currentChr)) {
+            throw new CommandLineToolException("Input file is not sorted (reads for " + currentChr
+                + " are not contiguous). Run without --stream.");
+          }
+
+          current = null;
+          if (assembly.includes(currentChr)) {
+            current = new ChromosomeStream(currentChr);
+          } else {
+            log.info("Skipping " + currentChr + " not in assembly " + assembly);
+          }
+        }
+
+        if (current != null) {
+          current.add(read);
+        }
+      }
+
+      if (current != null) {
+        current.finish();
+      }
+
+      // Chromosomes without any reads do not need to be read from disk
+      for (String chr : reader.chromosomes()) {
+        if (!seen.contains(chr) && assembly.includes(chr)) {
+          log.debug("No reads for chromosome " + chr);
+          new ChromosomeStream(chr).finish();
+        }
+      }
+    }
+
+    /**
+     * The open chunk accumulators for the chromosome currently being streamed
+     */
+    private class ChromosomeStream {
+
+      final int chrLength;
+      final List<Chunk> chunks;
+      final List<ChunkAccumulator[]> open = new ArrayList<>();
+      int nextChunk = 0;
+      int lastStart = Integer.MIN_VALUE;
+
+      ChromosomeStream(String chr) throws IOException {
+        chrLength = assembly.getChrLength(chr);
+        // Same tiling as query()
+        chunks = startChromosome(chr);
+      }
+
+      void add(Interval read) throws IOException {
+        // Sorted BAM files are ordered by alignment start, but paired-end
+        // entries span the whole fragment, so they may begin before the
+        // alignment start
+        int sortKey = (read instanceof SAMEntry) ? ((SAMEntry) read).getAlignmentStart() : read.low();
+        if (sortKey < lastStart) {
+          throw new CommandLineToolException("Input file is not sorted (" + read + " follows a read starting at "
+              + lastStart + "). Run without --stream.");
+        }
+        lastStart = sortKey;
+
+        // Write all chunks that this (and any later) read cannot affect,
+        // allowing reads to extend up to one chunk before their sort position
+        while (nextChunk < chunks.size()
+            && chunks.get(nextChunk).interval.getStop() < sortKey - padding - chunkSize) {
+          flush();
+        }
+
+        int low = Math.max(read.low() - padding, 1);
+        int high = Math.min(read.high() + padding, chrLength);
+        if (high < low || nextChunk == chunks.size()) {
+          return;
+        }
+        int firstChunk = (low - 1) / chunkSize;
+        if (firstChunk < nextChunk) {
+          throw new CommandLineToolException("Read " + read
+              + " extends more than one chunk before its start position."
+              + " Increase the chunk size (-c) or run without --stream.");
+        }
+
+        int lastChunk = Math.min((high - 1) / chunkSize, chunks.size() - 1);
+        for (int k = firstChunk; k <= lastChunk; k++) {
+          while (open.size() <= k - nextChunk) {
+            open.add(newAccumulators(chunks.get(nextChunk + open.size())));
+          }
+          for (ChunkAccumulator accumulator : open.get(k - nextChunk)) {
+            accumulator.add(read);
+          }
+        }
+      }
+
+      /**
+       * Write the next chunk to disk
+       */
+      void flush() throws IOException {
+        Chunk chunk = chunks.get(nextChunk);
+        log.debug("Processing chunk " + chunk.interval);
+        write(chunk, open.isEmpty() ? newAccumulators(chunk) : open.remove(0));
+        nextChunk++;
+      }
+
+      /**
+       * Write all remaining chunks for this chromosome to disk
+       */
+      void finish() throws IOException {
+        while (nextChunk < chunks.size()) {
+          flush();
+        }
+      }
     }
   }
 }
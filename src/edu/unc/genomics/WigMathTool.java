@@ -19,6 +19,9 @@ import edu.unc.genomics.io.WigFileWriter;
  * 
  * The compute method must return the output values for that chunk (one value
  * for each base pair) which will then be written into a new output Wig file.
+ * Regions in an optional mask file (--mask) are set to NaN in the output.
+ * Subclasses may instead leave masked regions out of the output entirely by
+ * setting omitMasked.
  * 
  * @author timpalpant
  * 
@@ -35,8 +38,20 @@ public abstract class WigMathTool extends WigAnalysisTool {
   public int step = 1;
   @Parameter(names = { "-o", "--output" }, required = true, description = "Output Wig file")
   public Path outputFile;
+  @Parameter(names = { "--mask" }, description = "Set regions in this interval file (Bed) to NaN in the output", validateWith = ReadablePathValidator.class)
+  public Path maskFile;
 
   private WigFileWriter writer;
+  /**
+   * Regions to exclude from the output. Loaded from --mask, and may also be
+   * set by subclasses during setup
+   */
+  protected IntervalMask mask;
+  /**
+   * Leave masked regions out of the output instead of setting them to NaN.
+   * Only applies to results with one value per base pair
+   */
+  protected boolean omitMasked = false;
 
   /**
    * Setup the computation, and add all input Wig files
@@ -55,6 +70,13 @@ public abstract class WigMathTool extends WigAnalysisTool {
    */
   protected abstract float[] compute(Interval chunk) throws IOException, WigFileException;
 
+  /**
+   * @return the track header for the output Wig file
+   */
+  protected TrackHeader getOutputHeader() {
+    return TrackHeader.newWiggle();
+  }
+
   /**
    * Setup the computation. Should add all input Wig files with addInputFile()
    * during setup
@@ -66,9 +88,21 @@ public abstract class WigMathTool extends WigAnalysisTool {
     // Setup the input files
     setup();
 
+    if (maskFile != null) {
+      try {
+        if (mask == null) {
+          mask = new IntervalMask();
+        }
+        mask.addAll(maskFile);
+        log.debug("Loaded " + mask.size() + " masked regions");
+      } catch (IOException e) {
+        throw new CommandLineToolException("Error loading mask file " + maskFile, e);
+      }
+    }
+
     // Setup the output file
     try {
-      writer = new WigFileWriter(outputFile, TrackHeader.newWiggle());
+      writer = new WigFileWriter(outputFile, getOutputHeader());
     } catch (IOException e) {
       throw new CommandLineToolException("Error initializing output file " + outputFile, e);
     }
@@ -97,12 +131,18 @@ public abstract class WigMathTool extends WigAnalysisTool {
       int nValues = (int) Math.ceil(((float) chunk.length()) / step);
       if (result.length == nValues) { // already reduced
         // assume values have already been condensed to a certain step
+        if (mask != null) {
+          mask.apply(chunk, result, step);
+        }
         outputContig = new Contig(chunk, result, step);
       } else {
         log.error("Expected result length=" + chunk.length() + ", got=" + result.length);
         throw new CommandLineToolException("Result of Wig computation is not the expected length!");
       }
     } else { // 1 value per base pair
+      if (mask != null && !omitMasked) {
+        mask.apply(chunk, result);
+      }
       outputContig = new Contig(chunk, result);
       if (step != 1) {
         outputContig.setSpan(step);
@@ -110,12 +150,25 @@ public abstract class WigMathTool extends WigAnalysisTool {
     }
 
     // Write the result of the computation for this chunk to disk
+    if (mask != null && omitMasked && result.length == chunk.length()) {
+      // Write the unmasked parts of the chunk together
+      synchronized (writer) {
+        for (Interval run : mask.unmasked(chunk)) {
+          write(outputContig.copy(run));
+        }
+      }
+    } else {
+      write(outputContig);
+    }
+  }
+
+  private void write(Contig contig) {
     if (fixedStep) {
-      writer.writeFixedStepContig(outputContig);
+      writer.writeFixedStepContig(contig);
     } else if (variableStep) {
-      writer.writeVariableStepContig(outputContig);
+      writer.writeVariableStepContig(contig);
     } else {
-      writer.write(outputContig);
+      writer.write(contig);
     }
   }
 }
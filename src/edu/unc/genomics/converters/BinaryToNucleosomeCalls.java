@@ -0,0 +1,52 @@
+package edu.unc.genomics.converters;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.log4j.Logger;
+
+import com.beust.jcommander.Parameter;
+
+import edu.unc.genomics.CommandLineTool;
+import edu.unc.genomics.NucleosomeCall;
+import edu.unc.genomics.NucleosomeCallStore;
+import edu.unc.genomics.ReadablePathValidator;
+import edu.unc.genomics.io.IntervalFileWriter;
+
+/**
+ * Converts a binary nucleosome calls file (NucleosomeCallStore) back to the
+ * text format, with the calls for each chromosome sorted by dyad
+ * 
+ * @author timpalpant
+ *
+ */
+public class BinaryToNucleosomeCalls extends CommandLineTool {
+
+  private static final Logger log = Logger.getLogger(BinaryToNucleosomeCalls.class);
+
+  @Parameter(names = { "-i", "--input" }, description = "Input file (binary nucleosome calls)", required = true, validateWith = ReadablePathValidator.class)
+  public Path inputFile;
+  @Parameter(names = { "-o", "--output" }, description = "Output file (nucleosome calls)", required = true)
+  public Path outputFile;
+
+  @Override
+  public void run() throws IOException {
+    int count = 0;
+    try (NucleosomeCallStore store = new NucleosomeCallStore(inputFile);
+        IntervalFileWriter<NucleosomeCall> writer = new IntervalFileWriter<>(outputFile)) {
+      writer
+          .writeComment("#chr\tstart\tstop\tlength\tlengthStdev\tdyad\tdyadStdev\tconditionalPosition\tdyadMean\toccupancy");
+      for (NucleosomeCall call : store) {
+        writer.write(call);
+        count++;
+      }
+    }
+
+    log.info("Converted " + count + " nucleosome calls");
+  }
+
+  public static void main(String[] args) {
+    new BinaryToNucleosomeCalls().instanceMain(args);
+  }
+
+}
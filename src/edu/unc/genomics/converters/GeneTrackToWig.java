@@ -1,17 +1,14 @@
 package edu.unc.genomics.converters;
 
-import java.io.IOException;
-import java.util.Iterator;
-
 import org.apache.log4j.Logger;
 
 import com.beust.jcommander.Parameter;
 
+import edu.unc.genomics.ChunkAccumulator;
 import edu.unc.genomics.CommandLineToolException;
 import edu.unc.genomics.GeneTrackEntry;
 import edu.unc.genomics.Interval;
 import edu.unc.genomics.ReadMapperTool;
-import edu.unc.genomics.io.IntervalFileReader;
 
 /**
  * Convert a GeneTrack format file to Wig, optionally shifting and merging the
@@ -30,23 +27,35 @@ public class GeneTrackToWig extends ReadMapperTool {
   public Integer shift;
 
   @Override
-  public float[] compute(IntervalFileReader<? extends Interval> reader, Interval chunk) throws IOException {
-    float[] sum = new float[chunk.length()];
-    int[] count = new int[chunk.length()];
-
+  public int getPadding() {
     // Pad to shift length
-    int paddedStart = chunk.getStart();
-    int paddedStop = chunk.getStop();
     if (shift != null) {
-      paddedStart = Math.max(chunk.getStart() - shift - 1, 1);
-      paddedStop = Math.min(chunk.getStop() + shift + 1, assembly.getChrLength(chunk.getChr()));
+      return shift + 1;
     }
+    return 0;
+  }
+
+  @Override
+  public ChunkAccumulator newAccumulator(Interval chunk) {
+    return new GeneTrackAccumulator(chunk);
+  }
+
+  private class GeneTrackAccumulator extends ChunkAccumulator {
 
-    Iterator<? extends Interval> it = reader.query(chunk.getChr(), paddedStart, paddedStop);
-    while (it.hasNext()) {
+    private final float[] sum;
+    private final int[] count;
+
+    public GeneTrackAccumulator(Interval chunk) {
+      super(chunk);
+      sum = new float[chunk.length()];
+      count = new int[chunk.length()];
+    }
+
+    @Override
+    public void add(Interval interval) {
       GeneTrackEntry entry;
       try {
-        entry = (GeneTrackEntry) it.next();
+        entry = (GeneTrackEntry) interval;
       } catch (ClassCastException e) {
         log.error("Input file does not appear to be GeneTrack format!");
         throw new CommandLineToolException("Input file does not appear to be GeneTrack format!");
@@ -77,14 +86,17 @@ public class GeneTrackToWig extends ReadMapperTool {
       }
     }
 
-    // Put NaNs where there was no data
-    for (int i = 0; i < sum.length; i++) {
-      if (count[i] == 0 && !defaultZero) {
-        sum[i] = Float.NaN;
+    @Override
+    public float[] getValues() {
+      // Put NaNs where there was no data
+      for (int i = 0; i < sum.length; i++) {
+        if (count[i] == 0 && !defaultZero) {
+          sum[i] = Float.NaN;
+        }
       }
-    }
 
-    return sum;
+      return sum;
+    }
   }
 
   public static void main(String[] args) {
@@ -1,17 +1,14 @@
 package edu.unc.genomics.converters;
 
-import java.io.IOException;
-import java.util.Iterator;
-
 import org.apache.log4j.Logger;
 
 import com.beust.jcommander.Parameter;
 
+import edu.unc.genomics.ChunkAccumulator;
 import edu.unc.genomics.CommandLineToolException;
 import edu.unc.genomics.Interval;
 import edu.unc.genomics.ReadMapperTool;
 import edu.unc.genomics.ValuedInterval;
-import edu.unc.genomics.io.IntervalFileReader;
 
 /**
  * Convert interval-based data such as microarray data in Bed, BedGraph, or GFF
@@ -29,15 +26,29 @@ public class IntervalToWig extends ReadMapperTool {
   public boolean defaultZero = false;
 
   @Override
-  public float[] compute(IntervalFileReader<? extends Interval> reader, Interval chunk) throws IOException {
-    float[] sum = new float[chunk.length()];
-    int[] count = new int[chunk.length()];
+  public ChunkAccumulator newAccumulator(Interval chunk) {
+    return new AverageAccumulator(chunk);
+  }
+
+  /**
+   * Records the boundaries of each interval, then takes the cumulative sums
+   */
+  private class AverageAccumulator extends ChunkAccumulator {
 
-    Iterator<? extends Interval> it = reader.query(chunk);
-    while (it.hasNext()) {
+    private final double[] sumDelta;
+    private final int[] countDelta;
+
+    public AverageAccumulator(Interval chunk) {
+      super(chunk);
+      sumDelta = new double[chunk.length() + 1];
+      countDelta = new int[chunk.length() + 1];
+    }
+
+    @Override
+    public void add(Interval interval) {
       ValuedInterval entry;
       try {
-        entry = (ValuedInterval) it.next();
+        entry = (ValuedInterval) interval;
       } catch (ClassCastException e) {
         log.error("Input file does not appear to be a valued interval format (Bed/BedGraph/GFF/GeneTrack)!");
         throw new CommandLineToolException(
@@ -47,21 +58,34 @@ public class IntervalToWig extends ReadMapperTool {
       if (entry.getValue() != null) {
         int entryStart = Math.max(chunk.getStart(), entry.low());
         int entryStop = Math.min(chunk.getStop(), entry.high());
-        for (int i = entryStart; i <= entryStop; i++) {
-          sum[i - chunk.getStart()] += entry.getValue().floatValue();
-          count[i - chunk.getStart()]++;
+        if (entryStart <= entryStop) {
+          float value = entry.getValue().floatValue();
+          sumDelta[entryStart - chunk.getStart()] += value;
+          sumDelta[entryStop - chunk.getStart() + 1] -= value;
+          countDelta[entryStart - chunk.getStart()]++;
+          countDelta[entryStop - chunk.getStart() + 1]--;
         }
       }
     }
 
-    // Calculate the average at each base pair in the chunk
-    for (int i = 0; i < sum.length; i++) {
-      if (count[i] != 0 || !defaultZero) {
-        sum[i] /= count[i];
+    @Override
+    public float[] getValues() {
+      // Calculate the average at each base pair in the chunk
+      float[] avg = new float[chunk.length()];
+      double sum = 0;
+      int count = 0;
+      for (int i = 0; i < avg.length; i++) {
+        sum += sumDelta[i];
+        count += countDelta[i];
+        if (count != 0) {
+          avg[i] = (float) (sum / count);
+        } else if (!defaultZero) {
+          avg[i] = Float.NaN;
+        }
       }
-    }
 
-    return sum;
+      return avg;
+    }
   }
 
   public static void main(String[] args) {
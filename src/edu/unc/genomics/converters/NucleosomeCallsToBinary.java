@@ -0,0 +1,46 @@
+package edu.unc.genomics.converters;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.log4j.Logger;
+
+import com.beust.jcommander.Parameter;
+
+import edu.unc.genomics.CommandLineTool;
+import edu.unc.genomics.NucleosomeCallStore;
+import edu.unc.genomics.NucleosomeCallsFileReader;
+import edu.unc.genomics.ReadablePathValidator;
+
+/**
+ * Converts a text nucleosome calls file to the compact binary format
+ * (NucleosomeCallStore), which can be used in place of the text file by the
+ * nucleosome tools
+ * 
+ * @author timpalpant
+ *
+ */
+public class NucleosomeCallsToBinary extends CommandLineTool {
+
+  private static final Logger log = Logger.getLogger(NucleosomeCallsToBinary.class);
+
+  @Parameter(names = { "-i", "--input" }, description = "Input file (nucleosome calls)", required = true, validateWith = ReadablePathValidator.class)
+  public Path inputFile;
+  @Parameter(names = { "-o", "--output" }, description = "Output file (binary nucleosome calls)", required = true)
+  public Path outputFile;
+
+  @Override
+  public void run() throws IOException {
+    int count;
+    try (NucleosomeCallsFileReader reader = new NucleosomeCallsFileReader(inputFile)) {
+      count = NucleosomeCallStore.write(reader, outputFile);
+    }
+
+    log.info("Converted " + count + " nucleosome calls");
+  }
+
+  public static void main(String[] args) {
+    new NucleosomeCallsToBinary().instanceMain(args);
+  }
+
+}
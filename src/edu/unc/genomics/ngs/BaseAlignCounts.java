@@ -1,13 +1,10 @@
 package edu.unc.genomics.ngs;
 
-import java.io.IOException;
-import java.util.Iterator;
-
 import com.beust.jcommander.Parameter;
 
+import edu.unc.genomics.ChunkAccumulator;
 import edu.unc.genomics.Interval;
 import edu.unc.genomics.ReadMapperTool;
-import edu.unc.genomics.io.IntervalFileReader;
 
 /**
  * This tool calculates the coverage of sequencing reads (or any interval data)
@@ -23,20 +20,34 @@ public class BaseAlignCounts extends ReadMapperTool {
   public Integer extend = -1;
 
   @Override
-  public float[] compute(IntervalFileReader<? extends Interval> reader, Interval chunk) throws IOException {
-    float[] count = new float[chunk.length()];
-
+  public int getPadding() {
     // Need to pad the query if extending reads
-    int paddedStart = chunk.getStart();
-    int paddedStop = chunk.getStop();
     if (extend != null && extend != -1) {
-      paddedStart = Math.max(chunk.getStart() - extend - 1, 1);
-      paddedStop = Math.min(chunk.getStop() + extend + 1, assembly.getChrLength(chunk.getChr()));
+      return extend + 1;
     }
+    return 0;
+  }
+
+  @Override
+  public ChunkAccumulator newAccumulator(Interval chunk) {
+    return new CoverageAccumulator(chunk);
+  }
+
+  /**
+   * Records +1/-1 at the boundaries of each read, then takes the cumulative sum
+   * so that the cost scales with the number of reads rather than bases
+   */
+  private class CoverageAccumulator extends ChunkAccumulator {
 
-    Iterator<? extends Interval> it = reader.query(chunk.getChr(), paddedStart, paddedStop);
-    while (it.hasNext()) {
-      Interval entry = it.next();
+    private final int[] delta;
+
+    public CoverageAccumulator(Interval chunk) {
+      super(chunk);
+      delta = new int[chunk.length() + 1];
+    }
+
+    @Override
+    public void add(Interval entry) {
       int entryStop = entry.getStop();
       if (extend != null && extend != -1) {
         if (entry.isWatson()) {
@@ -49,15 +60,26 @@ public class BaseAlignCounts extends ReadMapperTool {
       // Clamp to the current chunk
       int low = Math.max(Math.min(entry.getStart(), entryStop), chunk.getStart());
       int high = Math.min(Math.max(entry.getStart(), entryStop), chunk.getStop());
-      for (int i = low; i <= high; i++) {
-        count[i - chunk.getStart()]++;
+      if (low <= high) {
+        delta[low - chunk.getStart()]++;
+        delta[high - chunk.getStart() + 1]--;
       }
     }
 
-    return count;
+    @Override
+    public float[] getValues() {
+      float[] count = new float[chunk.length()];
+      int coverage = 0;
+      for (int i = 0; i < count.length; i++) {
+        coverage += delta[i];
+        count[i] = coverage;
+      }
+
+      return count;
+    }
   }
 
   public static void main(String[] args) {
     new BaseAlignCounts().instanceMain(args);
   }
-}
\ No newline at end of file
+}
@@ -2,23 +2,43 @@ package edu.unc.genomics.ngs;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.apache.log4j.Logger;
 
 import com.beust.jcommander.Parameter;
 
+import edu.unc.genomics.BedGraphEntry;
 import edu.unc.genomics.CommandLineTool;
+import edu.unc.genomics.CommandLineToolException;
 import edu.unc.genomics.Interval;
 import edu.unc.genomics.ReadablePathValidator;
 import edu.unc.genomics.io.BedGraphFileWriter;
 import edu.unc.genomics.io.WigFileReader;
 import edu.unc.genomics.io.WigFileException;
+import edu.unc.utils.RollingSum;
 
 /**
  * Finds regions of a Wig file that differ significantly from the mean, such as
  * CNVs or deletions.
  * 
+ * The mean of a sliding window is compared to a threshold at every base pair.
+ * The threshold is a multiple of the mean of the whole file, or of a larger
+ * window centered on each base pair (--local). Missing values (NaN) are
+ * excluded from the window means. Several thresholds can be tested in one
+ * pass, in which case the threshold for each region is written in the value
+ * column of the output. Chromosomes are processed in parallel, and written in
+ * order.
+ * 
  * @author timpalpant
  *
  */
@@ -30,85 +50,153 @@ public class FindOutlierRegions extends CommandLineTool {
   public Path inputFile;
   @Parameter(names = { "-w", "--window" }, description = "Window size", required = true)
   public int windowSize;
-  @Parameter(names = { "-t", "--threshold" }, description = "Threshold (fold x mean)")
-  public float fold = 3;
+  @Parameter(names = { "-t", "--threshold" }, description = "Threshold (fold x mean, may be specified multiple times)")
+  public List<Float> folds = new ArrayList<>(Arrays.asList(3f));
   @Parameter(names = { "-b", "--below" }, description = "Search for outliers below the threshold")
   public boolean below = false;
+  @Parameter(names = { "-l", "--local" }, description = "Use the mean of a local window of this size (bp) rather than the global mean")
+  public Integer backgroundSize;
+  @Parameter(names = { "-p", "--threads" }, description = "Number of chromosomes to process in parallel")
+  public int nThreads = 1;
   @Parameter(names = { "-o", "--output" }, description = "Output file (bedGraph)", required = true)
   public Path outputFile;
 
   int flip = 1;
-  double threshold;
-  DescriptiveStatistics stats = new DescriptiveStatistics();
+  double mean;
 
   @Override
   public void run() throws IOException {
+    if (windowSize < 1) {
+      throw new CommandLineToolException("Window size must be >= 1");
+    }
+    if (backgroundSize != null && backgroundSize < 1) {
+      throw new CommandLineToolException("Local background window size must be >= 1");
+    }
     log.debug("Scanning with " + windowSize + " bp window");
-    stats.setWindowSize(windowSize);
     if (below) {
       flip = -1;
     }
 
     // Run through the genome finding regions that exceed the threshold
-    try (WigFileReader reader = WigFileReader.autodetect(inputFile);
+    try (final WigFileReader reader = WigFileReader.autodetect(inputFile);
         BedGraphFileWriter<Interval> writer = new BedGraphFileWriter<Interval>(outputFile)) {
-      threshold = fold * reader.mean();
-      log.debug("Threshold = " + threshold);
-
-      for (String chr : reader.chromosomes()) {
-        int start = reader.getChrStart(chr);
-        int stop = reader.getChrStop(chr);
-        log.debug("Processing chromosome " + chr + ":" + start + "-" + stop);
-
-        // Process the chromosome in chunks
-        int bp = start;
-        Interval outlier = null;
-        stats.clear();
-        while (bp < stop) {
-          int chunkStart = bp;
-          int chunkStop = Math.min(bp + DEFAULT_CHUNK_SIZE - 1, stop);
-          Interval chunk = new Interval(chr, chunkStart, chunkStop);
-          log.debug("Processing chunk " + chunk);
-
-          try {
-            float[] data = reader.query(chunk).getValues();
-            for (int i = 0; i < data.length; i++) {
-              stats.addValue(data[i]);
-
-              // If the mean of the current window is > threshold
-              // write it to output as a potential outlier region
-              if (outlier == null) {
-                // Start a new outlier region
-                if (flip * stats.getMean() > flip * threshold) {
-                  outlier = new Interval(chr, chunkStart + i - windowSize, -1);
-                }
-              } else {
-                // End an outlier region
-                if (flip * stats.getMean() < flip * threshold) {
-                  outlier.setStop(chunkStart + i);
-                  writer.write(outlier);
-                  outlier = null;
-                }
-              }
+      if (backgroundSize == null) {
+        mean = reader.mean();
+        for (float fold : folds) {
+          log.debug("Threshold = " + (fold * mean));
+        }
+      } else {
+        log.debug("Computing thresholds from " + backgroundSize + " bp local background");
+      }
+
+      ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+      List<Future<List<Interval>>> futures = new ArrayList<>();
+      try {
+        for (final String chr : reader.chromosomes()) {
+          futures.add(pool.submit(new Callable<List<Interval>>() {
+            @Override
+            public List<Interval> call() throws IOException, WigFileException {
+              return findOutliers(reader, chr);
             }
+          }));
+        }
 
-          } catch (WigFileException e) {
-            log.fatal("Wig file error while processing chunk " + chr + ":" + start + "-" + stop);
-            e.printStackTrace();
-            throw new RuntimeException("Wig file error while processing chunk " + chr + ":" + start + "-" + stop);
+        for (Future<List<Interval>> f : futures) {
+          for (Interval outlier : f.get()) {
+            writer.write(outlier);
           }
-
-          bp = chunkStop + 1;
         }
+      } catch (InterruptedException | ExecutionException e) {
+        throw new CommandLineToolException(e);
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Find all outlier regions on one chromosome, for every threshold
+   * 
+   * @return the outlier regions, sorted by start
+   */
+  private List<Interval> findOutliers(WigFileReader reader, String chr) throws IOException, WigFileException {
+    int start = reader.getChrStart(chr);
+    int stop = reader.getChrStop(chr);
+    log.debug("Processing chromosome " + chr + ":" + start + "-" + stop);
+
+    List<Interval> outliers = new ArrayList<>();
+    RollingSum window = new RollingSum(windowSize);
+    RollingSum background = (backgroundSize != null) ? new RollingSum(backgroundSize) : null;
+    int[] outlierStart = new int[folds.size()];
+    boolean[] open = new boolean[folds.size()];
+
+    // Process the chromosome in chunks
+    int bp = start;
+    while (bp < stop) {
+      int chunkStart = bp;
+      int chunkStop = Math.min(bp + DEFAULT_CHUNK_SIZE - 1, stop);
+      float[] data;
+      float[] thresholdMean = null;
+      if (background == null) {
+        data = reader.query(chr, chunkStart, chunkStop).getValues();
+      } else {
+        // Pad the chunk so that the background windows are centered
+        int halfWidth = backgroundSize / 2;
+        int paddedStart = Math.max(chunkStart - halfWidth, start);
+        int paddedStop = Math.min(chunkStop + backgroundSize - halfWidth - 1, stop);
+        float[] padded = reader.query(chr, paddedStart, paddedStop).getValues();
+        int from = chunkStart - paddedStart;
+        data = Arrays.copyOfRange(padded, from, from + chunkStop - chunkStart + 1);
+        thresholdMean = background.filter(padded, from, from + data.length);
+      }
 
-        // If there is an open outlier region at the end of the chromosome
-        if (outlier != null) {
-          outlier.setStop(stop);
-          writer.write(outlier);
-          outlier = null;
+      for (int i = 0; i < data.length; i++) {
+        window.addValue(data[i]);
+        double windowMean = window.getMean();
+        double m = (thresholdMean == null) ? mean : thresholdMean[i];
+        for (int t = 0; t < folds.size(); t++) {
+          double threshold = folds.get(t) * m;
+          // If the mean of the current window is > threshold
+          // write it to output as a potential outlier region
+          if (!open[t]) {
+            // Start a new outlier region
+            if (flip * windowMean > flip * threshold) {
+              outlierStart[t] = chunkStart + i - windowSize;
+              open[t] = true;
+            }
+          } else if (flip * windowMean < flip * threshold) {
+            // End an outlier region
+            outliers.add(newOutlier(chr, outlierStart[t], chunkStart + i, t));
+            open[t] = false;
+          }
         }
       }
+
+      bp = chunkStop + 1;
+    }
+
+    // If there are open outlier regions at the end of the chromosome
+    for (int t = 0; t < folds.size(); t++) {
+      if (open[t]) {
+        outliers.add(newOutlier(chr, outlierStart[t], stop, t));
+      }
+    }
+
+    // Regions were added in the order that they ended
+    Collections.sort(outliers, new Comparator<Interval>() {
+      @Override
+      public int compare(Interval i1, Interval i2) {
+        return Integer.compare(i1.getStart(), i2.getStart());
+      }
+    });
+    return outliers;
+  }
+
+  private Interval newOutlier(String chr, int start, int stop, int t) {
+    if (folds.size() == 1) {
+      return new Interval(chr, start, stop);
     }
+    return new BedGraphEntry(chr, start, stop, null, (double) folds.get(t));
   }
 
   /**
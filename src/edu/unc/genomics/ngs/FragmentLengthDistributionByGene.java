@@ -5,22 +5,40 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.math3.stat.Frequency;
 import org.apache.log4j.Logger;
 
 import com.beust.jcommander.Parameter;
 
 import edu.unc.genomics.CommandLineTool;
+import edu.unc.genomics.CommandLineToolException;
 import edu.unc.genomics.Interval;
+import edu.unc.genomics.ParallelBAMFileReader;
 import edu.unc.genomics.ReadablePathValidator;
+import edu.unc.genomics.SAMEntry;
+import edu.unc.genomics.io.BAMFileReader;
 import edu.unc.genomics.io.IntervalFileReader;
+import edu.unc.utils.IntHistogram;
 
 /**
  * Calculate the fragment length distribution for fragments overlapping each
  * gene
  * 
+ * The loci are sorted and the reads (which must be sorted) are swept over them
+ * in a single pass. Indexed BAM files can be swept one chromosome per thread.
+ * 
  * @author timpalpant
  *
  */
@@ -38,32 +56,184 @@ public class FragmentLengthDistributionByGene extends CommandLineTool {
   public int max = 1000;
   @Parameter(names = { "-o", "--output" }, description = "Output file", required = true)
   public Path outputFile;
+  @Parameter(names = { "-p", "--threads" }, description = "Number of threads to process indexed BAM chromosomes with")
+  public int nThreads = 1;
+  @Parameter(names = { "-j", "--inflaters" }, description = "Number of threads for inflating BAM input (0 = inflate on the main thread)")
+  public int inflaterThreads = 0;
 
   @Override
   public void run() throws IOException {
-    Frequency hist = new Frequency();
-    try (IntervalFileReader<? extends Interval> reader = IntervalFileReader.autodetect(inputFile);
-        IntervalFileReader<? extends Interval> loci = IntervalFileReader.autodetect(lociFile);
-        BufferedWriter writer = Files.newBufferedWriter(outputFile, Charset.defaultCharset())) {
+    if (max < min) {
+      throw new CommandLineToolException("Maximum read length must be >= minimum read length");
+    }
+
+    log.debug("Loading loci");
+    List<Locus> loci = new ArrayList<>();
+    Map<String, List<Locus>> lociByChr = new LinkedHashMap<>();
+    try (IntervalFileReader<? extends Interval> reader = IntervalFileReader.autodetect(lociFile)) {
+      for (Interval interval : reader) {
+        Locus locus = new Locus(interval, new IntHistogram(min, max));
+        loci.add(locus);
+        if (!lociByChr.containsKey(interval.getChr())) {
+          lociByChr.put(interval.getChr(), new ArrayList<Locus>());
+        }
+        lociByChr.get(interval.getChr()).add(locus);
+      }
+    }
+    for (List<Locus> chrLoci : lociByChr.values()) {
+      Collections.sort(chrLoci, new Comparator<Locus>() {
+        @Override
+        public int compare(Locus l1, Locus l2) {
+          return Integer.compare(l1.interval.low(), l2.interval.low());
+        }
+      });
+    }
+
+    try (IntervalFileReader<? extends Interval> reader = ParallelBAMFileReader.autodetect(inputFile, inflaterThreads)) {
+      log.debug("Iterating over all reads and computing read length distributions");
+      if (nThreads > 1 && (reader instanceof BAMFileReader || reader instanceof ParallelBAMFileReader)) {
+        sweepByChromosome(lociByChr);
+      } else {
+        sweep(reader, lociByChr);
+      }
+    }
+
+    try (BufferedWriter writer = Files.newBufferedWriter(outputFile, Charset.defaultCharset())) {
       writer.write("#Chr\tStart\tStop\tID\tAlignment\tStrand\tDistribution");
       writer.newLine();
+      for (Locus locus : loci) {
+        writer.write(locus.interval.toBed());
+        for (int i = min; i <= max; i++) {
+          writer.write("\t" + locus.hist.getPct(i));
+        }
+        writer.newLine();
+      }
+    }
+  }
+
+  /**
+   * Sweep all of the reads in the file over the loci in a single pass
+   */
+  private static void sweep(IntervalFileReader<? extends Interval> reader, Map<String, List<Locus>> lociByChr) {
+    Map<String, ChromosomeSweep> sweeps = new LinkedHashMap<>();
+    ChromosomeSweep current = null;
+    for (Interval read : reader) {
+      if (current == null || !read.getChr().equals(current.chr)) {
+        if (sweeps.containsKey(read.getChr())) {
+          throw new CommandLineToolException("Reads file is not sorted (reads for " + read.getChr()
+              + " are not contiguous)");
+        }
+        List<Locus> chrLoci = lociByChr.get(read.getChr());
+        current = new ChromosomeSweep(read.getChr(), (chrLoci != null) ? chrLoci : Collections.<Locus> emptyList());
+        sweeps.put(read.getChr(), current);
+      }
+      current.add(read);
+    }
+  }
 
-      log.debug("Iterating over all intervals and computing read length distribution");
-      for (Interval interval : loci) {
-        writer.write(interval.toBed());
+  /**
+   * Sweep the reads for each chromosome over its loci on its own thread
+   */
+  private void sweepByChromosome(Map<String, List<Locus>> lociByChr) throws IOException {
+    log.debug("Processing " + lociByChr.size() + " chromosomes with " + nThreads + " threads");
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+    List<Future<?>> futures = new ArrayList<>();
+    try {
+      for (final Map.Entry<String, List<Locus>> entry : lociByChr.entrySet()) {
+        futures.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            String chr = entry.getKey();
+            List<Locus> chrLoci = entry.getValue();
+            int high = Integer.MIN_VALUE;
+            for (Locus locus : chrLoci) {
+              high = Math.max(high, locus.interval.high());
+            }
 
-        // Make a histogram of all reads that overlap this interval
-        hist.clear();
-        Iterator<? extends Interval> reads = reader.query(interval);
-        while (reads.hasNext()) {
-          Interval read = reads.next();
-          hist.addValue(read.length());
+            ChromosomeSweep sweep = new ChromosomeSweep(chr, chrLoci);
+            try (IntervalFileReader<? extends Interval> chrReader = IntervalFileReader.autodetect(inputFile)) {
+              Iterator<? extends Interval> reads = chrReader.query(chr, chrLoci.get(0).interval.low(), high);
+              while (reads.hasNext()) {
+                sweep.add(reads.next());
+              }
+            }
+            return null;
+          }
+        }));
+      }
+
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      throw new CommandLineToolException(e);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static class Locus {
+    final Interval interval;
+    final IntHistogram hist;
+
+    Locus(Interval interval, IntHistogram hist) {
+      this.interval = interval;
+      this.hist = hist;
+    }
+  }
+
+  /**
+   * Counts the reads on one chromosome into the histograms of the loci that
+   * they overlap, given the reads in sorted order and the loci sorted by start
+   */
+  private static class ChromosomeSweep {
+
+    final String chr;
+    private final List<Locus> loci;
+    private final List<Locus> active = new ArrayList<>();
+    private int nextLocus = 0;
+    private int lastStart = Integer.MIN_VALUE;
+
+    ChromosomeSweep(String chr, List<Locus> loci) {
+      this.chr = chr;
+      this.loci = loci;
+    }
+
+    void add(Interval read) {
+      // BAM files are queried (and sorted) by alignment rather than by the
+      // whole fragment, so use the same extent when matching reads to loci
+      int low, high;
+      if (read instanceof SAMEntry) {
+        low = ((SAMEntry) read).getAlignmentStart();
+        high = ((SAMEntry) read).getAlignmentEnd();
+      } else {
+        low = read.low();
+        high = read.high();
+      }
+      if (low < lastStart) {
+        throw new CommandLineToolException("Reads file is not sorted (" + read + " follows a read starting at "
+            + lastStart + ")");
+      }
+      lastStart = low;
+
+      // No later read can overlap a locus that ends before this one starts
+      Iterator<Locus> it = active.iterator();
+      while (it.hasNext()) {
+        if (it.next().interval.high() < low) {
+          it.remove();
         }
+      }
+      while (nextLocus < loci.size() && loci.get(nextLocus).interval.low() <= high) {
+        Locus locus = loci.get(nextLocus++);
+        if (locus.interval.high() >= low) {
+          active.add(locus);
+        }
+      }
 
-        for (int i = min; i <= max; i++) {
-          writer.write("\t" + hist.getPct(i));
+      for (Locus locus : active) {
+        if (locus.interval.low() <= high) {
+          locus.hist.addValue(read.length());
         }
-        writer.newLine();
       }
     }
   }
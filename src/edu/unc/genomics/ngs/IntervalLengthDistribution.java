@@ -5,21 +5,38 @@ import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMSequenceRecord;
 
-import org.apache.commons.math3.stat.Frequency;
 import org.apache.log4j.Logger;
 
 import com.beust.jcommander.Parameter;
 
 import edu.unc.genomics.CommandLineTool;
+import edu.unc.genomics.CommandLineToolException;
 import edu.unc.genomics.Interval;
+import edu.unc.genomics.ParallelBAMFileReader;
 import edu.unc.genomics.ReadablePathValidator;
+import edu.unc.genomics.io.BAMFileReader;
 import edu.unc.genomics.io.IntervalFileReader;
+import edu.unc.utils.IntHistogram;
 
 /**
  * Generate a histogram of interval lengths, such as read lengths or gene
  * lengths
  * 
+ * Indexed BAM files can be processed one chromosome per thread, merging the
+ * histogram for each chromosome at the end.
+ * 
  * @author timpalpant
  *
  */
@@ -33,39 +50,82 @@ public class IntervalLengthDistribution extends CommandLineTool {
   public boolean outputFreq = false;
   @Parameter(names = { "-o", "--output" }, description = "Output file", required = true)
   public Path outputFile;
+  @Parameter(names = { "-p", "--threads" }, description = "Number of threads to process indexed BAM chromosomes with")
+  public int nThreads = 1;
+  @Parameter(names = { "-j", "--inflaters" }, description = "Number of threads for inflating BAM input (0 = inflate on the main thread)")
+  public int inflaterThreads = 0;
 
   @Override
   public void run() throws IOException {
     log.debug("Generating histogram of interval lengths");
-    Frequency freq = new Frequency();
-    int min = Integer.MAX_VALUE;
-    int max = -1;
-    try (IntervalFileReader<? extends Interval> reader = IntervalFileReader.autodetect(inputFile)) {
-      for (Interval i : reader) {
-        int L = i.length();
-        freq.addValue(L);
-
-        if (L < min) {
-          min = L;
-        }
-        if (L > max) {
-          max = L;
-        }
+    IntHistogram hist;
+    try (IntervalFileReader<? extends Interval> reader = ParallelBAMFileReader.autodetect(inputFile, inflaterThreads)) {
+      if (nThreads > 1 && (reader instanceof BAMFileReader || reader instanceof ParallelBAMFileReader)) {
+        hist = countByChromosome();
+      } else {
+        hist = count(reader.iterator());
       }
     }
 
     log.debug("Writing histogram output");
     try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(outputFile, Charset.defaultCharset()))) {
-      for (int i = min; i <= max; i++) {
+      for (int i = hist.getLowest(); i <= hist.getHighest(); i++) {
         if (outputFreq) {
-          writer.println(i + "\t" + freq.getPct(i));
+          writer.println(i + "\t" + hist.getPct(i));
         } else {
-          writer.println(i + "\t" + freq.getCount(i));
+          writer.println(i + "\t" + hist.getCount(i));
         }
       }
     }
   }
 
+  private static IntHistogram count(Iterator<? extends Interval> it) {
+    IntHistogram hist = new IntHistogram(0, Integer.MAX_VALUE);
+    while (it.hasNext()) {
+      hist.addValue(it.next().length());
+    }
+    return hist;
+  }
+
+  /**
+   * Count the lengths on each chromosome on its own thread, then merge
+   */
+  private IntHistogram countByChromosome() throws IOException {
+    List<SAMSequenceRecord> sequences;
+    try (SAMFileReader samReader = new SAMFileReader(inputFile.toFile())) {
+      if (!samReader.hasIndex()) {
+        throw new CommandLineToolException("Processing BAM file by chromosome requires an index");
+      }
+      sequences = samReader.getFileHeader().getSequenceDictionary().getSequences();
+    }
+
+    log.debug("Counting " + sequences.size() + " chromosomes with " + nThreads + " threads");
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+    List<Future<IntHistogram>> futures = new ArrayList<>();
+    try {
+      for (final SAMSequenceRecord seq : sequences) {
+        futures.add(pool.submit(new Callable<IntHistogram>() {
+          @Override
+          public IntHistogram call() throws IOException {
+            try (IntervalFileReader<? extends Interval> chrReader = IntervalFileReader.autodetect(inputFile)) {
+              return count(chrReader.query(seq.getSequenceName(), 1, seq.getSequenceLength()));
+            }
+          }
+        }));
+      }
+
+      IntHistogram hist = new IntHistogram(0, Integer.MAX_VALUE);
+      for (Future<IntHistogram> f : futures) {
+        hist.merge(f.get());
+      }
+      return hist;
+    } catch (InterruptedException | ExecutionException e) {
+      throw new CommandLineToolException(e);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
   public static void main(String[] args) {
     new IntervalLengthDistribution().instanceMain(args);
   }
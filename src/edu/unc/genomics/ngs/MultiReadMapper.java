@@ -0,0 +1,109 @@
+package edu.unc.genomics.ngs;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+import edu.unc.genomics.Assembly;
+import edu.unc.genomics.CommandLineTool;
+import edu.unc.genomics.CommandLineToolException;
+import edu.unc.genomics.Interval;
+import edu.unc.genomics.ParallelBAMFileReader;
+import edu.unc.genomics.ReadMapperTool;
+import edu.unc.genomics.ReadablePathValidator;
+import edu.unc.genomics.io.IntervalFileReader;
+
+/**
+ * Run several read mapping tools (BaseAlignCounts, MapDyads, RollingReadLength,
+ * etc.) on the same reads file in one pass, so that the reads only have to be
+ * read and decoded once. Each mapper is given as a tool name followed by its own
+ * arguments, e.g. -m "ngs.BaseAlignCounts -x 150 -o counts.wig"
+ *
+ * The input, assembly, chunk size, threading, and streaming options are shared
+ * by all of the mappers and should not be repeated in the mapper arguments.
+ *
+ * @author timpalpant
+ *
+ */
+public class MultiReadMapper extends CommandLineTool {
+
+  private static final Logger log = Logger.getLogger(MultiReadMapper.class);
+
+  @Parameter(names = { "-i", "--input" }, description = "Input file", required = true, validateWith = ReadablePathValidator.class)
+  public Path intervalFile;
+  @Parameter(names = { "-a", "--assembly" }, description = "Genome assembly", required = true)
+  public Assembly assembly;
+  @Parameter(names = { "-c", "--chunk" }, description = "Size to chunk each chromosome into when processing (bp)")
+  public int chunkSize = DEFAULT_CHUNK_SIZE;
+  @Parameter(names = { "-t", "--stream" }, description = "Read sorted input in a single pass rather than querying each chunk")
+  public boolean stream = false;
+  @Parameter(names = { "-p", "--threads" }, description = "Number of threads to use for querying and computing chunks")
+  public int nThreads = 1;
+  @Parameter(names = { "-j", "--inflaters" }, description = "Number of threads for inflating BAM input (0 = inflate on the main thread)")
+  public int inflaterThreads = 0;
+  @Parameter(names = { "-m", "--mapper" }, description = "Mapper and its arguments, e.g. \"ngs.BaseAlignCounts -o out.wig\" (may be repeated)", required = true)
+  public List<String> mapperArgs = new ArrayList<>();
+
+  /**
+   * Instantiate a ReadMapperTool from its name and arguments
+   *
+   * @param spec
+   *          the tool name (relative to edu.unc.genomics) and its arguments
+   * @return the configured mapper
+   */
+  private ReadMapperTool newMapper(String spec) {
+    String[] tokens = spec.trim().split("\\s+");
+    String className = "edu.unc.genomics." + tokens[0];
+    ReadMapperTool mapper;
+    try {
+      Object tool = Class.forName(className).getDeclaredConstructor().newInstance();
+      if (!(tool instanceof ReadMapperTool)) {
+        throw new CommandLineToolException(tokens[0] + " is not a read mapping tool");
+      }
+      mapper = (ReadMapperTool) tool;
+    } catch (ClassNotFoundException e) {
+      throw new CommandLineToolException("Unknown tool: " + tokens[0]);
+    } catch (InvocationTargetException e) {
+      throw new CommandLineToolException("Could not create tool: " + tokens[0], e.getCause());
+    } catch (InstantiationException | IllegalAccessException | NoSuchMethodException e) {
+      throw new CommandLineToolException("Could not create tool: " + tokens[0], e);
+    }
+
+    // Give each mapper the shared input options
+    List<String> args = new ArrayList<>(Arrays.asList(tokens).subList(1, tokens.length));
+    args.addAll(Arrays.asList("-i", intervalFile.toString(), "-a", assembly.getPath().toString()));
+    try {
+      mapper.newParser().parse(args.toArray(new String[args.size()]));
+    } catch (ParameterException e) {
+      throw new CommandLineToolException("Invalid arguments for " + tokens[0] + ": " + e.getMessage(), e);
+    }
+
+    return mapper;
+  }
+
+  @Override
+  public void run() throws IOException {
+    List<ReadMapperTool> mappers = new ArrayList<>();
+    for (String spec : mapperArgs) {
+      mappers.add(newMapper(spec));
+    }
+
+    log.debug("Processing reads with " + mappers.size() + " mappers");
+    try (IntervalFileReader<? extends Interval> reader = ParallelBAMFileReader.autodetect(intervalFile, inflaterThreads)) {
+      ReadMapperTool.mapReads(reader, assembly, chunkSize, stream, nThreads, mappers);
+    }
+  }
+
+  public static void main(String[] args) {
+    new MultiReadMapper().instanceMain(args);
+  }
+
+}
@@ -5,6 +5,9 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 
@@ -12,7 +15,9 @@ import com.beust.jcommander.Parameter;
 
 import org.jtransforms.fft.FloatFFT_1D;
 import edu.unc.genomics.CommandLineTool;
+import edu.unc.genomics.CommandLineToolException;
 import edu.unc.genomics.Interval;
+import edu.unc.genomics.OrderedExecutor;
 import edu.unc.genomics.ReadablePathValidator;
 import edu.unc.genomics.io.IntervalFileReader;
 import edu.unc.genomics.io.WigFileReader;
@@ -22,6 +27,12 @@ import edu.unc.utils.FFTUtils;
 /**
  * Computes the normalized power spectrum of intervals of (Big)Wig data
  * 
+ * With --welch, the spectrum of each interval is the average of the spectra of
+ * overlapping (Hann-windowed) segments of the given length (Welch's method).
+ * Without a loci file, Welch spectra are computed for each whole chromosome,
+ * reading the data in chunks. Intervals are processed in parallel and written
+ * in order.
+ * 
  * @author timpalpant
  *
  */
@@ -31,64 +42,296 @@ public class PowerSpectrum extends CommandLineTool {
 
   @Parameter(names = { "-i", "--input" }, description = "Input file (Wig)", required = true, validateWith = ReadablePathValidator.class)
   public Path inputFile;
-  @Parameter(names = { "-l", "--loci" }, description = "Genomic loci (Bed format)", required = true, validateWith = ReadablePathValidator.class)
+  @Parameter(names = { "-l", "--loci" }, description = "Genomic loci (Bed format, default = whole chromosomes with --welch)", validateWith = ReadablePathValidator.class)
   public Path lociFile;
   @Parameter(names = { "-m", "--max" }, description = "Only output this many frequencies")
   public int max = 40;
+  @Parameter(names = { "-w", "--welch" }, description = "Average the spectra of overlapping segments of this length (bp)")
+  public Integer segmentLength;
+  @Parameter(names = { "-z", "--pad" }, description = "Zero-pad transforms to a power of 2")
+  public boolean pad = false;
+  @Parameter(names = { "-p", "--threads" }, description = "Number of threads to use")
+  public int nThreads = 1;
   @Parameter(names = { "-o", "--output" }, description = "Output file (tabular)", required = true)
   public Path outputFile;
 
+  /**
+   * Work arrays for transforms, reused by each thread
+   */
+  private static final ThreadLocal<float[]> work = new ThreadLocal<float[]>() {
+    @Override
+    protected float[] initialValue() {
+      return new float[0];
+    }
+  };
+
+  private WigFileReader wig;
+  private int skipped = 0;
+
   public void run() throws IOException {
-    try (WigFileReader wig = WigFileReader.autodetect(inputFile);
-        IntervalFileReader<? extends Interval> loci = IntervalFileReader.autodetect(lociFile);
+    if (segmentLength != null && segmentLength < 2) {
+      throw new CommandLineToolException("Welch segment length must be >= 2");
+    }
+    if (lociFile == null && segmentLength == null) {
+      throw new CommandLineToolException("Must specify loci (-l) or a Welch segment length (-w)");
+    }
+
+    try (WigFileReader reader = WigFileReader.autodetect(inputFile);
         BufferedWriter writer = Files.newBufferedWriter(outputFile, Charset.defaultCharset())) {
+      wig = reader;
       // Write header
       writer.write("#chr\tlow\thigh\tid\talignment\tstrand\tPower Spectrum Values");
       writer.newLine();
 
       log.debug("Computing power spectrum for each window");
-      int skipped = 0;
-      for (Interval interval : loci) {
-        float[] data;
-        try {
-          data = wig.query(interval).getValues();
-        } catch (IOException | WigFileException e) {
-          log.debug("Skipping interval: " + interval);
-          skipped++;
-          continue;
+      if (lociFile != null) {
+        try (IntervalFileReader<? extends Interval> loci = IntervalFileReader.autodetect(lociFile)) {
+          computeAll(loci.iterator(), writer);
         }
+      } else {
+        computeAll(new ChromosomeIterator(), writer);
+      }
 
-        if (interval.length() > 1) {
-          // Compute the power spectrum
-          FloatFFT_1D fft = new FloatFFT_1D(data.length);
-          fft.realForward(data);
-          float[] ps = FFTUtils.abs2(data);
-          // and normalize the power spectrum
-          float sum = 0;
-          for (int i = 1; i < ps.length; i++) {
-            sum += ps[i];
-          }
-          for (int i = 1; i < ps.length; i++) {
-            ps[i] /= sum;
-          }
+      log.info("Skipped " + skipped + " intervals");
+    }
+  }
 
-          writer.write(interval.toBed());
-          for (int i = 1; i < Math.min(ps.length, max); i++) {
-            writer.write("\t" + ps[i]);
+  /**
+   * Compute the spectra of the intervals on a thread pool, writing them in
+   * order
+   */
+  private void computeAll(Iterator<? extends Interval> intervals, final BufferedWriter writer) throws IOException {
+    try (OrderedExecutor<Spectrum> executor = new OrderedExecutor<Spectrum>(nThreads) {
+      @Override
+      protected void handle(Spectrum spectrum) throws IOException {
+        write(spectrum, writer);
+      }
+    }) {
+      while (intervals.hasNext()) {
+        final Interval interval = intervals.next();
+        executor.submit(new Callable<Spectrum>() {
+          @Override
+          public Spectrum call() {
+            return compute(interval);
           }
-          writer.newLine();
-        } else {
-          skipped++;
-          writer.write(interval.toBed());
-          writer.newLine();
+        });
+      }
+      executor.finish();
+    }
+  }
+
+  private void write(Spectrum spectrum, BufferedWriter writer) throws IOException {
+    if (spectrum.ps == null) {
+      skipped++;
+      if (!spectrum.hasData) {
+        log.debug("Skipping interval: " + spectrum.interval);
+        return;
+      }
+    }
+
+    writer.write(spectrum.interval.toBed());
+    if (spectrum.ps != null) {
+      for (int i = 1; i < Math.min(spectrum.ps.length, max); i++) {
+        writer.write("\t" + spectrum.ps[i]);
+      }
+    }
+    writer.newLine();
+  }
+
+  private static class Spectrum {
+    final Interval interval;
+    final boolean hasData;
+    final float[] ps;
+
+    Spectrum(Interval interval, boolean hasData, float[] ps) {
+      this.interval = interval;
+      this.hasData = hasData;
+      this.ps = ps;
+    }
+  }
+
+  /**
+   * Compute the normalized power spectrum of an interval
+   */
+  private Spectrum compute(Interval interval) {
+    if (segmentLength != null) {
+      return computeWelch(interval);
+    }
+
+    float[] data;
+    try {
+      data = wig.query(interval).getValues();
+    } catch (IOException | WigFileException e) {
+      return new Spectrum(interval, false, null);
+    }
+
+    if (interval.length() <= 1) {
+      return new Spectrum(interval, true, null);
+    }
+
+    // Compute the power spectrum
+    int n = pad ? FFTUtils.nextPowerOf2(data.length) : data.length;
+    float[] f = getWork(n);
+    System.arraycopy(data, 0, f, 0, data.length);
+    FFTUtils.getFloatFFT(n).realForward(f);
+    return new Spectrum(interval, true, normalize(FFTUtils.abs2(f, n)));
+  }
+
+  /**
+   * Compute the average power spectrum of the segments of an interval, reading
+   * the data in chunks
+   */
+  private Spectrum computeWelch(Interval interval) {
+    WelchAccumulator welch = new WelchAccumulator(segmentLength, pad);
+    int bp = interval.low();
+    while (bp <= interval.high()) {
+      int chunkStop = Math.min(bp + DEFAULT_CHUNK_SIZE - 1, interval.high());
+      try {
+        welch.add(wig.query(interval.getChr(), bp, chunkStop).getValues());
+      } catch (IOException | WigFileException e) {
+        return new Spectrum(interval, false, null);
+      }
+      bp = chunkStop + 1;
+    }
+
+    if (welch.getNumSegments() == 0) {
+      return new Spectrum(interval, true, null);
+    }
+    log.debug("Averaged " + welch.getNumSegments() + " segments for " + interval);
+    return new Spectrum(interval, true, normalize(welch.getPowerSpectrum()));
+  }
+
+  /**
+   * Normalize the power spectrum (excluding the DC component) to sum to 1
+   */
+  private static float[] normalize(float[] ps) {
+    float sum = 0;
+    for (int i = 1; i < ps.length; i++) {
+      sum += ps[i];
+    }
+    for (int i = 1; i < ps.length; i++) {
+      ps[i] /= sum;
+    }
+    return ps;
+  }
+
+  /**
+   * @return this thread's work array, with its first n values zeroed
+   */
+  private static float[] getWork(int n) {
+    float[] f = work.get();
+    if (f.length < n) {
+      f = new float[n];
+      work.set(f);
+    } else {
+      Arrays.fill(f, 0, n, 0);
+    }
+    return f;
+  }
+
+  /**
+   * Accumulates the average power spectrum of overlapping segments of a stream
+   * of data (Welch's method). Segments overlap by 50%, are mean-centered, and
+   * are tapered with a Hann window. Segments with missing data are skipped.
+   */
+  private static class WelchAccumulator {
+
+    private final int length;
+    private final int hop;
+    private final int n;
+    private final float[] taper;
+    private final float[] segment;
+    private final double[] sum;
+    private int fill = 0;
+    private int nSegments = 0;
+
+    WelchAccumulator(int length, boolean pad) {
+      this.length = length;
+      hop = Math.max(length / 2, 1);
+      n = pad ? FFTUtils.nextPowerOf2(length) : length;
+      taper = new float[length];
+      for (int i = 0; i < length; i++) {
+        taper[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / length));
+      }
+      segment = new float[length];
+      sum = new double[n / 2 + 1];
+    }
+
+    void add(float[] data) {
+      int i = 0;
+      while (i < data.length) {
+        int count = Math.min(length - fill, data.length - i);
+        System.arraycopy(data, i, segment, fill, count);
+        fill += count;
+        i += count;
+        if (fill == length) {
+          addSegment();
+          System.arraycopy(segment, hop, segment, 0, length - hop);
+          fill = length - hop;
         }
       }
+    }
 
-      log.info("Skipped " + skipped + " intervals");
+    private void addSegment() {
+      double mean = 0;
+      for (int i = 0; i < length; i++) {
+        mean += segment[i];
+      }
+      mean /= length;
+      if (Double.isNaN(mean)) {
+        return;
+      }
+
+      float[] f = getWork(n);
+      for (int i = 0; i < length; i++) {
+        f[i] = (float) (segment[i] - mean) * taper[i];
+      }
+      FloatFFT_1D fft = FFTUtils.getFloatFFT(n);
+      fft.realForward(f);
+      float[] ps = FFTUtils.abs2(f, n);
+      for (int k = 0; k < ps.length; k++) {
+        sum[k] += ps[k];
+      }
+      nSegments++;
+    }
+
+    int getNumSegments() {
+      return nSegments;
+    }
+
+    float[] getPowerSpectrum() {
+      float[] ps = new float[sum.length];
+      for (int k = 0; k < ps.length; k++) {
+        ps[k] = (float) (sum[k] / nSegments);
+      }
+      return ps;
+    }
+  }
+
+  /**
+   * Iterates over the extents of each chromosome in the Wig file
+   */
+  private class ChromosomeIterator implements Iterator<Interval> {
+
+    private final Iterator<String> chromosomes = wig.chromosomes().iterator();
+
+    @Override
+    public boolean hasNext() {
+      return chromosomes.hasNext();
+    }
+
+    @Override
+    public Interval next() {
+      return wig.getChrExtents(chromosomes.next());
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
     }
   }
 
   public static void main(String[] args) {
     new PowerSpectrum().instanceMain(args);
   }
-}
\ No newline at end of file
+}
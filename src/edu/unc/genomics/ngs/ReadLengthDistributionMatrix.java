@@ -1,20 +1,37 @@
 package edu.unc.genomics.ngs;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 
 import com.beust.jcommander.Parameter;
 
 import edu.unc.genomics.CommandLineTool;
+import edu.unc.genomics.CommandLineToolException;
 import edu.unc.genomics.Interval;
+import edu.unc.genomics.ParallelBAMFileReader;
 import edu.unc.genomics.ReadablePathValidator;
+import edu.unc.genomics.SAMEntry;
 import edu.unc.genomics.io.IntervalFileReader;
 
 /**
@@ -22,7 +39,22 @@ import edu.unc.genomics.io.IntervalFileReader;
  * See Floer M, et al. (2010) A RSC/nucleosome complex determines chromatin
  * architecture and facilitates activator binding. Cell 141: 407-418 for
  * examples.
- * 
+ *
+ * Only the extent and length bin of each read is stored, and each row of the
+ * matrix is reconstructed when it is written, so memory scales with the number
+ * of reads rather than the size of the matrix.
+ *
+ * With --loci, a matrix is computed for every locus in a single pass through
+ * the (sorted) reads, and all matrices are written to one output file, either
+ * as consecutive text matrices or in a compact binary format (run-length
+ * encoded rows). Output files ending in .gz are compressed.
+ *
+ * The binary format is (big-endian): the magic number 0x524C444D ("RLDM"),
+ * format version, min, max, bin size and number of length bins as ints,
+ * followed by one record per locus: name, chr (modified UTF-8), start and stop
+ * (ints), then for each length bin in increasing order, the number of runs
+ * and (run length, value) pairs as ints.
+ *
  * @author timpalpant
  *
  */
@@ -30,14 +62,19 @@ public class ReadLengthDistributionMatrix extends CommandLineTool {
 
   private static final Logger log = Logger.getLogger(ReadLengthDistributionMatrix.class);
 
+  public static final int BINARY_MAGIC = 0x524C444D;
+  public static final int BINARY_VERSION = 1;
+
   @Parameter(names = { "-i", "--input" }, description = "Input file (reads)", required = true, validateWith = ReadablePathValidator.class)
   public Path intervalFile;
-  @Parameter(names = { "-c", "--chr" }, description = "Chromosome", required = true)
+  @Parameter(names = { "-c", "--chr" }, description = "Chromosome")
   public String chr;
-  @Parameter(names = { "-s", "--start" }, description = "Start base pair", required = true)
-  public int start;
-  @Parameter(names = { "-e", "--stop" }, description = "Stop base pair", required = true)
-  public int stop;
+  @Parameter(names = { "-s", "--start" }, description = "Start base pair")
+  public Integer start;
+  @Parameter(names = { "-e", "--stop" }, description = "Stop base pair")
+  public Integer stop;
+  @Parameter(names = { "-r", "--loci" }, description = "Loci file (Bed) to compute a matrix for each locus (instead of -c/-s/-e)", validateWith = ReadablePathValidator.class)
+  public Path lociFile;
   @Parameter(names = { "-m", "--min" }, description = "Minimum fragment length bin (bp)")
   public int min = 1;
   @Parameter(names = { "-l", "--max" }, description = "Maximum fragment length bin (bp)")
@@ -46,22 +83,48 @@ public class ReadLengthDistributionMatrix extends CommandLineTool {
   public int binSize = 1;
   @Parameter(names = { "-o", "--output" }, description = "Matrix output file (tabular)", required = true)
   public Path outputFile;
+  @Parameter(names = { "-f", "--format" }, description = "Matrix output format with --loci (text/binary)")
+  public String format = "text";
   @Parameter(names = { "-p", "--pileup" }, description = "Pileup output file (tabular)")
   public Path pileupFile;
+  @Parameter(names = { "-j", "--inflaters" }, description = "Number of threads for inflating BAM input (0 = inflate on the main thread)")
+  public int inflaterThreads = 0;
+
+  private int histLength;
+  private int skipped = 0;
 
   @Override
   public void run() throws IOException {
-    int regionLength = stop - start + 1;
     int lengthRange = max - min + 1;
-    int histLength = lengthRange / binSize;
+    histLength = lengthRange / binSize;
     if (histLength * binSize != lengthRange) {
       histLength++;
     }
 
+    if (lociFile != null) {
+      if (chr != null || start != null || stop != null || pileupFile != null) {
+        throw new CommandLineToolException("Cannot specify a single region (-c/-s/-e) or pileup (-p) with --loci");
+      }
+      if (!format.equalsIgnoreCase("text") && !format.equalsIgnoreCase("binary")) {
+        throw new CommandLineToolException("Unknown output format: " + format);
+      }
+      runLoci();
+    } else {
+      if (chr == null || start == null || stop == null) {
+        throw new CommandLineToolException("Must specify a region (-c/-s/-e) or loci file (--loci)");
+      }
+      runRegion();
+    }
+
+    log.info("Skipped " + skipped + " reads with length outside range");
+  }
+
+  /**
+   * Compute the matrix for a single region
+   */
+  private void runRegion() throws IOException {
     log.debug("Binning reads by genomic location and length");
-    int[][] counts = new int[histLength][regionLength];
-    int[] pileup = new int[regionLength];
-    int skipped = 0;
+    LocusMatrix matrix = new LocusMatrix(new Interval(chr, start, stop));
     try (IntervalFileReader<? extends Interval> reader = IntervalFileReader.autodetect(intervalFile)) {
       Iterator<? extends Interval> reads = reader.query(chr, start, stop);
       while (reads.hasNext()) {
@@ -70,49 +133,358 @@ public class ReadLengthDistributionMatrix extends CommandLineTool {
           skipped++;
           continue;
         }
-        int bin = (read.length() - min) / binSize;
-        int intersectStart = Math.max(read.getStart(), start);
-        int intersectStop = Math.min(read.getStop(), stop);
-        for (int i = intersectStart; i <= intersectStop; i++) {
-          counts[bin][i - start]++;
-          pileup[i - start]++;
-        }
+        matrix.add(read);
       }
     }
 
-    log.info("Skipped " + skipped + " reads with length outside range");
-
     // Write to output in matrix2png format
     try (BufferedWriter writer = Files.newBufferedWriter(outputFile, Charset.defaultCharset())) {
+      matrix.writeText(writer, chr);
+    }
+
+    // Write to output in DataGraph format
+    if (pileupFile != null) {
+      int[] pileup = matrix.getPileup();
+      try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(pileupFile, Charset.defaultCharset()))) {
+        // Header line
+        writer.println("Pos\tValue");
+
+        for (int i = 0; i < pileup.length; i++) {
+          writer.println((start + i) + "\t" + pileup[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Compute the matrix for every locus in a single pass through the reads,
+   * writing each locus as soon as the reads have passed it
+   */
+  private void runLoci() throws IOException {
+    log.debug("Loading loci");
+    Map<String, List<LocusMatrix>> loci = new HashMap<>();
+    try (IntervalFileReader<? extends Interval> reader = IntervalFileReader.autodetect(lociFile)) {
+      for (Interval locus : reader) {
+        if (!loci.containsKey(locus.getChr())) {
+          loci.put(locus.getChr(), new ArrayList<LocusMatrix>());
+        }
+        loci.get(locus.getChr()).add(new LocusMatrix(locus));
+      }
+    }
+    for (List<LocusMatrix> chrLoci : loci.values()) {
+      Collections.sort(chrLoci, new Comparator<LocusMatrix>() {
+        @Override
+        public int compare(LocusMatrix m1, LocusMatrix m2) {
+          return Integer.compare(m1.locus.low(), m2.locus.low());
+        }
+      });
+    }
+
+    OutputStream out = new BufferedOutputStream(Files.newOutputStream(outputFile));
+    if (outputFile.getFileName().toString().endsWith(".gz")) {
+      out = new GZIPOutputStream(out);
+    }
+    MatrixWriter matrixWriter;
+    if (format.equalsIgnoreCase("binary")) {
+      matrixWriter = new BinaryMatrixWriter(out);
+    } else {
+      matrixWriter = new TextMatrixWriter(out);
+    }
+    try (MatrixWriter writer = matrixWriter;
+        IntervalFileReader<? extends Interval> reader = ParallelBAMFileReader.autodetect(intervalFile, inflaterThreads)) {
+      log.debug("Binning reads by genomic location and length");
+      Set<String> seen = new HashSet<>();
+      List<LocusMatrix> chrLoci = Collections.emptyList();
+      List<LocusMatrix> active = new ArrayList<>();
+      int nextLocus = 0;
+      String currentChr = null;
+      int lastStart = Integer.MIN_VALUE;
+      for (Interval read : reader) {
+        if (!read.getChr().equals(currentChr)) {
+          // Write the remaining loci on the previous chromosome
+          for (LocusMatrix m : active) {
+            writer.write(m);
+          }
+          for (LocusMatrix m : chrLoci.subList(nextLocus, chrLoci.size())) {
+            writer.write(m);
+          }
+          active.clear();
+
+          currentChr = read.getChr();
+          if (!seen.add(currentChr)) {
+            throw new CommandLineToolException("Reads file is not sorted (reads for " + currentChr
+                + " are not contiguous)");
+          }
+          chrLoci = loci.containsKey(currentChr) ? loci.get(currentChr) : Collections.<LocusMatrix> emptyList();
+          nextLocus = 0;
+          lastStart = Integer.MIN_VALUE;
+        }
+
+        // Sorted BAM files are ordered by alignment start, but paired-end
+        // entries span the whole fragment, so they may begin before it
+        int sortKey = (read instanceof SAMEntry) ? ((SAMEntry) read).getAlignmentStart() : read.low();
+        if (sortKey < lastStart) {
+          throw new CommandLineToolException("Reads file is not sorted (" + read + " follows a read starting at "
+              + lastStart + ")");
+        }
+        lastStart = sortKey;
+
+        // Counted reads are at most max bp long, so no later read can overlap
+        // a locus that ends more than max bp before this read's sort position
+        Iterator<LocusMatrix> it = active.iterator();
+        while (it.hasNext()) {
+          LocusMatrix m = it.next();
+          if (m.locus.high() < sortKey - max) {
+            writer.write(m);
+            it.remove();
+          }
+        }
+
+        if (read.length() < min || read.length() > max) {
+          skipped++;
+          continue;
+        }
+
+        while (nextLocus < chrLoci.size() && chrLoci.get(nextLocus).locus.low() <= read.high()) {
+          active.add(chrLoci.get(nextLocus++));
+        }
+        for (LocusMatrix m : active) {
+          m.add(read);
+        }
+      }
+
+      for (LocusMatrix m : active) {
+        writer.write(m);
+      }
+      for (LocusMatrix m : chrLoci.subList(nextLocus, chrLoci.size())) {
+        writer.write(m);
+      }
+
+      // Loci on chromosomes without any reads
+      for (Map.Entry<String, List<LocusMatrix>> entry : loci.entrySet()) {
+        if (!seen.contains(entry.getKey())) {
+          for (LocusMatrix m : entry.getValue()) {
+            writer.write(m);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Holds the extent and length bin of the reads that overlap a locus, and
+   * reconstructs the rows of the matrix from them
+   */
+  private class LocusMatrix {
+
+    final Interval locus;
+    final int regionLength;
+    int[] bins = new int[16];
+    int[] starts = new int[16];
+    int[] stops = new int[16];
+    int n = 0;
+
+    LocusMatrix(Interval locus) {
+      this.locus = locus;
+      regionLength = locus.high() - locus.low() + 1;
+    }
+
+    /**
+     * Add a read (with length in [min, max]) to this locus if it overlaps. As
+     * before, the read's start and stop are used as-is, so reads with start >
+     * stop never overlap
+     */
+    void add(Interval read) {
+      int intersectStart = Math.max(read.getStart(), locus.low());
+      int intersectStop = Math.min(read.getStop(), locus.high());
+      if (intersectStart > intersectStop) {
+        return;
+      }
+
+      if (n == bins.length) {
+        bins = Arrays.copyOf(bins, 2 * n);
+        starts = Arrays.copyOf(starts, 2 * n);
+        stops = Arrays.copyOf(stops, 2 * n);
+      }
+      bins[n] = (read.length() - min) / binSize;
+      starts[n] = intersectStart - locus.low();
+      stops[n] = intersectStop - locus.low();
+      n++;
+    }
+
+    String getName() {
+      return (locus.getId() != null) ? locus.getId() : locus.getChr();
+    }
+
+    /**
+     * @return the indices of the reads in each length bin
+     */
+    int[][] groupByBin() {
+      int[] sizes = new int[histLength];
+      for (int i = 0; i < n; i++) {
+        sizes[bins[i]]++;
+      }
+      int[][] groups = new int[histLength][];
+      for (int b = 0; b < histLength; b++) {
+        groups[b] = new int[sizes[b]];
+      }
+      Arrays.fill(sizes, 0);
+      for (int i = 0; i < n; i++) {
+        groups[bins[i]][sizes[bins[i]]++] = i;
+      }
+      return groups;
+    }
+
+    /**
+     * Record +1/-1 at the boundaries of each read, then take the cumulative sum
+     * so that the cost scales with the number of reads rather than bases
+     */
+    int[] getRow(int[] reads, int[] row) {
+      Arrays.fill(row, 0);
+      for (int i : reads) {
+        row[starts[i]]++;
+        row[stops[i] + 1]--;
+      }
+      cumsum(row);
+      return row;
+    }
+
+    int[] getPileup() {
+      int[] all = new int[n];
+      for (int i = 0; i < n; i++) {
+        all[i] = i;
+      }
+      return Arrays.copyOf(getRow(all, new int[regionLength + 1]), regionLength);
+    }
+
+    /**
+     * Write this matrix in matrix2png format
+     */
+    void writeText(BufferedWriter writer, String name) throws IOException {
       // Header line
-      writer.write(chr);
-      for (int bp = start; bp <= stop; bp++) {
+      writer.write(name);
+      for (int bp = locus.low(); bp <= locus.high(); bp++) {
         writer.write("\t" + bp);
       }
 
+      int[][] groups = groupByBin();
+      int[] row = new int[regionLength + 1];
       for (int i = histLength - 1; i >= 0; i--) {
+        getRow(groups[i], row);
         writer.newLine();
         writer.write(String.valueOf(min + i * binSize));
         for (int j = 0; j < regionLength; j++) {
-          writer.write("\t" + counts[i][j]);
+          writer.write("\t" + row[j]);
         }
       }
     }
 
-    // Write to output in DataGraph format
-    if (pileupFile != null) {
-      try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(pileupFile, Charset.defaultCharset()))) {
-        // Header line
-        writer.println("Pos\tValue");
+    /**
+     * Write this matrix with run-length encoded rows
+     */
+    void writeBinary(DataOutputStream out) throws IOException {
+      out.writeUTF(getName());
+      out.writeUTF(locus.getChr());
+      out.writeInt(locus.low());
+      out.writeInt(locus.high());
 
-        for (int i = 0; i < regionLength; i++) {
-          writer.println((start + i) + "\t" + pileup[i]);
+      int[][] groups = groupByBin();
+      int[] row = new int[regionLength + 1];
+      int[] runs = new int[2 * regionLength];
+      for (int i = 0; i < histLength; i++) {
+        getRow(groups[i], row);
+        int nRuns = 0;
+        int j = 0;
+        while (j < regionLength) {
+          int k = j + 1;
+          while (k < regionLength && row[k] == row[j]) {
+            k++;
+          }
+          runs[2 * nRuns] = k - j;
+          runs[2 * nRuns + 1] = row[j];
+          nRuns++;
+          j = k;
+        }
+
+        out.writeInt(nRuns);
+        for (int r = 0; r < 2 * nRuns; r++) {
+          out.writeInt(runs[r]);
         }
       }
     }
   }
 
+  private interface MatrixWriter extends AutoCloseable {
+    void write(LocusMatrix m) throws IOException;
+
+    @Override
+    void close() throws IOException;
+  }
+
+  /**
+   * Writes consecutive matrices in matrix2png format, separated by blank lines
+   */
+  private class TextMatrixWriter implements MatrixWriter {
+
+    private final BufferedWriter writer;
+    private boolean first = true;
+
+    TextMatrixWriter(OutputStream out) {
+      writer = new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()));
+    }
+
+    @Override
+    public void write(LocusMatrix m) throws IOException {
+      if (!first) {
+        writer.newLine();
+        writer.newLine();
+      }
+      first = false;
+      m.writeText(writer, m.getName());
+    }
+
+    @Override
+    public void close() throws IOException {
+      writer.newLine();
+      writer.close();
+    }
+  }
+
+  private class BinaryMatrixWriter implements MatrixWriter {
+
+    private final DataOutputStream out;
+
+    BinaryMatrixWriter(OutputStream out) throws IOException {
+      this.out = new DataOutputStream(out);
+      this.out.writeInt(BINARY_MAGIC);
+      this.out.writeInt(BINARY_VERSION);
+      this.out.writeInt(min);
+      this.out.writeInt(max);
+      this.out.writeInt(binSize);
+      this.out.writeInt(histLength);
+    }
+
+    @Override
+    public void write(LocusMatrix m) throws IOException {
+      m.writeBinary(out);
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Replace the boundary events in x with their cumulative sum (in place)
+   */
+  private static void cumsum(int[] x) {
+    for (int i = 1; i < x.length; i++) {
+      x[i] += x[i - 1];
+    }
+  }
+
   public static void main(String[] args) {
     new ReadLengthDistributionMatrix().instanceMain(args);
   }
-}
\ No newline at end of file
+}
@@ -1,11 +1,8 @@
 package edu.unc.genomics.ngs;
 
-import java.io.IOException;
-import java.util.Iterator;
-
+import edu.unc.genomics.ChunkAccumulator;
 import edu.unc.genomics.Interval;
 import edu.unc.genomics.ReadMapperTool;
-import edu.unc.genomics.io.IntervalFileReader;
 
 /**
  * Creates a new Wig file with the mean read length of reads covering each base
@@ -17,35 +14,57 @@ import edu.unc.genomics.io.IntervalFileReader;
 public class RollingReadLength extends ReadMapperTool {
 
   @Override
-  public float[] compute(IntervalFileReader<? extends Interval> reader, Interval chunk) throws IOException {
-    int[] sum = new int[chunk.length()];
-    int[] count = new int[chunk.length()];
+  public ChunkAccumulator newAccumulator(Interval chunk) {
+    return new ReadLengthAccumulator(chunk);
+  }
+
+  /**
+   * Records the boundaries of each read, then takes the cumulative sums
+   */
+  private static class ReadLengthAccumulator extends ChunkAccumulator {
+
+    private final long[] sumDelta;
+    private final int[] countDelta;
 
-    Iterator<? extends Interval> it = reader.query(chunk);
-    while (it.hasNext()) {
-      Interval entry = it.next();
+    public ReadLengthAccumulator(Interval chunk) {
+      super(chunk);
+      sumDelta = new long[chunk.length() + 1];
+      countDelta = new int[chunk.length() + 1];
+    }
+
+    @Override
+    public void add(Interval entry) {
       int entryStart = Math.max(entry.low(), chunk.getStart());
       int entryStop = Math.min(entry.high(), chunk.getStop());
-      for (int i = entryStart; i <= entryStop; i++) {
-        sum[i - chunk.getStart()] += entry.length();
-        count[i - chunk.getStart()]++;
+      if (entryStart <= entryStop) {
+        sumDelta[entryStart - chunk.getStart()] += entry.length();
+        sumDelta[entryStop - chunk.getStart() + 1] -= entry.length();
+        countDelta[entryStart - chunk.getStart()]++;
+        countDelta[entryStop - chunk.getStart() + 1]--;
       }
     }
 
-    // Calculate the average at each base pair
-    float[] avg = new float[chunk.length()];
-    for (int i = 0; i < avg.length; i++) {
-      if (count[i] == 0) {
-        avg[i] = Float.NaN;
-      } else {
-        avg[i] = ((float) sum[i]) / count[i];
+    @Override
+    public float[] getValues() {
+      // Calculate the average at each base pair
+      float[] avg = new float[chunk.length()];
+      long sum = 0;
+      int count = 0;
+      for (int i = 0; i < avg.length; i++) {
+        sum += sumDelta[i];
+        count += countDelta[i];
+        if (count == 0) {
+          avg[i] = Float.NaN;
+        } else {
+          avg[i] = ((float) sum) / count;
+        }
       }
-    }
 
-    return avg;
+      return avg;
+    }
   }
 
   public static void main(String[] args) {
     new RollingReadLength().instanceMain(args);
   }
-}
\ No newline at end of file
+}
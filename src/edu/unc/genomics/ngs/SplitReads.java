@@ -1,23 +1,41 @@
 package edu.unc.genomics.ngs;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.samtools.util.BlockCompressedOutputStream;
 
 import org.apache.log4j.Logger;
 
 import com.beust.jcommander.Parameter;
 
 import edu.unc.genomics.CommandLineTool;
+import edu.unc.genomics.CommandLineToolException;
 import edu.unc.genomics.Interval;
+import edu.unc.genomics.ParallelBAMFileReader;
 import edu.unc.genomics.ReadablePathValidator;
 import edu.unc.genomics.io.IntervalFileReader;
-import edu.unc.genomics.io.IntervalFileWriter;
 
 /**
  * This tool splits sequencing reads into bins
- * 
+ *
+ * Reads are assigned to bins round-robin (default), by a hash of the read id
+ * (so that mates and duplicates of a read end up in the same bin), or by
+ * position (consecutive blocks of equal size, so that each bin of a sorted
+ * input file covers a contiguous region of the genome). Each bin is formatted
+ * and written on its own thread, receiving reads from the reader in batches.
+ *
  * @author timpalpant
  *
  */
@@ -25,42 +43,182 @@ public class SplitReads extends CommandLineTool {
 
   private static final Logger log = Logger.getLogger(SplitReads.class);
 
+  /** The number of reads handed to a bin's writer thread at a time */
+  private static final int BATCH_SIZE = 4096;
+  /** The number of batches that can be waiting for each writer thread */
+  private static final int QUEUE_LENGTH = 8;
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final List<Interval> END = new ArrayList<>();
+  private static final String NEWLINE = System.lineSeparator();
+
   @Parameter(names = { "-i", "--input" }, required = true, description = "Input file", validateWith = ReadablePathValidator.class)
   public Path input;
   @Parameter(names = { "-b", "--bins" }, description = "Number of bins to split reads into")
   public int bins = 5;
+  @Parameter(names = { "-m", "--mode" }, description = "How to assign reads to bins (roundrobin/hash/position)")
+  public String mode = "roundrobin";
+  @Parameter(names = { "-z", "--bgzip" }, description = "Compress the output files with BGZF (appends .gz)")
+  public boolean bgzip = false;
   @Parameter(names = { "-o", "--output" }, description = "Output file")
   public Path output;
+  @Parameter(names = { "-j", "--inflaters" }, description = "Number of threads for inflating BAM input (0 = inflate on the main thread)")
+  public int inflaterThreads = 0;
 
   @Override
   public void run() throws IOException {
+    if (bins < 1) {
+      throw new CommandLineToolException("Must split reads into at least 1 bin");
+    }
+    mode = mode.toLowerCase();
+    if (!mode.equals("roundrobin") && !mode.equals("hash") && !mode.equals("position")) {
+      throw new CommandLineToolException("Unknown split mode: " + mode);
+    }
+
     // Prepare the outputs
-    String[] splitName = output.toString().split("\\.(?=[^\\.]+$)");
+    String[] splitName = output.getFileName().toString().split("\\.(?=[^\\.]+$)");
     String basename = splitName[0];
     String ext = splitName[1];
-    List<IntervalFileWriter<Interval>> writers = new ArrayList<>();
+    List<BinWriter> writers = new ArrayList<>();
     try {
       for (int i = 0; i < bins; i++) {
-        Path outFile = output.resolve(basename + '.' + i + '.' + ext);
-        IntervalFileWriter<Interval> writer = new IntervalFileWriter<>(outFile);
+        Path outFile = output.resolveSibling(basename + '.' + i + '.' + ext + (bgzip ? ".gz" : ""));
+        BinWriter writer = new BinWriter(outFile);
         writers.add(writer);
+        writer.start();
       }
 
-      try (IntervalFileReader<? extends Interval> reader = IntervalFileReader.autodetect(input)) {
-        int current = 0;
-        int count = 0;
+      try (IntervalFileReader<? extends Interval> reader = ParallelBAMFileReader.autodetect(input, inflaterThreads)) {
+        long total = mode.equals("position") ? reader.count() : 0;
+        List<List<Interval>> batches = new ArrayList<>();
+        for (int i = 0; i < bins; i++) {
+          batches.add(new ArrayList<Interval>(BATCH_SIZE));
+        }
+
+        long count = 0;
         for (Interval interval : reader) {
-          writers.get(current).write(interval);
-          current++;
-          current %= bins;
+          int bin;
+          switch (mode) {
+          case "hash":
+            bin = getHashBin(interval);
+            break;
+          case "position":
+            bin = (int) Math.min(count * bins / Math.max(total, 1), bins - 1);
+            break;
+          default:
+            bin = (int) (count % bins);
+          }
+
+          List<Interval> batch = batches.get(bin);
+          batch.add(interval);
+          if (batch.size() == BATCH_SIZE) {
+            writers.get(bin).put(batch);
+            batches.set(bin, new ArrayList<Interval>(BATCH_SIZE));
+          }
+
           if (++count % 1_000_000 == 0) {
             log.debug("Processed " + count + " reads.");
           }
         }
+
+        for (int i = 0; i < bins; i++) {
+          writers.get(i).put(batches.get(i));
+        }
+      }
+
+      for (BinWriter writer : writers) {
+        writer.finish();
       }
     } finally {
-      for (IntervalFileWriter<Interval> writer : writers) {
-        writer.close();
+      for (BinWriter writer : writers) {
+        writer.interrupt();
+      }
+    }
+  }
+
+  /**
+   * Hash on the read id so that reads with the same name (mates, duplicates)
+   * are put into the same bin, independent of the order of the input
+   */
+  private int getHashBin(Interval interval) {
+    String key = (interval.getId() != null) ? interval.getId() : interval.toString();
+    int h = key.hashCode();
+    // Spread the bits of String.hashCode, which are poorly mixed for similar
+    // read names
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return (h & Integer.MAX_VALUE) % bins;
+  }
+
+  /**
+   * Formats and writes the reads for one bin on its own thread
+   */
+  private static class BinWriter extends Thread {
+
+    private final Path p;
+    private final Writer writer;
+    private final BlockingQueue<List<Interval>> queue = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+    private volatile Throwable error;
+
+    BinWriter(Path p) throws IOException {
+      super("SplitReads writer " + p.getFileName());
+      this.p = p;
+      OutputStream out;
+      if (p.getFileName().toString().endsWith(".gz")) {
+        out = new BlockCompressedOutputStream(p.toFile());
+      } else {
+        out = new BufferedOutputStream(Files.newOutputStream(p), BUFFER_SIZE);
+      }
+      writer = new OutputStreamWriter(out, Charset.defaultCharset());
+    }
+
+    /**
+     * Hand a batch of reads to the writer thread, waiting if it is behind
+     */
+    void put(List<Interval> batch) throws IOException {
+      checkError();
+      try {
+        while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+          checkError();
+        }
+      } catch (InterruptedException e) {
+        throw new CommandLineToolException("Interrupted while writing " + p, e);
+      }
+    }
+
+    /**
+     * Wait for all reads to be written and close the output file
+     */
+    void finish() throws IOException {
+      put(END);
+      try {
+        join();
+      } catch (InterruptedException e) {
+        throw new CommandLineToolException("Interrupted while writing " + p, e);
+      }
+      checkError();
+    }
+
+    private void checkError() throws IOException {
+      if (error != null) {
+        throw new IOException("Error writing " + p, error);
+      }
+    }
+
+    @Override
+    public void run() {
+      try (Writer w = writer) {
+        List<Interval> batch;
+        while ((batch = queue.take()) != END) {
+          for (Interval interval : batch) {
+            w.write(interval.toOutput());
+            w.write(NEWLINE);
+          }
+        }
+      } catch (InterruptedException e) {
+        // Aborted
+      } catch (Throwable t) {
+        error = t;
       }
     }
   }
@@ -68,4 +226,4 @@ public class SplitReads extends CommandLineTool {
   public static void main(String[] args) {
     new SplitReads().instanceMain(args);
   }
-}
\ No newline at end of file
+}
@@ -2,7 +2,22 @@ package edu.unc.genomics.ngs;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.samtools.BAMIndex;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMSequenceRecord;
 
 import org.apache.log4j.Logger;
 
@@ -11,13 +26,25 @@ import com.beust.jcommander.Parameter;
 import edu.unc.genomics.CommandLineTool;
 import edu.unc.genomics.CommandLineToolException;
 import edu.unc.genomics.Interval;
+import edu.unc.genomics.ParallelBAMFileReader;
 import edu.unc.genomics.ReadablePathValidator;
+import edu.unc.genomics.io.BAMFileReader;
 import edu.unc.genomics.io.IntervalFileReader;
 import edu.unc.genomics.io.IntervalFileWriter;
+import edu.unc.utils.ReservoirSampler;
 
 /**
  * Randomly select N reads out of a total of M
- * 
+ *
+ * By default, the entries are counted and then selected in a second pass
+ * (selection sampling). With --reservoir, N entries are selected in a single
+ * pass and held in memory. With --fraction, each entry is selected
+ * independently with the given probability in a single pass. Indexed BAM files
+ * can be sampled one chromosome per thread, allocating the N entries to each
+ * chromosome in proportion to its number of reads.
+ *
+ * Entries are always written in the order they appear in the input file.
+ *
  * @author timpalpant
  *
  */
@@ -27,39 +54,260 @@ public class Subsample extends CommandLineTool {
 
   @Parameter(names = { "-i", "--input" }, required = true, description = "Input file", validateWith = ReadablePathValidator.class)
   public Path input;
-  @Parameter(names = { "-n", "--select" }, required = true, description = "Number of entries to select")
-  public int n;
+  @Parameter(names = { "-n", "--select" }, description = "Number of entries to select")
+  public Integer n;
+  @Parameter(names = { "-f", "--fraction" }, description = "Fraction of entries to select (instead of -n)")
+  public Double fraction;
+  @Parameter(names = { "-r", "--reservoir" }, description = "Select -n entries in a single pass (holds the selected entries in memory)")
+  public boolean reservoir = false;
+  @Parameter(names = { "-s", "--seed" }, description = "Random seed (for reproducible samples)")
+  public Long seed;
+  @Parameter(names = { "-p", "--threads" }, description = "Number of threads to sample indexed BAM chromosomes with")
+  public int nThreads = 1;
   @Parameter(names = { "-o", "--output" }, required = true, description = "Output file")
   public Path output;
+  @Parameter(names = { "-j", "--inflaters" }, description = "Number of threads for inflating BAM input (0 = inflate on the main thread)")
+  public int inflaterThreads = 0;
 
   @Override
   public void run() throws IOException {
-    try (IntervalFileReader<? extends Interval> reader = IntervalFileReader.autodetect(input);
+    if ((n == null) == (fraction == null)) {
+      throw new CommandLineToolException("Must specify either the number (-n) or fraction (-f) of entries to select");
+    }
+    if (n != null && n < 1) {
+      throw new CommandLineToolException("Must select at least 1 entry");
+    }
+    if (fraction != null && (fraction <= 0 || fraction > 1)) {
+      throw new CommandLineToolException("Fraction must be in (0, 1]");
+    }
+
+    Random rng = (seed != null) ? new Random(seed) : new Random();
+    try (IntervalFileReader<? extends Interval> reader = ParallelBAMFileReader.autodetect(input, inflaterThreads);
         IntervalFileWriter<Interval> writer = new IntervalFileWriter<>(output)) {
-      int nRemaining = reader.count();
-      log.info("Input file has " + nRemaining + " entries");
-      if (n >= reader.count()) {
-        throw new CommandLineToolException("Cannot select " + n + " entries from a file with " + nRemaining);
+      if (fraction != null) {
+        selectFraction(reader, writer, rng);
+      } else if (reservoir) {
+        selectReservoir(reader, writer, rng);
+      } else if (nThreads > 1 && (reader instanceof BAMFileReader || reader instanceof ParallelBAMFileReader)) {
+        selectByChromosome(writer, rng);
+      } else {
+        selectSequential(reader, writer, rng);
       }
+    }
+  }
 
-      // See http://eyalsch.wordpress.com/2010/04/01/random-sample/
-      // for a nice summary of different algorithms to randomly pick n entries
-      log.info("Randomly selecting " + n + " entries");
-      Random rng = new Random();
-      for (Interval entry : reader) {
-        if (n == 0) {
-          break;
-        } else if (rng.nextDouble() < ((double) n) / nRemaining) {
-          writer.write(entry);
-          n--;
+  /**
+   * Select each entry with probability fraction, drawing the number of entries
+   * to skip until the next selected entry from a geometric distribution
+   */
+  private void selectFraction(IntervalFileReader<? extends Interval> reader, IntervalFileWriter<Interval> writer,
+      Random rng) {
+    log.info("Randomly selecting " + (100 * fraction) + "% of entries");
+    long selected = 0;
+    long skip = nextSkip(rng);
+    for (Interval entry : reader) {
+      if (skip == 0) {
+        writer.write(entry);
+        selected++;
+        skip = nextSkip(rng);
+      } else {
+        skip--;
+      }
+    }
+    log.info("Selected " + selected + " entries");
+  }
+
+  private long nextSkip(Random rng) {
+    return (long) Math.floor(Math.log(1 - rng.nextDouble()) / Math.log(1 - fraction));
+  }
+
+  /**
+   * Select n entries in a single pass with reservoir sampling
+   */
+  private void selectReservoir(IntervalFileReader<? extends Interval> reader, IntervalFileWriter<Interval> writer,
+      Random rng) {
+    log.info("Randomly selecting " + n + " entries in a single pass");
+    ReservoirSampler<Interval> sampler = new ReservoirSampler<>(n, rng);
+    for (Interval entry : reader) {
+      sampler.add(entry);
+    }
+    log.info("Input file has " + sampler.getN() + " entries");
+    if (n >= sampler.getN()) {
+      throw new CommandLineToolException("Cannot select " + n + " entries from a file with " + sampler.getN());
+    }
+
+    for (Interval entry : sampler.getSample()) {
+      writer.write(entry);
+    }
+  }
+
+  /**
+   * Count the entries, then select n of them in a second pass
+   */
+  private void selectSequential(IntervalFileReader<? extends Interval> reader, IntervalFileWriter<Interval> writer,
+      Random rng) {
+    int nRemaining = reader.count();
+    log.info("Input file has " + nRemaining + " entries");
+    if (n >= nRemaining) {
+      throw new CommandLineToolException("Cannot select " + n + " entries from a file with " + nRemaining);
+    }
+
+    log.info("Randomly selecting " + n + " entries");
+    Iterator<Interval> it = new SelectionIterator(reader.iterator(), nRemaining, n, rng);
+    while (it.hasNext()) {
+      writer.write(it.next());
+    }
+  }
+
+  /**
+   * Selects k of the next nRemaining entries uniformly at random, in order. See
+   * http://eyalsch.wordpress.com/2010/04/01/random-sample/ for a nice summary
+   * of different algorithms to randomly pick k entries
+   */
+  private static class SelectionIterator implements Iterator<Interval> {
+
+    private final Iterator<? extends Interval> it;
+    private final Random rng;
+    private int nRemaining;
+    private int k;
+    private Interval next;
+
+    SelectionIterator(Iterator<? extends Interval> it, int nRemaining, int k, Random rng) {
+      this.it = it;
+      this.nRemaining = nRemaining;
+      this.k = k;
+      this.rng = rng;
+      advance();
+    }
+
+    private void advance() {
+      next = null;
+      while (next == null && k > 0 && it.hasNext()) {
+        Interval entry = it.next();
+        if (rng.nextDouble() < ((double) k) / nRemaining) {
+          next = entry;
+          k--;
         }
 
         nRemaining--;
       }
     }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Interval next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Interval entry = next;
+      advance();
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Allocate n entries to each chromosome in proportion to its number of reads
+   * (from the BAM index) and select each chromosome's entries on its own thread
+   */
+  private void selectByChromosome(IntervalFileWriter<Interval> writer, Random rng) throws IOException {
+    Map<String, Integer> counts = new LinkedHashMap<>();
+    Map<String, Integer> lengths = new LinkedHashMap<>();
+    long total = 0;
+    try (SAMFileReader samReader = new SAMFileReader(input.toFile())) {
+      if (!samReader.hasIndex()) {
+        throw new CommandLineToolException("Sampling BAM file by chromosome requires an index");
+      }
+      BAMIndex index = samReader.getIndex();
+      List<SAMSequenceRecord> sequences = samReader.getFileHeader().getSequenceDictionary().getSequences();
+      for (int i = 0; i < sequences.size(); i++) {
+        int count = index.getMetaData(i).getAlignedRecordCount();
+        counts.put(sequences.get(i).getSequenceName(), count);
+        lengths.put(sequences.get(i).getSequenceName(), sequences.get(i).getSequenceLength());
+        total += count;
+      }
+    }
+    log.info("Input file has " + total + " aligned entries");
+    if (n >= total) {
+      throw new CommandLineToolException("Cannot select " + n + " entries from a file with " + total);
+    }
+
+    // Largest remainder allocation
+    Map<String, Integer> allocation = new LinkedHashMap<>();
+    Map<String, Double> remainders = new LinkedHashMap<>();
+    int allocated = 0;
+    for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+      double quota = (double) n * entry.getValue() / total;
+      allocation.put(entry.getKey(), (int) quota);
+      remainders.put(entry.getKey(), quota - (int) quota);
+      allocated += (int) quota;
+    }
+    while (allocated < n) {
+      String best = null;
+      for (Map.Entry<String, Double> entry : remainders.entrySet()) {
+        if (best == null || entry.getValue() > remainders.get(best)) {
+          best = entry.getKey();
+        }
+      }
+      allocation.put(best, allocation.get(best) + 1);
+      remainders.put(best, -1.0);
+      allocated++;
+    }
+
+    log.info("Randomly selecting " + n + " entries with " + nThreads + " threads");
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+    List<Future<List<Interval>>> futures = new ArrayList<>();
+    try {
+      for (final String chr : allocation.keySet()) {
+        final int k = allocation.get(chr);
+        if (k == 0) {
+          continue;
+        }
+
+        // Seed each chromosome in order so that results are reproducible
+        final Random chrRng = new Random(rng.nextLong());
+        final int count = counts.get(chr);
+        final int length = lengths.get(chr);
+        futures.add(pool.submit(new Callable<List<Interval>>() {
+          @Override
+          public List<Interval> call() throws IOException {
+            log.debug("Selecting " + k + " entries from " + chr);
+            List<Interval> selected = new ArrayList<>(k);
+            try (IntervalFileReader<? extends Interval> chrReader = IntervalFileReader.autodetect(input)) {
+              Iterator<Interval> it = new SelectionIterator(chrReader.query(chr, 1, length), count, k, chrRng);
+              while (it.hasNext()) {
+                selected.add(it.next());
+              }
+            }
+            if (selected.size() < k) {
+              log.warn("Only selected " + selected.size() + " of " + k + " entries from " + chr);
+            }
+            return selected;
+          }
+        }));
+      }
+
+      for (Future<List<Interval>> f : futures) {
+        for (Interval entry : f.get()) {
+          writer.write(entry);
+        }
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      throw new CommandLineToolException(e);
+    } finally {
+      pool.shutdownNow();
+    }
   }
 
   public static void main(String[] args) {
     new Subsample().instanceMain(args);
   }
-}
\ No newline at end of file
+}
@@ -7,22 +7,39 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 
 import com.beust.jcommander.Parameter;
 
+import edu.ucsc.genome.TrackHeader;
 import edu.unc.genomics.CommandLineTool;
 import edu.unc.genomics.CommandLineToolException;
+import edu.unc.genomics.Contig;
+import edu.unc.genomics.Interval;
+import edu.unc.genomics.OrderedExecutor;
 import edu.unc.genomics.ReadablePathValidator;
 import edu.unc.genomics.io.WigFileReader;
 import edu.unc.genomics.io.WigFileException;
+import edu.unc.genomics.io.WigFileWriter;
 import edu.unc.utils.ArrayScaler;
+import edu.unc.utils.FFTUtils;
 
 /**
  * This tool performs a Wavelet scaling analysis on data from a genomic interval
  * 
+ * The correlation between the data and the stretched wavelet is computed at
+ * every position, using prefix sums for the moments of the data in each window
+ * and a block-wise (overlap-save) FFT cross-correlation for the product with
+ * the wavelet. Scales are computed in parallel.
+ * 
+ * If a region (-c/-s/-e) is given, the transform is written as a matrix (one
+ * row per scale). Otherwise the whole genome is transformed in chunks, and each
+ * scale is written to its own Wig file (output.{scale}.wig).
+ * 
  * @author timpalpant
  *
  */
@@ -34,22 +51,24 @@ public class WaveletTransform extends CommandLineTool {
   public Path inputFile;
   @Parameter(names = { "-w", "--wavelet" }, description = "Orthonormal wavelet function (txt)", required = true, validateWith = ReadablePathValidator.class)
   public Path waveletFile;
-  @Parameter(names = { "-c", "--chr" }, description = "Chromosome", required = true)
+  @Parameter(names = { "-c", "--chr" }, description = "Chromosome (default = whole genome)")
   public String chr;
-  @Parameter(names = { "-s", "--start" }, description = "Start base pair", required = true)
-  public int start;
-  @Parameter(names = { "-e", "--stop" }, description = "Stop base pair", required = true)
-  public int stop;
+  @Parameter(names = { "-s", "--start" }, description = "Start base pair")
+  public Integer start;
+  @Parameter(names = { "-e", "--stop" }, description = "Stop base pair")
+  public Integer stop;
   @Parameter(names = { "-m", "--min" }, description = "Minimum wavelet size (bp)")
   public int minLength = 100;
   @Parameter(names = { "-l", "--max" }, description = "Maximum wavelet size (bp)")
   public int maxLength = 200;
   @Parameter(names = { "-n", "--step" }, description = "Step size (bp)")
   public int stepSize = 1;
-  @Parameter(names = { "-o", "--output" }, description = "Output file (tabular)", required = true)
+  @Parameter(names = { "-p", "--threads" }, description = "Number of scales to compute in parallel")
+  public int nThreads = 1;
+  @Parameter(names = { "-o", "--output" }, description = "Output file (tabular, or Wig basename for the whole genome)", required = true)
   public Path outputFile;
 
-  private ArrayScaler scaler;
+  private Scale[] scales;
 
   @Override
   public void run() throws IOException {
@@ -69,19 +88,45 @@ public class WaveletTransform extends CommandLineTool {
       wavelet[i] = waveletList.get(i);
     }
 
+    if (minLength < 2 || stepSize < 1 || maxLength <= minLength) {
+      throw new CommandLineToolException("Invalid wavelet scales (min = " + minLength + ", max = " + maxLength
+          + ", step = " + stepSize + ")");
+    }
+
     log.debug("Initializing Wavelet scaling interpolator");
-    scaler = new ArrayScaler(wavelet);
+    ArrayScaler scaler = new ArrayScaler(wavelet);
+    // Stretch the wavelet to each size l
+    int numSteps = (maxLength - minLength) / stepSize;
+    if (numSteps == 0) {
+      throw new CommandLineToolException("No wavelet scales between " + minLength + " and " + maxLength);
+    }
+    ArrayScaler.KernelBank bank = scaler.getKernelBank(minLength, minLength + numSteps * stepSize, stepSize);
+    scales = new Scale[numSteps];
+    for (int i = 0; i < numSteps; i++) {
+      scales[i] = new Scale(bank, i);
+    }
 
-    // Get the data from the Wig file
-    log.debug("Loading Wig data");
-    float[] x;
     try (WigFileReader wig = WigFileReader.autodetect(inputFile)) {
-      x = wig.query(chr, start, stop).getValues();
+      if (chr != null) {
+        if (start == null || stop == null) {
+          throw new CommandLineToolException("Must specify start (-s) and stop (-e) with a chromosome");
+        }
+        runRegion(wig);
+      } else {
+        runGenome(wig);
+      }
     } catch (WigFileException e) {
-      log.error("Error retrieving data for interval from Wig file");
-      e.printStackTrace();
-      throw new CommandLineToolException("Error retrieving data for interval from Wig file");
+      throw new CommandLineToolException("Error retrieving data from Wig file", e);
     }
+  }
+
+  /**
+   * Transform a single region and write it as a matrix
+   */
+  private void runRegion(WigFileReader wig) throws IOException, WigFileException {
+    // Get the data from the Wig file
+    log.debug("Loading Wig data");
+    final float[] x = wig.query(chr, start, stop).getValues();
 
     // Validate that the parameters are sane
     if (maxLength > x.length) {
@@ -90,46 +135,184 @@ public class WaveletTransform extends CommandLineTool {
     }
 
     log.debug("Doing the Wavelet decomposition");
-    int numSteps = (maxLength - minLength) / stepSize;
-    float[][] matrix = new float[numSteps][x.length];
-    for (int i = 0; i < numSteps; i++) {
-      // Stretch the wavelet to size l
-      int l = minLength + i * stepSize;
-      double[] stretchedWavelet = scaler.getScaled(l);
-      float sumY = 0, sumSqY = 0;
-      for (int j = 0; j < l; j++) {
-        sumY += stretchedWavelet[j];
-        sumSqY += stretchedWavelet[j] * stretchedWavelet[j];
-      }
-
-      for (int j = 0; j < x.length - l; j++) {
-        // Calculate the correlation between the signal and the wavelet at this
-        // point
-        float sumX = 0, sumSqX = 0, sumXY = 0;
-        for (int k = 0; k < stretchedWavelet.length; k++) {
-          sumX += x[j + k];
-          sumSqX += x[j + k] * x[j + k];
-          sumXY += x[j + k] * stretchedWavelet[k];
-        }
-        matrix[i][j + l / 2] = (float) ((l * sumXY - sumX * sumY) / Math.sqrt(l * sumSqX - sumX * sumX) / Math.sqrt(l
-            * sumSqY - sumY * sumY));
-      }
-    }
+    final WindowMoments moments = new WindowMoments(x);
 
     // Write to output in matrix2png format
-    try (BufferedWriter writer = Files.newBufferedWriter(outputFile, Charset.defaultCharset())) {
+    try (final BufferedWriter writer = Files.newBufferedWriter(outputFile, Charset.defaultCharset())) {
       // Header line
       writer.write(chr);
       for (int bp = start; bp <= stop; bp++) {
         writer.write("\t" + bp);
       }
 
-      for (int i = matrix.length - 1; i >= 0; i--) {
-        writer.newLine();
-        int l = minLength + i * stepSize;
-        writer.write(String.valueOf(l));
-        for (int j = 0; j < x.length; j++) {
-          writer.write("\t" + matrix[i][j]);
+      // Rows are written from the largest scale down, as they are computed
+      try (OrderedExecutor<float[]> executor = new OrderedExecutor<float[]>(nThreads) {
+        @Override
+        protected void handle(float[] row) throws IOException {
+          writeRow(writer, row);
+        }
+      }) {
+        for (int i = scales.length - 1; i >= 0; i--) {
+          final Scale scale = scales[i];
+          executor.submit(new Callable<float[]>() {
+            @Override
+            public float[] call() {
+              float[] row = new float[x.length + 1];
+              row[0] = scale.length;
+              scale.correlate(x, moments, row, 1 + scale.length / 2);
+              return row;
+            }
+          });
+        }
+        executor.finish();
+      }
+    }
+  }
+
+  private static void writeRow(BufferedWriter writer, float[] row) throws IOException {
+    writer.newLine();
+    writer.write(String.valueOf((int) row[0]));
+    for (int j = 1; j < row.length; j++) {
+      writer.write("\t" + row[j]);
+    }
+  }
+
+  /**
+   * Transform every chromosome in chunks, writing each scale to its own Wig
+   * file
+   */
+  private void runGenome(WigFileReader wig) throws IOException, WigFileException {
+    String[] splitName = outputFile.getFileName().toString().split("\\.(?=[^\\.]+$)");
+    final WigFileWriter[] writers = new WigFileWriter[scales.length];
+    try (OrderedExecutor<Void> executor = new OrderedExecutor<>(nThreads)) {
+      for (int i = 0; i < scales.length; i++) {
+        Path p = outputFile.resolveSibling(splitName[0] + '.' + scales[i].length + ".wig");
+        writers[i] = new WigFileWriter(p, TrackHeader.newWiggle());
+      }
+
+      int padding = maxLength;
+      for (String chr : wig.chromosomes()) {
+        int chrStart = wig.getChrStart(chr);
+        int chrStop = wig.getChrStop(chr);
+        log.debug("Processing chromosome " + chr + ":" + chrStart + "-" + chrStop);
+        int bp = chrStart;
+        while (bp <= chrStop) {
+          final int chunkStart = bp;
+          final int chunkStop = Math.min(bp + DEFAULT_CHUNK_SIZE - 1, chrStop);
+          // Pad the chunk so that windows centered near its ends are complete
+          final int paddedStart = Math.max(chunkStart - padding, chrStart);
+          int paddedStop = Math.min(chunkStop + padding, chrStop);
+          final float[] x = wig.query(chr, paddedStart, paddedStop).getValues();
+          final WindowMoments moments = new WindowMoments(x);
+          final Interval chunk = new Interval(chr, chunkStart, chunkStop);
+
+          // Each scale is written by its own task, so finish the chunk before
+          // starting the next to keep each output file in order
+          for (int i = 0; i < scales.length; i++) {
+            final Scale scale = scales[i];
+            final WigFileWriter writer = writers[i];
+            executor.submit(new Callable<Void>() {
+              @Override
+              public Void call() throws Exception {
+                float[] values = new float[x.length];
+                Arrays.fill(values, Float.NaN);
+                scale.correlate(x, moments, values, scale.length / 2);
+                int from = chunkStart - paddedStart;
+                float[] result = Arrays.copyOfRange(values, from, from + chunk.length());
+                writer.write(new Contig(chunk, result));
+                return null;
+              }
+            });
+          }
+          executor.finish();
+
+          bp = chunkStop + 1;
+        }
+      }
+    } finally {
+      for (WigFileWriter writer : writers) {
+        if (writer != null) {
+          writer.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Prefix sums of the data, for the sum and sum of squares in any window in
+   * O(1). Missing values (NaN) are counted so that windows containing them can
+   * be identified.
+   */
+  private static class WindowMoments {
+    final double[] sum;
+    final double[] sumSq;
+    final int[] nMissing;
+    final float[] finite;
+
+    WindowMoments(float[] x) {
+      sum = new double[x.length + 1];
+      sumSq = new double[x.length + 1];
+      nMissing = new int[x.length + 1];
+      finite = new float[x.length];
+      for (int i = 0; i < x.length; i++) {
+        boolean missing = Float.isNaN(x[i]);
+        finite[i] = missing ? 0 : x[i];
+        sum[i + 1] = sum[i] + finite[i];
+        sumSq[i + 1] = sumSq[i] + (double) finite[i] * finite[i];
+        nMissing[i + 1] = nMissing[i] + (missing ? 1 : 0);
+      }
+    }
+  }
+
+  /**
+   * A wavelet stretched to one scale
+   */
+  private static class Scale {
+    final int length;
+    final FFTUtils.Kernel reversed;
+    final double sumY;
+    final double sumSqY;
+
+    Scale(ArrayScaler.KernelBank bank, int i) {
+      length = bank.getLength(i);
+      float[] y = new float[length];
+      for (int j = 0; j < length; j++) {
+        y[length - 1 - j] = (float) bank.get(i, j);
+      }
+      reversed = new FFTUtils.Kernel(y);
+      sumY = bank.getSum(i);
+      sumSqY = bank.getSumOfSquares(i);
+    }
+
+    /**
+     * Calculate the correlation between the signal and the wavelet in every
+     * window of x, storing the value for the window starting at j in
+     * result[offset + j]
+     */
+    void correlate(float[] x, WindowMoments moments, float[] result, int offset) {
+      int l = length;
+      if (x.length < l) {
+        return;
+      }
+      // Convolving with the reversed wavelet gives sumXY for the window
+      // starting at j, which is stored in result and then replaced by the
+      // correlation
+      reversed.convolveValid(moments.finite, result, offset);
+      double normY = Math.sqrt(l * sumSqY - sumY * sumY);
+      for (int j = 0; j <= x.length - l; j++) {
+        if (moments.nMissing[j + l] - moments.nMissing[j] > 0) {
+          result[offset + j] = Float.NaN;
+          continue;
+        }
+        double sumX = moments.sum[j + l] - moments.sum[j];
+        double sumSqX = moments.sumSq[j + l] - moments.sumSq[j];
+        double sumXY = result[offset + j];
+        double varX = l * sumSqX - sumX * sumX;
+        // Constant windows (up to round-off in the prefix sums) are undefined
+        if (varX <= 1e-12 * l * sumSqX) {
+          result[offset + j] = Float.NaN;
+        } else {
+          result[offset + j] = (float) ((l * sumXY - sumX * sumY) / Math.sqrt(varX) / normY);
         }
       }
     }
@@ -138,4 +321,4 @@ public class WaveletTransform extends CommandLineTool {
   public static void main(String[] args) {
     new WaveletTransform().instanceMain(args);
   }
-}
\ No newline at end of file
+}
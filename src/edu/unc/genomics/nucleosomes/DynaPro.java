@@ -2,6 +2,16 @@ package edu.unc.genomics.nucleosomes;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -22,6 +32,15 @@ import edu.unc.genomics.io.WigFileWriter;
  * vitro nucleosome positions and formation energies. Nucleic Acids Res 37:
  * 4707-4722
  * 
+ * The forward-backward recursions are checkpointed so that whole chromosomes
+ * are never held in memory. The backward sweep saves its state (the last
+ * nucleosome-size values) at the start of each block, and the forward sweep
+ * recomputes the backward values of each block from its checkpoint, writing the
+ * probabilities as each block is finished. With blocks of ~sqrt(n * size) bp,
+ * memory is O(sqrt(n)) per chromosome at the cost of one extra backward sweep.
+ * Chromosomes are solved in parallel, with the number of finished blocks
+ * waiting to be written bounded for each one.
+ * 
  * @author timpalpant
  *
  */
@@ -29,6 +48,10 @@ public class DynaPro extends CommandLineTool {
 
   private static final Logger log = Logger.getLogger(DynaPro.class);
 
+  /** The number of finished blocks that can wait to be written, per chromosome */
+  private static final int QUEUE_LENGTH = 4;
+  private static final Contig END = new Contig("END", 1, 1);
+
   @Parameter(names = { "-i", "--input" }, description = "Energy landscape", required = true, validateWith = ReadablePathValidator.class)
   public Path inputFile;
   @Parameter(names = { "-n", "--size" }, description = "Nucleosome size (bp)")
@@ -37,16 +60,27 @@ public class DynaPro extends CommandLineTool {
   public Double newMean;
   @Parameter(names = { "-v", "--variance" }, description = "Scale energy landscape to variance")
   public Double newVar;
+  @Parameter(names = { "-b", "--block" }, description = "Checkpoint block size (bp, default = sqrt(chromosome length x size))")
+  public Integer blockSize;
+  @Parameter(names = { "-p", "--threads" }, description = "Number of chromosomes to solve in parallel")
+  public int nThreads = 1;
   @Parameter(names = { "-o", "--output" }, description = "Output file (Wig)", required = true)
   public Path outputFile;
 
   Float shift, scale;
+  private WigFileReader reader;
 
   @Override
   public void run() throws IOException {
+    if (nucleosomeSize < 1) {
+      throw new CommandLineToolException("Nucleosome size must be >= 1");
+    }
+
     TrackHeader header = TrackHeader.newWiggle();
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
     try (WigFileReader reader = WigFileReader.autodetect(inputFile);
         WigFileWriter writer = new WigFileWriter(outputFile, header)) {
+      this.reader = reader;
       if (newMean != null) {
         log.debug("Shifting mean of energy landscape from " + reader.mean() + " to " + newMean);
         shift = (float) (newMean - reader.mean());
@@ -57,59 +91,172 @@ public class DynaPro extends CommandLineTool {
         scale = (float) Math.sqrt(newVar / Math.pow(reader.stdev(), 2));
       }
 
-      for (String chr : reader.chromosomes()) {
-        log.debug("Processing chromosome " + chr);
-        int start = reader.getChrStart(chr);
-        int stop = reader.getChrStop(chr);
-
-        // Process the chromosome
-        float[] energy = reader.query(chr, start, stop).getValues();
-
-        // Assume 0 if data is missing
-        for (int i = 0; i < energy.length; i++) {
-          if (Float.isNaN(energy[i])) {
-            energy[i] = 0;
+      List<BlockingQueue<Contig>> queues = new ArrayList<>();
+      List<Future<?>> futures = new ArrayList<>();
+      for (final String chr : reader.chromosomes()) {
+        final BlockingQueue<Contig> queue = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+        queues.add(queue);
+        futures.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            solve(chr, queue);
+            return null;
           }
-        }
+        }));
+      }
 
-        // Shift and rescale the energy landscape if specified
-        if (shift != null) {
-          for (int i = 0; i < energy.length; i++) {
-            energy[i] += shift;
-          }
-        }
-        if (scale != null) {
-          for (int i = 0; i < energy.length; i++) {
-            energy[i] *= scale;
-          }
+      // Write each chromosome in order, as its blocks are finished
+      for (int i = 0; i < queues.size(); i++) {
+        BlockingQueue<Contig> queue = queues.get(i);
+        Future<?> f = futures.get(i);
+        Contig block;
+        while ((block = nextBlock(queue, f)) != END) {
+          writer.write(block);
         }
+      }
+    } catch (InterruptedException e) {
+      throw new CommandLineToolException(e);
+    } catch (ExecutionException e) {
+      throw new CommandLineToolException("Error solving energy landscape", e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
 
-        // Compute the probabilities
-        float[] forward = new float[energy.length];
-        for (int i = nucleosomeSize; i < energy.length; i++) {
-          double factor = 1 + Math.exp(forward[i - nucleosomeSize] - forward[i - 1] - energy[i - nucleosomeSize]);
-          forward[i] = (float) (forward[i - 1] + Math.log(factor));
+  /**
+   * Wait for the next block of a chromosome, checking that the thread solving
+   * it has not failed
+   */
+  private static Contig nextBlock(BlockingQueue<Contig> queue, Future<?> f) throws InterruptedException,
+      ExecutionException {
+    Contig block;
+    while ((block = queue.poll(1, TimeUnit.SECONDS)) == null) {
+      if (f.isDone()) {
+        block = queue.poll();
+        if (block != null) {
+          return block;
         }
+        f.get();
+        throw new CommandLineToolException("Chromosome finished without writing all blocks");
+      }
+    }
+    return block;
+  }
 
-        float[] backward = new float[energy.length];
-        for (int i = energy.length - nucleosomeSize - 1; i > 0; i--) {
-          double factor = 1 + Math.exp(backward[i + nucleosomeSize] - backward[i + 1] - energy[i - 1]);
-          backward[i] = (float) (backward[i + 1] + Math.log(factor));
+  /**
+   * Solve one chromosome, putting the probabilities for each block on the
+   * queue in order, followed by END
+   */
+  private void solve(String chr, BlockingQueue<Contig> queue) throws IOException, WigFileException,
+      InterruptedException {
+    log.debug("Processing chromosome " + chr);
+    int start = reader.getChrStart(chr);
+    int stop = reader.getChrStop(chr);
+    int n = stop - start + 1;
+    int size = nucleosomeSize;
+    int b = (blockSize != null) ? blockSize : (int) Math.min(Math.sqrt((double) n * size), DEFAULT_CHUNK_SIZE);
+    b = Math.max(b, size);
+    int nBlocks = (n + b - 1) / b;
+    log.debug("Solving " + chr + " in " + nBlocks + " blocks of " + b + " bp");
+
+    // backward[blockStart + k] is held in buf[k], with the next size values
+    // (from the block above) in buf[b..b+size)
+    float[] buf = new float[b + size];
+    float[][] checkpoints = new float[nBlocks][];
+
+    // Backward sweep, saving the state at the top of each block
+    float[] next = new float[size];
+    for (int k = nBlocks - 1; k >= 0; k--) {
+      checkpoints[k] = next.clone();
+      int blockStart = k * b;
+      int lo = Math.max(blockStart, 1);
+      int hi = Math.min(blockStart + b - 1, n - size - 1);
+      float[] energy = (lo <= hi) ? getEnergy(chr, start, lo - 1, hi - 1) : null;
+      backward(buf, checkpoints[k], energy, blockStart, lo, hi, lo - 1);
+      System.arraycopy(buf, 0, next, 0, size);
+    }
+    // buf now holds the first block, which has backward[1] even if size = 1
+    float total = (n > 1) ? buf[1] : 0;
+
+    // Forward sweep, recomputing the backward values for each block
+    // forward[blockStart - size + k] is held in fbuf[k]
+    float[] fbuf = new float[b + size];
+    for (int k = 0; k < nBlocks; k++) {
+      int blockStart = k * b;
+      int blockStop = Math.min(blockStart + b, n) - 1;
+      int offset = Math.max(blockStart - size, 0);
+      float[] energy = getEnergy(chr, start, offset, blockStop);
+
+      int lo = Math.max(blockStart, 1);
+      int hi = Math.min(blockStart + b - 1, n - size - 1);
+      backward(buf, checkpoints[k], energy, blockStart, lo, hi, offset);
+      checkpoints[k] = null;
+
+      System.arraycopy(fbuf, b, fbuf, 0, size);
+      float[] p = new float[blockStop - blockStart + 1];
+      for (int i = blockStart; i <= blockStop; i++) {
+        int j = i - blockStart + size;
+        if (i >= size) {
+          double factor = 1 + Math.exp(fbuf[j - size] - fbuf[j - 1] - energy[i - size - offset]);
+          fbuf[j] = (float) (fbuf[j - 1] + Math.log(factor));
+        } else {
+          fbuf[j] = 0;
         }
 
-        float[] p = new float[energy.length];
-        for (int i = 0; i < energy.length - nucleosomeSize; i++) {
-          p[i] = (float) Math.exp(forward[i] - energy[i] + backward[i + nucleosomeSize] - backward[1]);
+        if (i < n - size) {
+          p[i - blockStart] = (float) Math.exp(fbuf[j] - energy[i - offset] + buf[i - blockStart + size] - total);
         }
+      }
+
+      // Write the block to output
+      queue.put(new Contig(chr, start + blockStart, start + blockStop, p));
+    }
+    queue.put(END);
+  }
+
+  /**
+   * Compute backward[lo..hi] into buf for the block starting at blockStart,
+   * given the state from the block above. Other values in the block are 0.
+   * 
+   * @param energy
+   *          the energy landscape, starting from offset
+   */
+  private void backward(float[] buf, float[] checkpoint, float[] energy, int blockStart, int lo, int hi,
+      int offset) {
+    int size = nucleosomeSize;
+    int b = buf.length - size;
+    System.arraycopy(checkpoint, 0, buf, b, size);
+    for (int k = b - 1; k >= 0; k--) {
+      int i = blockStart + k;
+      if (i < lo || i > hi) {
+        buf[k] = 0;
+      } else {
+        double factor = 1 + Math.exp(buf[k + size] - buf[k + 1] - energy[i - 1 - offset]);
+        buf[k] = (float) (buf[k + 1] + Math.log(factor));
+      }
+    }
+  }
 
-        // Write the chromosome to output
-        writer.write(new Contig(chr, start, stop, p));
+  /**
+   * Get the (shifted and rescaled) energy landscape for positions from-to of a
+   * chromosome (relative to its start)
+   */
+  private float[] getEnergy(String chr, int start, int from, int to) throws IOException, WigFileException {
+    float[] energy = reader.query(chr, start + from, start + to).getValues();
+    for (int i = 0; i < energy.length; i++) {
+      // Assume 0 if data is missing
+      if (Float.isNaN(energy[i])) {
+        energy[i] = 0;
+      }
+      // Shift and rescale the energy landscape if specified
+      if (shift != null) {
+        energy[i] += shift;
+      }
+      if (scale != null) {
+        energy[i] *= scale;
       }
-    } catch (WigFileException e) {
-      log.error("Error getting data from Wig file");
-      e.printStackTrace();
-      throw new CommandLineToolException("Error getting data from Wig file");
     }
+    return energy;
   }
 
   public static void main(String[] args) throws IOException, WigFileException {
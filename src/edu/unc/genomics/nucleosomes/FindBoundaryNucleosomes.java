@@ -5,24 +5,41 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collections;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
 import com.beust.jcommander.Parameter;
 
 import edu.unc.genomics.CommandLineTool;
+import edu.unc.genomics.CommandLineToolException;
 import edu.unc.genomics.Interval;
 import edu.unc.genomics.NucleosomeCall;
 import edu.unc.genomics.NucleosomeCallsFileReader;
+import edu.unc.genomics.OverlapSweep;
 import edu.unc.genomics.ReadablePathValidator;
 import edu.unc.genomics.io.IntervalFileReader;
 
 /**
  * Gets the dyad coordinate of the first and last (5' and 3') nucleosome for
- * each interval
- * 
+ * each interval, and optionally the number of nucleosomes, their mean occupancy
+ * and their mean spacing
+ *
+ * The nucleosome calls for each chromosome are loaded once and summarized for
+ * all of the intervals on that chromosome with an OverlapSweep. Chromosomes are
+ * processed in parallel, and the intervals are written in their original
+ * order. Multiple nucleosome calls files may be given, with one set of columns
+ * for each.
+ *
  * @author timpalpant
  *
  */
@@ -30,51 +47,175 @@ public class FindBoundaryNucleosomes extends CommandLineTool {
 
   private static final Logger log = Logger.getLogger(FindBoundaryNucleosomes.class);
 
-  @Parameter(names = { "-i", "--input" }, description = "Input file (nucleosome calls)", required = true, validateWith = ReadablePathValidator.class)
-  public Path inputFile;
+  @Parameter(names = { "-i", "--input" }, description = "Input file (nucleosome calls, text or binary, may be specified multiple times)", required = true)
+  public List<String> inputFiles = new ArrayList<String>();
   @Parameter(names = { "-l", "--loci" }, description = "Intervals (Bed format)", required = true, validateWith = ReadablePathValidator.class)
   public Path lociFile;
+  @Parameter(names = { "-s", "--stats" }, description = "Also output the number, mean occupancy and mean spacing of nucleosomes")
+  public boolean stats = false;
+  @Parameter(names = { "-p", "--threads" }, description = "Number of chromosomes to process in parallel")
+  public int nThreads = 1;
   @Parameter(names = { "-o", "--output" }, description = "Output file", required = true)
   public Path outputFile;
 
+  private List<IntervalFileReader<NucleosomeCall>> readers = new ArrayList<>();
+
+  /**
+   * Aggregates of the nucleosomes that overlap an interval
+   */
+  private static class Summary {
+    int count = 0;
+    int lowDyad = Integer.MAX_VALUE;
+    int highDyad = Integer.MIN_VALUE;
+    double occupancy = 0;
+
+    void add(NucleosomeCall call) {
+      count++;
+      lowDyad = Math.min(lowDyad, call.getDyad());
+      highDyad = Math.max(highDyad, call.getDyad());
+      occupancy += call.occupancy();
+    }
+  }
+
   @Override
   public void run() throws IOException {
-    log.debug("Initializing output file");
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
     int skipped = 0;
-    try (NucleosomeCallsFileReader nucReader = new NucleosomeCallsFileReader(inputFile);
-        IntervalFileReader<? extends Interval> lociReader = IntervalFileReader.autodetect(lociFile);
-        BufferedWriter writer = Files.newBufferedWriter(outputFile, Charset.defaultCharset())) {
-      // Write header
-      writer.write("#chr\tlow\thigh\tid\talignment\tstrand\tlow boundary dyad\thigh boundary dyad");
-      writer.newLine();
+    try {
+      for (String inputFile : inputFiles) {
+        Path p = Paths.get(inputFile);
+        if (!Files.isReadable(p)) {
+          throw new CommandLineToolException("Cannot read nucleosome calls file: " + inputFile);
+        }
+        readers.add(NucleosomeCallsFileReader.autodetect(p));
+      }
+
+      log.debug("Loading intervals");
+      List<Interval> loci = new ArrayList<>();
+      Map<String, List<Integer>> lociByChr = new LinkedHashMap<>();
+      try (IntervalFileReader<? extends Interval> lociReader = IntervalFileReader.autodetect(lociFile)) {
+        for (Interval interval : lociReader) {
+          List<Integer> chrLoci = lociByChr.get(interval.getChr());
+          if (chrLoci == null) {
+            chrLoci = new ArrayList<>();
+            lociByChr.put(interval.getChr(), chrLoci);
+          }
+          chrLoci.add(loci.size());
+          loci.add(interval);
+        }
+      }
 
       log.debug("Finding boundary nucleosomes for each interval");
-      NucleosomeCall.DyadComparator comparator = new NucleosomeCall.DyadComparator();
-      for (Interval interval : lociReader) {
-        writer.write(interval.toBed());
-
-        // Get all of the nucleosomes within this interval
-        List<NucleosomeCall> intervalNucs = nucReader.load(interval);
-
-        if (intervalNucs.size() > 0) {
-          // Sort the list by nucleosome position
-          Collections.sort(intervalNucs, comparator);
-          int low = intervalNucs.get(0).getDyad();
-          int high = intervalNucs.get(intervalNucs.size() - 1).getDyad();
-          writer.write("\t" + low + "\t" + high);
-        } else {
-          skipped++;
-          writer.write("\tNA\tNA");
+      final Summary[][] summaries = new Summary[loci.size()][readers.size()];
+      List<Future<?>> futures = new ArrayList<>();
+      for (final Map.Entry<String, List<Integer>> entry : lociByChr.entrySet()) {
+        final List<Interval> chrLoci = new ArrayList<>();
+        for (int i : entry.getValue()) {
+          chrLoci.add(loci.get(i));
         }
+        futures.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            Summary[][] chrSummaries = summarize(entry.getKey(), chrLoci);
+            for (int i = 0; i < chrSummaries.length; i++) {
+              summaries[entry.getValue().get(i)] = chrSummaries[i];
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
 
-        writer.newLine();
+      try (BufferedWriter writer = Files.newBufferedWriter(outputFile, Charset.defaultCharset())) {
+        writeHeader(writer);
+        for (int i = 0; i < loci.size(); i++) {
+          writer.write(loci.get(i).toBed());
+          for (Summary summary : summaries[i]) {
+            if (summary.count == 0) {
+              skipped++;
+            }
+            write(summary, writer);
+          }
+          writer.newLine();
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new CommandLineToolException(e);
+    } catch (ExecutionException e) {
+      throw new CommandLineToolException("Exception while finding boundary nucleosomes", e.getCause());
+    } finally {
+      pool.shutdownNow();
+      for (IntervalFileReader<NucleosomeCall> reader : readers) {
+        reader.close();
       }
     }
 
     log.info("Skipped " + skipped + " intervals with 0 nucleosomes");
   }
 
+  /**
+   * Summarize the nucleosomes in each file for the loci on one chromosome
+   *
+   * @return the summaries for each locus (in order) and each input file
+   */
+  private Summary[][] summarize(String chr, List<Interval> chrLoci) {
+    log.debug("Processing chromosome " + chr);
+    final Summary[][] chrSummaries = new Summary[chrLoci.size()][readers.size()];
+    for (int f = 0; f < readers.size(); f++) {
+      for (int i = 0; i < chrSummaries.length; i++) {
+        chrSummaries[i][f] = new Summary();
+      }
+
+      IntervalFileReader<NucleosomeCall> reader = readers.get(f);
+      if (!reader.chromosomes().contains(chr)) {
+        continue;
+      }
+      List<NucleosomeCall> calls = reader.load(chr, 0, Integer.MAX_VALUE);
+      final int file = f;
+      OverlapSweep.sweep(chrLoci, calls, new OverlapSweep.Visitor<NucleosomeCall>() {
+        @Override
+        public void visit(int i, NucleosomeCall call) {
+          chrSummaries[i][file].add(call);
+        }
+      });
+    }
+    return chrSummaries;
+  }
+
+  private void writeHeader(BufferedWriter writer) throws IOException {
+    writer.write("#chr\tlow\thigh\tid\talignment\tstrand");
+    for (String inputFile : inputFiles) {
+      String suffix = (inputFiles.size() > 1) ? " (" + Paths.get(inputFile).getFileName() + ")" : "";
+      writer.write("\tlow boundary dyad" + suffix + "\thigh boundary dyad" + suffix);
+      if (stats) {
+        writer.write("\tcount" + suffix + "\tmean occupancy" + suffix + "\tmean spacing" + suffix);
+      }
+    }
+    writer.newLine();
+  }
+
+  private void write(Summary summary, BufferedWriter writer) throws IOException {
+    if (summary.count > 0) {
+      writer.write("\t" + summary.lowDyad + "\t" + summary.highDyad);
+    } else {
+      writer.write("\tNA\tNA");
+    }
+
+    if (stats) {
+      writer.write("\t" + summary.count);
+      writer.write("\t" + ((summary.count > 0) ? summary.occupancy / summary.count : "NA"));
+      // The mean distance between consecutive dyads
+      if (summary.count > 1) {
+        writer.write("\t" + ((double) (summary.highDyad - summary.lowDyad)) / (summary.count - 1));
+      } else {
+        writer.write("\tNA");
+      }
+    }
+  }
+
   public static void main(String[] args) {
     new FindBoundaryNucleosomes().instanceMain(args);
   }
-}
\ No newline at end of file
+}
@@ -2,6 +2,11 @@ package edu.unc.genomics.nucleosomes;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 
@@ -9,16 +14,24 @@ import com.beust.jcommander.Parameter;
 import edu.unc.genomics.CommandLineTool;
 import edu.unc.genomics.CommandLineToolException;
 import edu.unc.genomics.NucleosomeCall;
+import edu.unc.genomics.OrderedExecutor;
 import edu.unc.genomics.ReadablePathValidator;
 import edu.unc.genomics.io.IntervalFileWriter;
 import edu.unc.genomics.io.WigFileReader;
 import edu.unc.genomics.io.WigFileException;
-import edu.unc.utils.SortUtils;
 
 /**
  * Calls stereotypic nucleosome positions from MNase-seq data using a greedy
  * algorithm
  * 
+ * Positions are called in descending order of smoothed dyad density, excluding
+ * positions within one nucleosome of each call. Only local maxima of the
+ * positions that have not been excluded can be called next, so rather than
+ * sorting every position, the local maxima are kept in a heap, and the
+ * positions next to each new exclusion are added if they become local maxima.
+ * Chunks (padded by one nucleosome on each side) are called independently in
+ * parallel and written in order.
+ * 
  * @author timpalpant
  *
  */
@@ -32,105 +45,300 @@ public class GreedyCaller extends CommandLineTool {
   public Path smoothedDyadsFile;
   @Parameter(names = { "-n", "--size" }, description = "Nucleosome size (bp)")
   public int nucleosomeSize = 147;
+  @Parameter(names = { "-p", "--threads" }, description = "Number of chunks to call in parallel")
+  public int nThreads = 1;
   @Parameter(names = { "-o", "--output" }, description = "Output file", required = true)
   public Path outputFile;
 
+  private WigFileReader dyadsReader;
+  private WigFileReader smoothedDyadsReader;
+  private int count = 0;
+
   public void run() throws IOException {
-    int halfNuc = nucleosomeSize / 2;
-    int count = 0;
     try (WigFileReader dyadsReader = WigFileReader.autodetect(dyadsFile);
         WigFileReader smoothedDyadsReader = WigFileReader.autodetect(smoothedDyadsFile);
-        IntervalFileWriter<NucleosomeCall> writer = new IntervalFileWriter<>(outputFile)) {
+        final IntervalFileWriter<NucleosomeCall> writer = new IntervalFileWriter<>(outputFile)) {
+      this.dyadsReader = dyadsReader;
+      this.smoothedDyadsReader = smoothedDyadsReader;
       // Write header
       writer
           .writeComment("#chr\tstart\tstop\tlength\tlengthStdev\tdyad\tdyadStdev\tconditionalPosition\tdyadMean\toccupancy");
 
-      for (String chr : smoothedDyadsReader.chromosomes()) {
-        log.debug("Processing chromosome " + chr);
-        int chunkStart = smoothedDyadsReader.getChrStart(chr);
-        int chrStop = smoothedDyadsReader.getChrStop(chr);
-        while (chunkStart < chrStop) {
-          int chunkStop = chunkStart + DEFAULT_CHUNK_SIZE - 1;
-          int paddedStart = Math.max(chunkStart - nucleosomeSize, smoothedDyadsReader.getChrStart(chr));
-          int paddedStop = Math.min(chunkStop + nucleosomeSize, smoothedDyadsReader.getChrStop(chr));
-          log.debug("Processing chunk " + chunkStart + "-" + chunkStop);
-
-          float[] dyads;
-          float[] smoothed;
-          try {
-            dyads = dyadsReader.query(chr, paddedStart, paddedStop).getValues();
-            smoothed = smoothedDyadsReader.query(chr, paddedStart, paddedStop).getValues();
-          } catch (IOException | WigFileException e) {
-            throw new CommandLineToolException(e);
-          }
-
-          int[] sortedIndices = SortUtils.sortIndices(smoothed);
-
-          // Proceed through the data in descending order
-          for (int j = sortedIndices.length - 1; j >= 0; j--) {
-            int i = sortedIndices[j];
-            int dyad = paddedStart + i;
-
-            if (smoothed[i] > 0) {
-              int nucStart = Math.max(paddedStart, dyad - halfNuc);
-              int nucStop = Math.min(dyad + halfNuc, paddedStop);
-              NucleosomeCall call = new NucleosomeCall(chr, nucStart, nucStop);
-              call.setDyad(dyad);
-
-              // Find the dyad mean
-              double occupancy = 0;
-              double weightedSum = 0;
-              double smoothedSum = 0;
-              for (int bp = nucStart; bp <= nucStop; bp++) {
-                occupancy += dyads[bp - paddedStart];
-                weightedSum += dyads[bp - paddedStart] * bp;
-                smoothedSum += smoothed[bp - paddedStart];
-              }
-              call.setOccupancy(occupancy);
-              double dyadMean = weightedSum / occupancy;
-
-              if (occupancy > 0) {
-                call.setDyadMean((int) Math.round(dyadMean));
-                call.setConditionalPosition(smoothed[i] / smoothedSum);
-
-                // Find the variance
-                double sumOfSquares = 0;
-                for (int bp = nucStart; bp <= nucStop; bp++) {
-                  sumOfSquares += dyads[bp - paddedStart] * Math.pow(bp - dyadMean, 2);
-                }
-                double variance = sumOfSquares / occupancy;
-                call.setDyadStdev(Math.sqrt(variance));
-
-                // variance = mean of squares minus square of mean
-                // this is more efficient but causing cancellation with floats
-                // double variance = sumOfSquares/occupancy -
-                // Math.pow(weightedSum/occupancy, 2);
-
-                // Only write nucleosomes within the current chunk to disk
-                if (chunkStart <= dyad && dyad <= chunkStop) {
-                  writer.write(call);
-                  count++;
-                }
-
-                // Don't allow nucleosome calls overlapping this nucleosome
-                int low = Math.max(i - nucleosomeSize, 0);
-                int high = Math.min(i + nucleosomeSize, smoothed.length - 1);
-                for (int k = low; k <= high; k++) {
-                  smoothed[k] = 0;
-                }
+      try (OrderedExecutor<List<NucleosomeCall>> executor = new OrderedExecutor<List<NucleosomeCall>>(nThreads) {
+        @Override
+        protected void handle(List<NucleosomeCall> calls) {
+          count += write(calls, writer);
+        }
+      }) {
+        for (final String chr : smoothedDyadsReader.chromosomes()) {
+          log.debug("Processing chromosome " + chr);
+          int chunkStart = smoothedDyadsReader.getChrStart(chr);
+          int chrStop = smoothedDyadsReader.getChrStop(chr);
+          while (chunkStart < chrStop) {
+            final int start = chunkStart;
+            final int stop = chunkStart + DEFAULT_CHUNK_SIZE - 1;
+            executor.submit(new Callable<List<NucleosomeCall>>() {
+              @Override
+              public List<NucleosomeCall> call() {
+                return callChunk(chr, start, stop);
               }
-            }
+            });
+
+            chunkStart = stop + 1;
           }
+        }
+        executor.finish();
+      }
 
-          chunkStart = chunkStop + 1;
+      log.info("Called " + count + " nucleosomes");
+    }
+  }
+
+  private static int write(List<NucleosomeCall> calls, IntervalFileWriter<NucleosomeCall> writer) {
+    for (NucleosomeCall call : calls) {
+      writer.write(call);
+    }
+    return calls.size();
+  }
+
+  /**
+   * Call nucleosomes in the padded chunk around chunkStart-chunkStop
+   * 
+   * @return the calls with dyads in chunkStart-chunkStop, in the order that
+   *         they were called
+   */
+  private List<NucleosomeCall> callChunk(String chr, int chunkStart, int chunkStop) {
+    int paddedStart = Math.max(chunkStart - nucleosomeSize, smoothedDyadsReader.getChrStart(chr));
+    int paddedStop = Math.min(chunkStop + nucleosomeSize, smoothedDyadsReader.getChrStop(chr));
+    log.debug("Processing chunk " + chunkStart + "-" + chunkStop);
+
+    float[] dyads;
+    float[] smoothed;
+    try {
+      dyads = dyadsReader.query(chr, paddedStart, paddedStop).getValues();
+      smoothed = smoothedDyadsReader.query(chr, paddedStart, paddedStop).getValues();
+    } catch (IOException | WigFileException e) {
+      throw new CommandLineToolException(e);
+    }
+
+    return call(chr, paddedStart, dyads, smoothed, nucleosomeSize, chunkStart, chunkStop);
+  }
+
+  /**
+   * Call nucleosomes in a padded chunk of data
+   * 
+   * @param chr
+   *          the chromosome of the data
+   * @param paddedStart
+   *          the base pair of the first value in dyads and smoothed
+   * @param dyads
+   *          the dyad counts
+   * @param smoothed
+   *          the smoothed dyad counts
+   * @param nucleosomeSize
+   *          the nucleosome size (bp)
+   * @param chunkStart
+   *          the first base pair to return calls for
+   * @param chunkStop
+   *          the last base pair to return calls for
+   * @return the calls with dyads in chunkStart-chunkStop, in the order that
+   *         they were called
+   */
+  static List<NucleosomeCall> call(String chr, int paddedStart, float[] dyads, float[] smoothed, int nucleosomeSize,
+      int chunkStart, int chunkStop) {
+    int halfNuc = nucleosomeSize / 2;
+    int paddedStop = paddedStart + smoothed.length - 1;
+    Candidates candidates = new Candidates(smoothed);
+    List<NucleosomeCall> calls = new ArrayList<>();
+    // Proceed through the local maxima in descending order
+    int i;
+    while ((i = candidates.next()) != -1) {
+      int dyad = paddedStart + i;
+      int nucStart = Math.max(paddedStart, dyad - halfNuc);
+      int nucStop = Math.min(dyad + halfNuc, paddedStop);
+      NucleosomeCall call = new NucleosomeCall(chr, nucStart, nucStop);
+      call.setDyad(dyad);
+
+      // Find the dyad mean
+      double occupancy = 0;
+      double weightedSum = 0;
+      double smoothedSum = 0;
+      for (int bp = nucStart; bp <= nucStop; bp++) {
+        occupancy += dyads[bp - paddedStart];
+        weightedSum += dyads[bp - paddedStart] * bp;
+        smoothedSum += candidates.get(bp - paddedStart);
+      }
+      call.setOccupancy(occupancy);
+      double dyadMean = weightedSum / occupancy;
+
+      if (occupancy > 0) {
+        call.setDyadMean((int) Math.round(dyadMean));
+        call.setConditionalPosition(smoothed[i] / smoothedSum);
+
+        // Find the variance
+        double sumOfSquares = 0;
+        for (int bp = nucStart; bp <= nucStop; bp++) {
+          sumOfSquares += dyads[bp - paddedStart] * Math.pow(bp - dyadMean, 2);
         }
+        double variance = sumOfSquares / occupancy;
+        call.setDyadStdev(Math.sqrt(variance));
+
+        // variance = mean of squares minus square of mean
+        // this is more efficient but causing cancellation with floats
+        // double variance = sumOfSquares/occupancy -
+        // Math.pow(weightedSum/occupancy, 2);
+
+        // Only write nucleosomes within the current chunk to disk
+        if (chunkStart <= dyad && dyad <= chunkStop) {
+          calls.add(call);
+        }
+
+        // Don't allow nucleosome calls overlapping this nucleosome
+        candidates.exclude(i - nucleosomeSize, i + nucleosomeSize);
+      } else {
+        // Move on to the next highest position
+        candidates.reject(i);
       }
     }
 
-    log.info("Called " + count + " nucleosomes");
+    return calls;
+  }
+
+  /**
+   * The positions that may be called next: a max-heap of the local maxima
+   * among the positions with positive values that have not been excluded or
+   * rejected. Ties are broken by position so that calls are deterministic.
+   */
+  private static class Candidates {
+
+    private final float[] values;
+    private final BitSet excluded;
+    private final BitSet rejected;
+    private int[] heap;
+    private int size = 0;
+
+    Candidates(float[] values) {
+      this.values = values;
+      excluded = new BitSet(values.length);
+      rejected = new BitSet(values.length);
+      heap = new int[64];
+      for (int i = 0; i < values.length; i++) {
+        if (isLocalMax(i)) {
+          push(i);
+        }
+      }
+    }
+
+    /**
+     * @return the value at i, or 0 if it has been excluded
+     */
+    float get(int i) {
+      return excluded.get(i) ? 0 : values[i];
+    }
+
+    /**
+     * @return the value at i, or -Infinity if it cannot be called
+     */
+    private float live(int i) {
+      if (i < 0 || i >= values.length || excluded.get(i) || rejected.get(i) || Float.isNaN(values[i])) {
+        return Float.NEGATIVE_INFINITY;
+      }
+      return values[i];
+    }
+
+    private boolean isLocalMax(int i) {
+      float v = live(i);
+      return v > 0 && v >= live(i - 1) && v >= live(i + 1);
+    }
+
+    /**
+     * @return the highest position that has not been excluded or rejected, or
+     *         -1 if there are none left with positive values
+     */
+    int next() {
+      while (size > 0) {
+        int top = pop();
+        if (!excluded.get(top) && !rejected.get(top)) {
+          return top;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Mark position i as not callable, without excluding its value, and add
+     * its neighbors if they have become local maxima
+     */
+    void reject(int i) {
+      rejected.set(i);
+      if (isLocalMax(i - 1)) {
+        push(i - 1);
+      }
+      if (isLocalMax(i + 1)) {
+        push(i + 1);
+      }
+    }
+
+    /**
+     * Exclude the positions low-high (inclusive), and add the positions on
+     * either side if they have become local maxima
+     */
+    void exclude(int low, int high) {
+      low = Math.max(low, 0);
+      high = Math.min(high, values.length - 1);
+      excluded.set(low, high + 1);
+      if (isLocalMax(low - 1)) {
+        push(low - 1);
+      }
+      if (isLocalMax(high + 1)) {
+        push(high + 1);
+      }
+    }
+
+    private boolean above(int i, int j) {
+      return values[i] > values[j] || (values[i] == values[j] && i < j);
+    }
+
+    private void push(int i) {
+      if (size == heap.length) {
+        heap = Arrays.copyOf(heap, 2 * size);
+      }
+      int k = size++;
+      while (k > 0) {
+        int parent = (k - 1) >>> 1;
+        if (!above(i, heap[parent])) {
+          break;
+        }
+        heap[k] = heap[parent];
+        k = parent;
+      }
+      heap[k] = i;
+    }
+
+    private int pop() {
+      int top = heap[0];
+      int last = heap[--size];
+      int k = 0;
+      while (true) {
+        int child = 2 * k + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && above(heap[child + 1], heap[child])) {
+          child++;
+        }
+        if (!above(heap[child], last)) {
+          break;
+        }
+        heap[k] = heap[child];
+        k = child;
+      }
+      heap[k] = last;
+      return top;
+    }
   }
 
   public static void main(String[] args) {
     new GreedyCaller().instanceMain(args);
   }
-}
\ No newline at end of file
+}
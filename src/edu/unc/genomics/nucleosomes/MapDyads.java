@@ -1,13 +1,10 @@
 package edu.unc.genomics.nucleosomes;
 
-import java.io.IOException;
-import java.util.Iterator;
-
 import com.beust.jcommander.Parameter;
 
+import edu.unc.genomics.ChunkAccumulator;
 import edu.unc.genomics.Interval;
 import edu.unc.genomics.ReadMapperTool;
-import edu.unc.genomics.io.IntervalFileReader;
 
 /**
  * Count the number of read centers overlapping each base pair in the genome
@@ -21,20 +18,30 @@ public class MapDyads extends ReadMapperTool {
   public Integer nucleosomeSize;
 
   @Override
-  public float[] compute(IntervalFileReader<? extends Interval> reader, Interval chunk) throws IOException {
-    float[] count = new float[chunk.length()];
-
+  public int getPadding() {
     // Need to pad the query if artificially shifting read centers
-    int paddedStart = chunk.getStart();
-    int paddedStop = chunk.getStop();
     if (nucleosomeSize != null && nucleosomeSize > 0) {
-      paddedStart = Math.max(chunk.getStart() - nucleosomeSize - 1, 1);
-      paddedStop = Math.min(chunk.getStop() + nucleosomeSize + 1, assembly.getChrLength(chunk.getChr()));
+      return nucleosomeSize + 1;
     }
+    return 0;
+  }
+
+  @Override
+  public ChunkAccumulator newAccumulator(Interval chunk) {
+    return new DyadAccumulator(chunk);
+  }
 
-    Iterator<? extends Interval> it = reader.query(chunk.getChr(), paddedStart, paddedStop);
-    while (it.hasNext()) {
-      Interval entry = it.next();
+  private class DyadAccumulator extends ChunkAccumulator {
+
+    private final float[] count;
+
+    public DyadAccumulator(Interval chunk) {
+      super(chunk);
+      count = new float[chunk.length()];
+    }
+
+    @Override
+    public void add(Interval entry) {
       int center;
       if (nucleosomeSize == null || nucleosomeSize <= 0) {
         center = entry.center();
@@ -52,11 +59,14 @@ public class MapDyads extends ReadMapperTool {
       }
     }
 
-    return count;
+    @Override
+    public float[] getValues() {
+      return count;
+    }
   }
 
   public static void main(String[] args) {
     new MapDyads().instanceMain(args);
   }
 
-}
\ No newline at end of file
+}
@@ -5,7 +5,13 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 
@@ -15,12 +21,23 @@ import com.beust.jcommander.ParameterException;
 import edu.unc.genomics.CommandLineTool;
 import edu.unc.genomics.NucleosomeCall;
 import edu.unc.genomics.NucleosomeCallsFileReader;
+import edu.unc.genomics.OrderedExecutor;
+import edu.unc.genomics.OverlapSweep;
 import edu.unc.genomics.ReadablePathValidator;
+import edu.unc.genomics.io.IntervalFileReader;
 
 /**
  * Takes two sets of nucleosome calls and pairs them with the most likely
  * overlapping call
  * 
+ * Calls are read from file 1 in order, and each run of calls on one chromosome
+ * is paired with the calls for that chromosome in file 2 by a single
+ * OverlapSweep. Runs are paired in parallel, and pairs are written in the order
+ * of the calls in file 1. By default, each call in file 1 is
+ * paired with its best overlapping call in file 2 (so calls in file 2 may be
+ * paired more than once). With --unique, pairs are chosen greedily from the largest overlap
+ * down so that each call is in at most one pair.
+ * 
  * @author timpalpant
  *
  */
@@ -28,60 +45,169 @@ public class PairOverlappingNucleosomes extends CommandLineTool {
 
   private static final Logger log = Logger.getLogger(PairOverlappingNucleosomes.class);
 
-  @Parameter(names = { "-a", "--input1" }, description = "Input file 1 (nucleosome calls)", required = true, validateWith = ReadablePathValidator.class)
+  @Parameter(names = { "-a", "--input1" }, description = "Input file 1 (nucleosome calls, text or binary)", required = true, validateWith = ReadablePathValidator.class)
   public Path inputFile1;
-  @Parameter(names = { "-b", "--input2" }, description = "Input file 2 (nucleosome calls)", required = true, validateWith = ReadablePathValidator.class)
+  @Parameter(names = { "-b", "--input2" }, description = "Input file 2 (nucleosome calls, text or binary)", required = true, validateWith = ReadablePathValidator.class)
   public Path inputFile2;
   @Parameter(names = { "-m", "--overlap" }, description = "Minimum overlap (bp)")
   public int minOverlap = 73;
+  @Parameter(names = { "-u", "--unique" }, description = "Pair each call at most once (one-to-one matching)")
+  public boolean unique = false;
+  @Parameter(names = { "-p", "--threads" }, description = "Number of chromosomes to pair in parallel")
+  public int nThreads = 1;
   @Parameter(names = { "-o", "--output" }, description = "Paired overlapping calls", required = true)
   public Path outputFile;
 
+  private int paired = 0;
+
   @Override
   public void run() throws IOException {
     if (minOverlap <= 0) {
       throw new ParameterException("Invalid overlap! Must be > 0");
     }
 
-    int paired = 0;
-    try (NucleosomeCallsFileReader nucReader1 = new NucleosomeCallsFileReader(inputFile1);
-        NucleosomeCallsFileReader nucReader2 = new NucleosomeCallsFileReader(inputFile2);
-        BufferedWriter writer = Files.newBufferedWriter(outputFile, Charset.defaultCharset())) {
+    try (IntervalFileReader<NucleosomeCall> nucReader1 = NucleosomeCallsFileReader.autodetect(inputFile1);
+        IntervalFileReader<NucleosomeCall> nucReader2 = NucleosomeCallsFileReader.autodetect(inputFile2);
+        final BufferedWriter writer = Files.newBufferedWriter(outputFile, Charset.defaultCharset())) {
       // Write header
       writer
           .write("#chr\tstart\tstop\tdyad\tdyadStdev\tdyadMean\toccupancy\tchr\tstart\tstop\tdyad\tdyadStdev\tdyadMean\toccupancy");
       writer.newLine();
 
-      for (NucleosomeCall call1 : nucReader1) {
-        // Find the best overlapping call
-        int maxOverlap = 0;
-        NucleosomeCall mate = null;
-        Iterator<NucleosomeCall> overlappingNucs = nucReader2.query(call1);
-        while (overlappingNucs.hasNext()) {
-          NucleosomeCall call2 = overlappingNucs.next();
-          int overlap = Math.min(call1.high(), call2.high()) - Math.max(call1.low(), call2.low());
-          if (overlap > maxOverlap) {
-            maxOverlap = overlap;
-            mate = call2;
+      // Only load a few chromosomes ahead of the oldest unwritten chromosome
+      try (OrderedExecutor<List<NucleosomeCall[]>> executor = new OrderedExecutor<List<NucleosomeCall[]>>(nThreads) {
+        @Override
+        protected void handle(List<NucleosomeCall[]> pairs) throws IOException {
+          paired += write(pairs, writer);
+        }
+      }) {
+        // Split the calls in file 1 into runs on the same chromosome
+        List<NucleosomeCall> run = new ArrayList<>();
+        for (NucleosomeCall call : nucReader1) {
+          if (!run.isEmpty() && !call.getChr().equals(run.get(0).getChr())) {
+            submit(run, nucReader2, executor);
+            run = new ArrayList<>();
           }
+          run.add(call);
         }
-
-        // Found a pair, write to output
-        if (maxOverlap > minOverlap) {
-          paired++;
-          writer.write(call1.getChr() + "\t" + call1.getStart() + "\t" + call1.getStop() + "\t" + call1.getDyad()
-              + "\t" + call1.getDyadStdev() + "\t" + call1.getDyadMean() + "\t" + call1.occupancy());
-          writer.write("\t" + mate.getChr() + "\t" + mate.getStart() + "\t" + mate.getStop() + "\t" + mate.getDyad()
-              + "\t" + mate.getDyadStdev() + "\t" + mate.getDyadMean() + "\t" + mate.occupancy());
-          writer.newLine();
+        if (!run.isEmpty()) {
+          submit(run, nucReader2, executor);
         }
+        executor.finish();
       }
     }
 
     log.info("Found " + paired + " paired nucleosomes");
   }
 
+  /**
+   * Pair a run of calls from file 1 on one chromosome
+   */
+  private void submit(final List<NucleosomeCall> calls1, IntervalFileReader<NucleosomeCall> nucReader2,
+      OrderedExecutor<List<NucleosomeCall[]>> executor) throws IOException {
+    String chr = calls1.get(0).getChr();
+    if (!nucReader2.chromosomes().contains(chr)) {
+      return;
+    }
+
+    log.debug("Processing " + calls1.size() + " calls on chromosome " + chr);
+    final List<NucleosomeCall> calls2 = nucReader2.load(chr, 0, Integer.MAX_VALUE);
+    executor.submit(new Callable<List<NucleosomeCall[]>>() {
+      @Override
+      public List<NucleosomeCall[]> call() {
+        return pair(calls1, calls2);
+      }
+    });
+  }
+
+  private static int write(List<NucleosomeCall[]> pairs, BufferedWriter writer) throws IOException {
+    for (NucleosomeCall[] pair : pairs) {
+      NucleosomeCall call1 = pair[0];
+      NucleosomeCall mate = pair[1];
+      writer.write(call1.getChr() + "\t" + call1.getStart() + "\t" + call1.getStop() + "\t" + call1.getDyad() + "\t"
+          + call1.getDyadStdev() + "\t" + call1.getDyadMean() + "\t" + call1.occupancy());
+      writer.write("\t" + mate.getChr() + "\t" + mate.getStart() + "\t" + mate.getStop() + "\t" + mate.getDyad() + "\t"
+          + mate.getDyadStdev() + "\t" + mate.getDyadMean() + "\t" + mate.occupancy());
+      writer.newLine();
+    }
+    return pairs.size();
+  }
+
+  private static int overlap(NucleosomeCall call1, NucleosomeCall call2) {
+    return Math.min(call1.high(), call2.high()) - Math.max(call1.low(), call2.low());
+  }
+
+  /**
+   * A possible pair for one-to-one matching
+   */
+  private static class Candidate {
+    final int overlap;
+    final int i;
+    final NucleosomeCall mate;
+
+    Candidate(int overlap, int i, NucleosomeCall mate) {
+      this.overlap = overlap;
+      this.i = i;
+      this.mate = mate;
+    }
+  }
+
+  /**
+   * Pair the calls on one chromosome
+   * 
+   * @return the pairs (call in file 1, call in file 2), in order of the calls
+   *         in file 1
+   */
+  List<NucleosomeCall[]> pair(final List<NucleosomeCall> calls1, List<NucleosomeCall> calls2) {
+    // The best overlapping call in file 2 for each call in file 1, or all
+    // possible pairs for one-to-one matching
+    final NucleosomeCall[] mates = new NucleosomeCall[calls1.size()];
+    final int[] maxOverlap = new int[calls1.size()];
+    final List<Candidate> candidates = new ArrayList<>();
+    OverlapSweep.sweep(calls1, calls2, new OverlapSweep.Visitor<NucleosomeCall>() {
+      @Override
+      public void visit(int i, NucleosomeCall call2) {
+        int overlap = overlap(calls1.get(i), call2);
+        if (unique) {
+          if (overlap > minOverlap) {
+            candidates.add(new Candidate(overlap, i, call2));
+          }
+        } else if (overlap > maxOverlap[i]) {
+          maxOverlap[i] = overlap;
+          mates[i] = call2;
+        }
+      }
+    });
+
+    if (unique) {
+      // Take the pairs with the most overlap first (stable, so ties go to the
+      // leftmost calls)
+      Collections.sort(candidates, new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate o1, Candidate o2) {
+          return Integer.compare(o2.overlap, o1.overlap);
+        }
+      });
+      Set<NucleosomeCall> used = Collections.newSetFromMap(new IdentityHashMap<NucleosomeCall, Boolean>());
+      for (Candidate candidate : candidates) {
+        if (mates[candidate.i] == null && used.add(candidate.mate)) {
+          mates[candidate.i] = candidate.mate;
+          maxOverlap[candidate.i] = candidate.overlap;
+        }
+      }
+    }
+
+    List<NucleosomeCall[]> pairs = new ArrayList<>();
+    for (int i = 0; i < mates.length; i++) {
+      // Found a pair
+      if (maxOverlap[i] > minOverlap) {
+        pairs.add(new NucleosomeCall[] { calls1.get(i), mates[i] });
+      }
+    }
+    return pairs;
+  }
+
   public static void main(String[] args) {
     new PairOverlappingNucleosomes().instanceMain(args);
   }
-}
\ No newline at end of file
+}
@@ -1,9 +1,18 @@
 package edu.unc.genomics.nucleosomes;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.apache.log4j.Logger;
 
 import com.beust.jcommander.Parameter;
@@ -14,12 +23,19 @@ import edu.unc.genomics.ReadablePathValidator;
 import edu.unc.genomics.WigMathTool;
 import edu.unc.genomics.io.WigFileReader;
 import edu.unc.genomics.io.WigFileException;
+import edu.unc.utils.RollingSum;
 
 /**
  * Calculate a potential energy landscape from nucleosome occupancy data. See
  * Locke G, et al. (2010) High-throughput sequencing reveals a simple model of
  * nucleosome energetics. PNAS 107: 20998-21003
  * 
+ * The maximum genome-wide occupancy (used to normalize the dyads) is computed
+ * with one thread per chromosome, and saved next to the dyads file (with the
+ * extension .maxocc) so that later runs with the same dyads file and nucleosome
+ * size can skip it. Occupancy and the Percus summation are computed with
+ * rolling sums over a nucleosome-size window of each padded chunk.
+ * 
  * @author timpalpant
  *
  */
@@ -31,6 +47,8 @@ public class PercusDecomposition extends WigMathTool {
   public Path dyadsFile;
   @Parameter(names = { "-n", "--size" }, description = "Nucleosome size (bp)")
   public int nucleosomeSize = 147;
+  @Parameter(names = { "--no-cache" }, description = "Recompute the maximum occupancy instead of using the cached value")
+  public boolean noCache = false;
 
   private WigFileReader reader;
   int halfNuc = 73;
@@ -48,59 +66,112 @@ public class PercusDecomposition extends WigMathTool {
     addInputFile(reader);
     halfNuc = nucleosomeSize / 2;
 
-    log.debug("Initializing statistics");
-    DescriptiveStatistics percusStats = new DescriptiveStatistics();
-    percusStats.setWindowSize(nucleosomeSize);
-    DescriptiveStatistics occupancyStats = new DescriptiveStatistics();
-    occupancyStats.setWindowSize(nucleosomeSize);
+    Path cacheFile = dyadsFile.resolveSibling(dyadsFile.getFileName() + ".maxocc");
+    Float cached = noCache ? null : readMaxOcc(cacheFile);
+    if (cached != null) {
+      maxOcc = cached;
+      log.debug("Loaded maximum genome-wide occupancy = " + maxOcc + " from " + cacheFile);
+      return;
+    }
 
     log.debug("Computing maximum genome-wide occupancy (normalization factor)");
-    for (String chr : reader.chromosomes()) {
-      occupancyStats.clear();
-
-      // Walk the chromosome while keeping track of occupancy
-      int bp = reader.getChrStart(chr);
-      int stop = reader.getChrStop(chr);
-      while (bp <= stop) {
-        int chunkStart = bp;
-        int chunkStop = Math.min(chunkStart + DEFAULT_CHUNK_SIZE - 1, stop);
-
-        try {
-          float[] data = reader.query(chr, chunkStart, chunkStop).getValues();
-          for (int i = 0; i < data.length; i++) {
-            if (Float.isNaN(data[i])) {
-              data[i] = 0;
-            }
-
-            occupancyStats.addValue(data[i]);
-            if (occupancyStats.getSum() > maxOcc) {
-              maxOcc = (float) occupancyStats.getSum();
-            }
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+    try {
+      List<Future<Float>> futures = new ArrayList<>();
+      for (final String chr : reader.chromosomes()) {
+        futures.add(pool.submit(new Callable<Float>() {
+          @Override
+          public Float call() throws Exception {
+            return getMaxOcc(chr);
           }
-        } catch (WigFileException | IOException e) {
-          log.error("Error getting data from input Wig file");
-          e.printStackTrace();
-          throw new CommandLineToolException("Error getting data from input Wig file");
+        }));
+      }
+      for (Future<Float> f : futures) {
+        maxOcc = Math.max(maxOcc, f.get());
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      log.error("Error getting data from input Wig file");
+      e.printStackTrace();
+      throw new CommandLineToolException("Error getting data from input Wig file");
+    } finally {
+      pool.shutdownNow();
+    }
+    log.debug("Computed maximum genome-wide occupancy = " + maxOcc);
+    writeMaxOcc(cacheFile);
+  }
+
+  /**
+   * Walk a chromosome while keeping track of occupancy
+   * 
+   * @return the maximum occupancy (sum of dyads in a nucleosome-size window)
+   */
+  private float getMaxOcc(String chr) throws IOException, WigFileException {
+    RollingSum occupancy = new RollingSum(nucleosomeSize);
+    float max = 0;
+    int bp = reader.getChrStart(chr);
+    int stop = reader.getChrStop(chr);
+    while (bp <= stop) {
+      int chunkStart = bp;
+      int chunkStop = Math.min(chunkStart + DEFAULT_CHUNK_SIZE - 1, stop);
+      float[] data = reader.query(chr, chunkStart, chunkStop).getValues();
+      for (int i = 0; i < data.length; i++) {
+        occupancy.addValue(Float.isNaN(data[i]) ? 0 : data[i]);
+        if (occupancy.getSum() > max) {
+          max = (float) occupancy.getSum();
         }
+      }
+      bp = chunkStop + 1;
+    }
+    return max;
+  }
 
-        bp = chunkStop + 1;
+  /**
+   * @return the cached maximum occupancy, or null if there is no cache that is
+   *         up to date with the dyads file and nucleosome size
+   */
+  private Float readMaxOcc(Path cacheFile) {
+    try {
+      if (!Files.isReadable(cacheFile)
+          || Files.getLastModifiedTime(cacheFile).compareTo(Files.getLastModifiedTime(dyadsFile)) < 0) {
+        return null;
+      }
+      List<String> lines = Files.readAllLines(cacheFile, Charset.defaultCharset());
+      if (lines.size() > 0) {
+        String[] tokens = lines.get(0).split("\t");
+        if (tokens.length == 2 && Integer.parseInt(tokens[0]) == nucleosomeSize) {
+          return Float.valueOf(tokens[1]);
+        }
       }
+    } catch (IOException | NumberFormatException e) {
+      log.warn("Ignoring invalid maximum occupancy cache " + cacheFile);
+    }
+    return null;
+  }
+
+  private void writeMaxOcc(Path cacheFile) {
+    try (BufferedWriter writer = Files.newBufferedWriter(cacheFile, Charset.defaultCharset())) {
+      writer.write(nucleosomeSize + "\t" + maxOcc);
+      writer.newLine();
+    } catch (IOException e) {
+      log.warn("Could not cache maximum occupancy in " + cacheFile);
     }
-    log.debug("Computed maximum genome-wide occupancy = " + maxOcc);
   }
 
   @Override
   public float[] compute(Interval chunk) throws IOException, WigFileException {
-    DescriptiveStatistics percusStats = new DescriptiveStatistics();
-    percusStats.setWindowSize(nucleosomeSize);
-    DescriptiveStatistics occupancyStats = new DescriptiveStatistics();
-    occupancyStats.setWindowSize(nucleosomeSize);
-
     // Pad the query with an additional nucleosome on either end
-    int paddedStart = Math.max(chunk.getStart() - nucleosomeSize, reader.getChrStart(chunk.getChr()));
-    int paddedStop = Math.min(chunk.getStop() + nucleosomeSize, reader.getChrStop(chunk.getChr()));
-
-    float[] dyads = reader.query(chunk.getChr(), paddedStart, paddedStop).getValues();
+    // (with no dyads past the ends of the chromosome)
+    String chr = chunk.getChr();
+    int paddedStart = chunk.getStart() - nucleosomeSize;
+    int paddedStop = chunk.getStop() + nucleosomeSize;
+    int queryStart = Math.max(paddedStart, reader.getChrStart(chr));
+    int queryStop = Math.min(paddedStop, reader.getChrStop(chr));
+    float[] dyads = reader.query(chr, queryStart, queryStop).getValues();
+    if (queryStart != paddedStart || queryStop != paddedStop) {
+      float[] padded = new float[paddedStop - paddedStart + 1];
+      System.arraycopy(dyads, 0, padded, queryStart - paddedStart, dyads.length);
+      dyads = padded;
+    }
     for (int i = 0; i < dyads.length; i++) {
       if (Float.isNaN(dyads[i])) {
         dyads[i] = 0;
@@ -108,31 +179,36 @@ public class PercusDecomposition extends WigMathTool {
     }
 
     // Calculate normalized occupancy & dyads from the dyads data
+    // occ[i] is the sum of the dyads in the nucleosome-size window ending at
+    // i + halfNuc
+    RollingSum window = new RollingSum(nucleosomeSize);
     float[] occ = new float[dyads.length];
-    for (int i = 0; i < dyads.length; i++) {
-      occupancyStats.addValue(dyads[i]);
-      if (i - halfNuc >= 0) {
-        occ[i - halfNuc] = (float) (occupancyStats.getSum() / maxOcc);
+    for (int k = 0; k < dyads.length; k++) {
+      window.addValue(dyads[k]);
+      if (k >= halfNuc) {
+        occ[k - halfNuc] = (float) (window.getSum() / maxOcc);
       }
-      // Also normalize the dyads data
-      dyads[i] /= maxOcc;
     }
-
-    // Prime the summation calculation
-    for (int i = halfNuc; i < 3 * halfNuc; i++) {
-      double summand = Math.log((1 - occ[i]) / (1 - occ[i] + dyads[i]));
-      percusStats.addValue(summand);
+    for (int i = 0; i < dyads.length; i++) {
+      dyads[i] /= maxOcc;
     }
 
     // Assume kb*T = 1 and mu = 0 (can be arbitrarily shifted and scaled)
     // See Eq. S12 in Locke et al. (2010), PNAS
+    // The summation for position i is over the window ending at i + halfNuc
+    window.clear();
     float[] energies = new float[chunk.length()];
-    for (int i = nucleosomeSize; i < dyads.length - nucleosomeSize; i++) {
-      double value = Math.log((1 - occ[i] + dyads[i]) / dyads[i]);
-      double summand = Math.log((1 - occ[i + halfNuc]) / (1 - occ[i + halfNuc] + dyads[i + halfNuc]));
-      percusStats.addValue(summand);
-      double summation = percusStats.getSum();
-      energies[i - nucleosomeSize] = (float) (value + summation);
+    for (int k = 0; k < dyads.length; k++) {
+      window.addValue((float) Math.log((1 - occ[k]) / (1 - occ[k] + dyads[k])));
+      int i = k - halfNuc;
+      int j = i - nucleosomeSize;
+      if (j >= 0 && j < energies.length) {
+        double value = Math.log((1 - occ[i] + dyads[i]) / dyads[i]);
+        // RollingSum skips NaN terms (0/0 where occupancy is 1), but they make
+        // the summation undefined
+        double summation = (window.getN() < nucleosomeSize) ? Double.NaN : window.getSum();
+        energies[j] = (float) (value + summation);
+      }
     }
 
     return energies;
@@ -142,4 +218,4 @@ public class PercusDecomposition extends WigMathTool {
     new PercusDecomposition().instanceMain(args);
   }
 
-}
\ No newline at end of file
+}
@@ -5,26 +5,34 @@ import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
 import com.beust.jcommander.Parameter;
 
-import edu.unc.genomics.CommandLineTool;
 import edu.unc.genomics.CommandLineToolException;
+import edu.unc.genomics.Interval;
 import edu.unc.genomics.ReadablePathValidator;
+import edu.unc.genomics.WigAnalysisTool;
 import edu.unc.genomics.io.WigFileReader;
 import edu.unc.genomics.io.WigFileException;
+import edu.unc.utils.FFTUtils;
 
 /**
  * Make a histogram of phase counts from sequencing data to identify
  * periodicities. See Valouev A, et al. (2011) Determinants of nucleosome
  * organization in primary human cells. Nature 474: 516-520
  * 
+ * Chunks are processed in parallel, each thread adding to its own phase counts
+ * which are merged at the end. Missing (NaN) and infinite values are set to 0,
+ * and the lagged products are computed with FFTs when maxPhase is large.
+ * 
  * @author timpalpant
  *
  */
-public class Phasogram extends CommandLineTool {
+public class Phasogram extends WigAnalysisTool {
 
   private static final Logger log = Logger.getLogger(Phasogram.class);
 
@@ -35,38 +43,64 @@ public class Phasogram extends CommandLineTool {
   @Parameter(names = { "-o", "--output" }, description = "Output file (histogram)", required = true)
   public Path outputFile;
 
-  public void run() throws IOException {
-    double[] phaseCounts = new double[maxPhase + 1];
+  private WigFileReader reader;
+  /**
+   * Phase counts for each thread, merged in shutdown
+   */
+  private final List<double[]> partials = new ArrayList<>();
+  private final ThreadLocal<double[]> phaseCounts = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      double[] counts = new double[maxPhase + 1];
+      synchronized (partials) {
+        partials.add(counts);
+      }
+      return counts;
+    }
+  };
+
+  @Override
+  protected void prepare() {
+    if (maxPhase < 0) {
+      throw new CommandLineToolException("Maximum phase shift must be >= 0");
+    }
+
+    try {
+      reader = WigFileReader.autodetect(inputFile);
+    } catch (IOException e) {
+      throw new CommandLineToolException("IOError opening Wig file: " + inputFile, e);
+    }
+    addInputFile(reader);
+  }
 
-    // Process each chromosome in the input file
-    try (WigFileReader reader = WigFileReader.autodetect(inputFile)) {
-      for (String chr : reader.chromosomes()) {
-        log.debug("Processing chromosome " + chr);
-        int start = reader.getChrStart(chr);
-        while (start < reader.getChrStop(chr)) {
-          int stop = Math.min(start + DEFAULT_CHUNK_SIZE - 1, reader.getChrStop(chr));
-          log.debug("Processing chunk " + chr + ":" + start + "-" + stop);
-          int paddedStop = Math.min(stop + maxPhase, reader.getChrStop(chr));
+  @Override
+  protected void process(Interval chunk) throws IOException, WigFileException {
+    // Pad the chunk with maxPhase bp so that every position in the chunk is
+    // paired with the following maxPhase bp. Positions within maxPhase bp of
+    // the end of the chromosome are not counted.
+    int chrStop = reader.getChrStop(chunk.getChr());
+    int paddedStop = Math.min(chunk.high() + maxPhase, chrStop);
+    int n = Math.min(chunk.high(), chrStop - maxPhase) - chunk.low() + 1;
+    if (n <= 0) {
+      return;
+    }
 
-          try {
-            float[] data = reader.query(chr, start, paddedStop).getValues();
-            for (int i = 0; i < data.length - maxPhase; i++) {
-              if (!Float.isNaN(data[i]) && !Float.isInfinite(data[i])) {
-                for (int j = 0; j <= maxPhase; j++) {
-                  if (!Float.isNaN(data[i + j]) && !Float.isInfinite(data[i + j])) {
-                    phaseCounts[j] += data[i] * data[i + j];
-                  }
-                }
-              }
-            }
-          } catch (WigFileException e) {
-            log.fatal("Error querying data from Wig file!");
-            e.printStackTrace();
-            throw new CommandLineToolException("Error querying data from Wig file!");
-          }
+    float[] data = reader.query(chunk.getChr(), chunk.low(), paddedStop).getValues();
+    for (int i = 0; i < data.length; i++) {
+      if (Float.isNaN(data[i]) || Float.isInfinite(data[i])) {
+        data[i] = 0;
+      }
+    }
+    FFTUtils.addLaggedProducts(data, n, maxPhase, phaseCounts.get());
+  }
 
-          // Process the next chunk
-          start = stop + 1;
+  @Override
+  protected void shutdown() throws IOException {
+    double[] total = new double[maxPhase + 1];
+    synchronized (partials) {
+      for (double[] counts : partials) {
+        for (int i = 0; i < total.length; i++) {
+          total[i] += counts[i];
         }
       }
     }
@@ -74,13 +108,14 @@ public class Phasogram extends CommandLineTool {
     log.debug("Writing output to disk");
     try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(outputFile, Charset.defaultCharset()))) {
       writer.println("#Phase\tCount");
-      for (int i = 0; i < phaseCounts.length; i++) {
-        writer.println(i + "\t" + phaseCounts[i]);
+      for (int i = 0; i < total.length; i++) {
+        writer.println(i + "\t" + total[i]);
       }
     }
+    super.shutdown();
   }
 
   public static void main(String[] args) {
     new Phasogram().instanceMain(args);
   }
-}
\ No newline at end of file
+}
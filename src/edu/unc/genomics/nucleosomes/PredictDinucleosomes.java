@@ -23,6 +23,10 @@ import edu.unc.genomics.io.WigFileException;
  * Attempt to predict dinucleosome signal from mononucleosome data using a
  * simple probabilistic model
  * 
+ * The products of the dyad density at each internucleosome distance are summed
+ * over all distances first, then spread over the dinucleosome with a single
+ * box filter, so each chunk takes O(n * L) time for L fragment lengths.
+ * 
  * @author timpalpant
  *
  */
@@ -105,22 +109,42 @@ public class PredictDinucleosomes extends WigMathTool {
       result[i] /= max;
     }
 
-    float[] prediction = new float[chunk.length()];
+    // Probability of having a dinucleosome with mononucleosome centers at (i)
+    // and (i+l), summed over all internucleosome distances l
+    double[] pairs = new double[result.length];
     for (int l = minL; l <= maxL; l++) {
       int internucleosomeDistance = l - nucleosomeSize;
-      if (internucleosomeDistance <= 0) {
+      if (internucleosomeDistance <= 0 || distribution[l] == 0) {
         continue;
       }
 
       for (int i = 0; i < result.length - internucleosomeDistance; i++) {
-        // Probability of having a dinucleosome with mononucleosome centers at
-        // (i) and (i+l)
-        float p = distribution[l] * result[i] * result[i + internucleosomeDistance];
-        for (int j = i - maxL - nucleosomeSize / 2; j <= i - maxL + nucleosomeSize / 2; j++) {
-          if (j >= 0 && j < prediction.length) {
-            prediction[j] += p;
-          }
-        }
+        pairs[i] += distribution[l] * result[i] * result[i + internucleosomeDistance];
+      }
+    }
+
+    // Spread each dinucleosome over the nucleosome centered at (i) with a box
+    // filter, using prefix sums (and counts of missing values)
+    double[] sums = new double[pairs.length + 1];
+    int[] missing = new int[pairs.length + 1];
+    for (int i = 0; i < pairs.length; i++) {
+      if (Double.isNaN(pairs[i])) {
+        sums[i + 1] = sums[i];
+        missing[i + 1] = missing[i] + 1;
+      } else {
+        sums[i + 1] = sums[i] + pairs[i];
+        missing[i + 1] = missing[i];
+      }
+    }
+
+    float[] prediction = new float[chunk.length()];
+    for (int j = 0; j < prediction.length; j++) {
+      int from = Math.max(j + maxL - nucleosomeSize / 2, 0);
+      int to = Math.min(j + maxL + nucleosomeSize / 2 + 1, pairs.length);
+      if (missing[to] > missing[from]) {
+        prediction[j] = Float.NaN;
+      } else {
+        prediction[j] = (float) (sums[to] - sums[from]);
       }
     }
 
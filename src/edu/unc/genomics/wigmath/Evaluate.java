@@ -0,0 +1,117 @@
+package edu.unc.genomics.wigmath;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.beust.jcommander.Parameter;
+
+import edu.unc.genomics.CommandLineToolException;
+import edu.unc.genomics.Interval;
+import edu.unc.genomics.WigMathTool;
+import edu.unc.genomics.io.WigFileReader;
+import edu.unc.genomics.io.WigFileException;
+import edu.unc.utils.ArrayExpression;
+
+/**
+ * Evaluate an arithmetic expression over multiple (Big)Wig files base pair by
+ * base pair, e.g. log2((a-b)/sqrt(c)). The expression is compiled once and
+ * evaluated in a single pass over all of the inputs, rather than chaining
+ * Subtract, Divide, Root, LogTransform, etc.
+ *
+ * @author timpalpant
+ *
+ */
+public class Evaluate extends WigMathTool {
+
+  private static final Logger log = Logger.getLogger(Evaluate.class);
+
+  @Parameter(names = { "-e", "--expression" }, description = "Expression to evaluate, e.g. log2((a-b)/sqrt(c))", required = true)
+  public String expression;
+  @Parameter(names = { "-z", "--assume-zero" }, description = "Assume missing data is zero")
+  public boolean assumeZero = false;
+  @Parameter(description = "Input files (name=file)", required = true)
+  public List<String> inputFiles = new ArrayList<String>();
+
+  private List<String> names = new ArrayList<>();
+  private ArrayExpression compiled;
+
+  @Override
+  public void setup() {
+    log.debug("Initializing input files");
+    for (String arg : inputFiles) {
+      int eq = arg.indexOf('=');
+      if (eq <= 0 || eq == arg.length() - 1) {
+        throw new CommandLineToolException("Input files must be given as name=file, got: " + arg);
+      }
+      String name = arg.substring(0, eq);
+      if (names.contains(name)) {
+        throw new CommandLineToolException("Input name " + name + " is used more than once");
+      }
+
+      try {
+        addInputFile(WigFileReader.autodetect(Paths.get(arg.substring(eq + 1))));
+      } catch (IOException e) {
+        log.error("IOError initializing input Wig file: " + arg);
+        throw new CommandLineToolException(e);
+      }
+      names.add(name);
+    }
+    log.debug("Initialized " + inputs.size() + " input files");
+
+    Set<String> used = ArrayExpression.getVariables(expression);
+    for (String name : used) {
+      if (!names.contains(name)) {
+        throw new CommandLineToolException("No input file given for variable " + name + " in expression");
+      }
+    }
+    for (String name : names) {
+      if (!used.contains(name)) {
+        log.warn("Input " + name + " is not used in the expression");
+      }
+    }
+
+    try {
+      compiled = new ArrayExpression(expression, names);
+    } catch (IllegalArgumentException e) {
+      throw new CommandLineToolException(e.getMessage());
+    }
+    log.debug("Compiled expression: " + compiled);
+
+    if (assumeZero) {
+      log.debug("Assuming missing data is zero");
+      unionExtents = true;
+    }
+  }
+
+  @Override
+  public float[] compute(Interval chunk) throws IOException, WigFileException {
+    float[][] data = new float[inputs.size()][];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = inputs.get(i).query(chunk).getValues();
+      if (assumeZero) {
+        for (int j = 0; j < data[i].length; j++) {
+          if (Float.isNaN(data[i][j])) {
+            data[i][j] = 0;
+          }
+        }
+      }
+    }
+
+    return compiled.evaluate(data);
+  }
+
+  /**
+   * @param args
+   * @throws WigFileException
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException, WigFileException {
+    new Evaluate().instanceMain(args);
+  }
+
+}
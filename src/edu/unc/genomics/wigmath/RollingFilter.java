@@ -0,0 +1,116 @@
+package edu.unc.genomics.wigmath;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.log4j.Logger;
+
+import com.beust.jcommander.Parameter;
+
+import edu.unc.genomics.CommandLineToolException;
+import edu.unc.genomics.Interval;
+import edu.unc.genomics.ReadablePathValidator;
+import edu.unc.genomics.WigMathTool;
+import edu.unc.genomics.io.WigFileReader;
+import edu.unc.genomics.io.WigFileException;
+import edu.unc.utils.RollingMinMax;
+import edu.unc.utils.RollingPercentile;
+import edu.unc.utils.RollingSum;
+import edu.unc.utils.RollingWindow;
+
+/**
+ * Smooth a (Big)Wig file with a rolling-window filter (min, max, median,
+ * percentile, mean, sum, or standard deviation). A rolling median is a robust
+ * alternative to the moving average for noisy data.
+ *
+ * Missing values (NaN) are ignored within each window.
+ *
+ * @author timpalpant
+ *
+ */
+public class RollingFilter extends WigMathTool {
+
+  private static final Logger log = Logger.getLogger(RollingFilter.class);
+
+  @Parameter(names = { "-i", "--input" }, description = "Input file", required = true, validateWith = ReadablePathValidator.class)
+  public Path inputFile;
+  @Parameter(names = { "-w", "--width" }, description = "Width of window (bp)")
+  public int width = 11;
+  @Parameter(names = { "-s", "--statistic" }, description = "Statistic to compute (min/max/median/percentile/mean/sum/stdev)")
+  public String statistic = "median";
+  @Parameter(names = { "-q", "--percentile" }, description = "Percentile to compute with -s percentile (0-100)")
+  public double percentile = 50;
+
+  WigFileReader reader;
+
+  @Override
+  public void setup() {
+    if (width < 1) {
+      throw new CommandLineToolException("Window width must be >= 1");
+    }
+    if (percentile < 0 || percentile > 100) {
+      throw new CommandLineToolException("Percentile must be in [0, 100]");
+    }
+    // Fail early on an unknown statistic
+    newWindow();
+    log.debug("Computing rolling " + statistic + " with " + width + " bp window");
+
+    try {
+      reader = WigFileReader.autodetect(inputFile);
+    } catch (IOException e) {
+      throw new CommandLineToolException(e);
+    }
+    inputs.add(reader);
+  }
+
+  /**
+   * @return a new rolling window for the statistic (one per chunk, since chunks
+   *         may be processed in parallel)
+   */
+  private RollingWindow newWindow() {
+    switch (statistic.toLowerCase()) {
+    case "min":
+      return new RollingMinMax(width, false);
+    case "max":
+      return new RollingMinMax(width, true);
+    case "median":
+      return new RollingPercentile(width);
+    case "percentile":
+      return new RollingPercentile(width, percentile);
+    case "mean":
+      return new RollingSum(width);
+    case "sum":
+      return new RollingSum(width) {
+        @Override
+        public float getValue() {
+          return (getN() > 0) ? (float) getSum() : Float.NaN;
+        }
+      };
+    case "stdev":
+      return new RollingSum(width) {
+        @Override
+        public float getValue() {
+          return (float) getStandardDeviation();
+        }
+      };
+    default:
+      throw new CommandLineToolException("Unknown statistic: " + statistic);
+    }
+  }
+
+  @Override
+  public float[] compute(Interval chunk) throws IOException, WigFileException {
+    // Pad the query so that we can provide values for the ends
+    int queryStart = Math.max(chunk.getStart() - width / 2, reader.getChrStart(chunk.getChr()));
+    int queryStop = Math.min(chunk.getStop() + width - 1 - width / 2, reader.getChrStop(chunk.getChr()));
+    float[] data = reader.query(chunk.getChr(), queryStart, queryStop).getValues();
+
+    int from = chunk.getStart() - queryStart;
+    return newWindow().filter(data, from, from + chunk.length());
+  }
+
+  public static void main(String[] args) throws IOException, WigFileException {
+    new RollingFilter().instanceMain(args);
+  }
+
+}
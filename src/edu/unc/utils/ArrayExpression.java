@@ -0,0 +1,546 @@
+package edu.unc.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An arithmetic expression over named float[] inputs, e.g. log2((a-b)/sqrt(c))
+ *
+ * The expression is parsed once into a tree of array operations (with constant
+ * sub-expressions folded), and is then evaluated over the inputs in small
+ * blocks so that every intermediate result stays in cache. This fuses the whole
+ * expression into a single pass over the data, instead of one full pass (and
+ * one full-length temporary array) per operation.
+ *
+ * Supported syntax: numbers, variables, + - * / ^ (power), unary minus,
+ * parentheses, and the functions ln, log (natural), log2, log10, exp, sqrt,
+ * abs, pow(x,y), min(x,y), max(x,y), and fillnan(x,v).
+ *
+ * NaN semantics follow the individual wigmath tools: NaN (missing data)
+ * propagates through every operation, division by zero yields NaN (as in
+ * Divide), and fillnan(x,v) replaces missing values in x with v.
+ *
+ * Evaluation is thread-safe: all scratch space is allocated per call.
+ *
+ * @author timpalpant
+ *
+ */
+public class ArrayExpression {
+
+  /**
+   * The number of values to evaluate through the expression tree at a time
+   */
+  public static final int BLOCK_SIZE = 1024;
+
+  private final String expression;
+  private final List<String> variables;
+  private final Node root;
+  private int nSlots = 0;
+
+  /**
+   * Compile an expression
+   *
+   * @param expression
+   *          the expression to compile
+   * @param variables
+   *          the names of the inputs, in the order they will be passed to
+   *          evaluate()
+   * @throws IllegalArgumentException
+   *           if the expression cannot be parsed or references an unknown
+   *           variable
+   */
+  public ArrayExpression(String expression, List<String> variables) {
+    this.expression = expression;
+    this.variables = new ArrayList<>(variables);
+    Parser parser = new Parser(expression);
+    root = parser.parse();
+  }
+
+  /**
+   * Get the names of all variables referenced in an expression
+   *
+   * @param expression
+   *          an expression
+   * @return the variables in the expression, in order of first appearance
+   */
+  public static Set<String> getVariables(String expression) {
+    Set<String> vars = new LinkedHashSet<>();
+    Tokenizer tokens = new Tokenizer(expression);
+    while (tokens.peek().type != TokenType.END) {
+      Token t = tokens.next();
+      if (t.type == TokenType.IDENT && tokens.peek().type != TokenType.LPAREN) {
+        vars.add(t.text);
+      }
+    }
+    return vars;
+  }
+
+  /**
+   * Evaluate the expression on a set of inputs
+   *
+   * @param inputs
+   *          one array for each variable, in the order passed to the
+   *          constructor. All arrays must be the same length.
+   * @return a new array with the value of the expression at each position
+   */
+  public float[] evaluate(float[]... inputs) {
+    if (inputs.length != variables.size()) {
+      throw new IllegalArgumentException("Expected " + variables.size() + " inputs, got " + inputs.length);
+    }
+    int length = (inputs.length > 0) ? inputs[0].length : 0;
+    for (float[] x : inputs) {
+      if (x.length != length) {
+        throw new IllegalArgumentException("All inputs must have the same length");
+      }
+    }
+
+    float[] result = new float[length];
+    float[][] scratch = new float[nSlots][BLOCK_SIZE];
+    float[] block = new float[BLOCK_SIZE];
+    for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+      int n = Math.min(BLOCK_SIZE, length - offset);
+      root.eval(inputs, offset, n, scratch, block);
+      System.arraycopy(block, 0, result, offset, n);
+    }
+
+    return result;
+  }
+
+  /**
+   * @return true if this expression does not depend on any inputs
+   */
+  public boolean isConstant() {
+    return root instanceof Constant;
+  }
+
+  @Override
+  public String toString() {
+    return expression;
+  }
+
+  /**
+   * A node in the compiled expression tree. Each node evaluates n values
+   * (starting at offset in the inputs) into out[0..n-1].
+   */
+  private static abstract class Node {
+    abstract void eval(float[][] in, int offset, int n, float[][] scratch, float[] out);
+  }
+
+  private static final class Constant extends Node {
+    final float value;
+
+    Constant(float value) {
+      this.value = value;
+    }
+
+    @Override
+    void eval(float[][] in, int offset, int n, float[][] scratch, float[] out) {
+      Arrays.fill(out, 0, n, value);
+    }
+  }
+
+  private static final class Variable extends Node {
+    final int index;
+
+    Variable(int index) {
+      this.index = index;
+    }
+
+    @Override
+    void eval(float[][] in, int offset, int n, float[][] scratch, float[] out) {
+      System.arraycopy(in[index], offset, out, 0, n);
+    }
+  }
+
+  private enum UnaryOp {
+    NEGATE, LN, LOG2, LOG10, EXP, SQRT, ABS;
+
+    float apply(float x) {
+      switch (this) {
+      case NEGATE:
+        return -x;
+      case LN:
+        return (float) Math.log(x);
+      case LOG2:
+        return (float) (Math.log(x) / LN2);
+      case LOG10:
+        return (float) Math.log10(x);
+      case EXP:
+        return (float) Math.exp(x);
+      case SQRT:
+        return (float) Math.sqrt(x);
+      default:
+        return Math.abs(x);
+      }
+    }
+  }
+
+  private static final double LN2 = Math.log(2);
+
+  private static final class Unary extends Node {
+    final UnaryOp op;
+    final Node arg;
+
+    Unary(UnaryOp op, Node arg) {
+      this.op = op;
+      this.arg = arg;
+    }
+
+    @Override
+    void eval(float[][] in, int offset, int n, float[][] scratch, float[] out) {
+      arg.eval(in, offset, n, scratch, out);
+      switch (op) {
+      case NEGATE:
+        for (int i = 0; i < n; i++) {
+          out[i] = -out[i];
+        }
+        break;
+      case SQRT:
+        for (int i = 0; i < n; i++) {
+          out[i] = (float) Math.sqrt(out[i]);
+        }
+        break;
+      case ABS:
+        for (int i = 0; i < n; i++) {
+          out[i] = Math.abs(out[i]);
+        }
+        break;
+      default:
+        for (int i = 0; i < n; i++) {
+          out[i] = op.apply(out[i]);
+        }
+      }
+    }
+  }
+
+  private enum BinaryOp {
+    ADD, SUBTRACT, MULTIPLY, DIVIDE, POW, MIN, MAX, FILLNAN;
+
+    float apply(float x, float y) {
+      switch (this) {
+      case ADD:
+        return x + y;
+      case SUBTRACT:
+        return x - y;
+      case MULTIPLY:
+        return x * y;
+      case DIVIDE:
+        return (y == 0) ? Float.NaN : x / y;
+      case POW:
+        return (float) Math.pow(x, y);
+      case MIN:
+        return (Float.isNaN(x) || Float.isNaN(y)) ? Float.NaN : Math.min(x, y);
+      case MAX:
+        return (Float.isNaN(x) || Float.isNaN(y)) ? Float.NaN : Math.max(x, y);
+      default:
+        return Float.isNaN(x) ? y : x;
+      }
+    }
+  }
+
+  private static final class Binary extends Node {
+    final BinaryOp op;
+    final Node left, right;
+    final int slot;
+
+    Binary(BinaryOp op, Node left, Node right, int slot) {
+      this.op = op;
+      this.left = left;
+      this.right = right;
+      this.slot = slot;
+    }
+
+    @Override
+    void eval(float[][] in, int offset, int n, float[][] scratch, float[] out) {
+      left.eval(in, offset, n, scratch, out);
+      float[] y = scratch[slot];
+      right.eval(in, offset, n, scratch, y);
+      switch (op) {
+      case ADD:
+        for (int i = 0; i < n; i++) {
+          out[i] += y[i];
+        }
+        break;
+      case SUBTRACT:
+        for (int i = 0; i < n; i++) {
+          out[i] -= y[i];
+        }
+        break;
+      case MULTIPLY:
+        for (int i = 0; i < n; i++) {
+          out[i] *= y[i];
+        }
+        break;
+      case DIVIDE:
+        for (int i = 0; i < n; i++) {
+          out[i] = (y[i] == 0) ? Float.NaN : out[i] / y[i];
+        }
+        break;
+      default:
+        for (int i = 0; i < n; i++) {
+          out[i] = op.apply(out[i], y[i]);
+        }
+      }
+    }
+  }
+
+  private enum TokenType {
+    NUMBER, IDENT, PLUS, MINUS, TIMES, DIVIDE, POW, LPAREN, RPAREN, COMMA, END
+  }
+
+  private static final class Token {
+    final TokenType type;
+    final String text;
+    final int pos;
+
+    Token(TokenType type, String text, int pos) {
+      this.type = type;
+      this.text = text;
+      this.pos = pos;
+    }
+  }
+
+  private static final class Tokenizer {
+    private final String s;
+    private int pos = 0;
+    private Token next;
+
+    Tokenizer(String s) {
+      this.s = s;
+      next = read();
+    }
+
+    Token peek() {
+      return next;
+    }
+
+    Token next() {
+      Token t = next;
+      next = read();
+      return t;
+    }
+
+    private Token read() {
+      while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+        pos++;
+      }
+      if (pos >= s.length()) {
+        return new Token(TokenType.END, "", pos);
+      }
+
+      int start = pos;
+      char c = s.charAt(pos);
+      if (Character.isDigit(c) || c == '.') {
+        while (pos < s.length() && (Character.isDigit(s.charAt(pos)) || s.charAt(pos) == '.')) {
+          pos++;
+        }
+        // Exponent, e.g. 1e-3
+        if (pos < s.length() && (s.charAt(pos) == 'e' || s.charAt(pos) == 'E')) {
+          int mark = pos++;
+          if (pos < s.length() && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
+            pos++;
+          }
+          if (pos < s.length() && Character.isDigit(s.charAt(pos))) {
+            while (pos < s.length() && Character.isDigit(s.charAt(pos))) {
+              pos++;
+            }
+          } else {
+            pos = mark;
+          }
+        }
+        return new Token(TokenType.NUMBER, s.substring(start, pos), start);
+      } else if (Character.isLetter(c) || c == '_') {
+        while (pos < s.length() && (Character.isLetterOrDigit(s.charAt(pos)) || s.charAt(pos) == '_')) {
+          pos++;
+        }
+        return new Token(TokenType.IDENT, s.substring(start, pos), start);
+      }
+
+      pos++;
+      switch (c) {
+      case '+':
+        return new Token(TokenType.PLUS, "+", start);
+      case '-':
+        return new Token(TokenType.MINUS, "-", start);
+      case '*':
+        return new Token(TokenType.TIMES, "*", start);
+      case '/':
+        return new Token(TokenType.DIVIDE, "/", start);
+      case '^':
+        return new Token(TokenType.POW, "^", start);
+      case '(':
+        return new Token(TokenType.LPAREN, "(", start);
+      case ')':
+        return new Token(TokenType.RPAREN, ")", start);
+      case ',':
+        return new Token(TokenType.COMMA, ",", start);
+      default:
+        throw new IllegalArgumentException("Unexpected character '" + c + "' at position " + start);
+      }
+    }
+  }
+
+  /**
+   * Recursive-descent parser for the grammar:
+   *
+   * <pre>
+   * expr    := term (('+' | '-') term)*
+   * term    := unary (('*' | '/') unary)*
+   * unary   := '-' unary | power
+   * power   := primary ('^' unary)?
+   * primary := NUMBER | IDENT | IDENT '(' expr (',' expr)* ')' | '(' expr ')'
+   * </pre>
+   */
+  private final class Parser {
+    private final Tokenizer tokens;
+
+    Parser(String s) {
+      tokens = new Tokenizer(s);
+    }
+
+    Node parse() {
+      Node node = expr();
+      if (tokens.peek().type != TokenType.END) {
+        throw error("Unexpected '" + tokens.peek().text + "'", tokens.peek());
+      }
+      return node;
+    }
+
+    private Node expr() {
+      Node node = term();
+      while (tokens.peek().type == TokenType.PLUS || tokens.peek().type == TokenType.MINUS) {
+        BinaryOp op = (tokens.next().type == TokenType.PLUS) ? BinaryOp.ADD : BinaryOp.SUBTRACT;
+        node = binary(op, node, term());
+      }
+      return node;
+    }
+
+    private Node term() {
+      Node node = unary();
+      while (tokens.peek().type == TokenType.TIMES || tokens.peek().type == TokenType.DIVIDE) {
+        BinaryOp op = (tokens.next().type == TokenType.TIMES) ? BinaryOp.MULTIPLY : BinaryOp.DIVIDE;
+        node = binary(op, node, unary());
+      }
+      return node;
+    }
+
+    private Node unary() {
+      if (tokens.peek().type == TokenType.MINUS) {
+        tokens.next();
+        return unary(UnaryOp.NEGATE, unary());
+      }
+      return power();
+    }
+
+    private Node power() {
+      Node node = primary();
+      if (tokens.peek().type == TokenType.POW) {
+        tokens.next();
+        node = binary(BinaryOp.POW, node, unary());
+      }
+      return node;
+    }
+
+    private Node primary() {
+      Token t = tokens.next();
+      switch (t.type) {
+      case NUMBER:
+        try {
+          return new Constant(Float.parseFloat(t.text));
+        } catch (NumberFormatException e) {
+          throw error("Invalid number '" + t.text + "'", t);
+        }
+      case IDENT:
+        if (tokens.peek().type == TokenType.LPAREN) {
+          tokens.next();
+          List<Node> args = new ArrayList<>();
+          args.add(expr());
+          while (tokens.peek().type == TokenType.COMMA) {
+            tokens.next();
+            args.add(expr());
+          }
+          expect(TokenType.RPAREN);
+          return function(t, args);
+        }
+        int index = variables.indexOf(t.text);
+        if (index < 0) {
+          throw error("Unknown variable '" + t.text + "'", t);
+        }
+        return new Variable(index);
+      case LPAREN:
+        Node node = expr();
+        expect(TokenType.RPAREN);
+        return node;
+      default:
+        throw error("Unexpected '" + t.text + "'", t);
+      }
+    }
+
+    private Node function(Token name, List<Node> args) {
+      switch (name.text) {
+      case "ln":
+      case "log":
+        return unary(UnaryOp.LN, arg(name, args, 1).get(0));
+      case "log2":
+        return unary(UnaryOp.LOG2, arg(name, args, 1).get(0));
+      case "log10":
+        return unary(UnaryOp.LOG10, arg(name, args, 1).get(0));
+      case "exp":
+        return unary(UnaryOp.EXP, arg(name, args, 1).get(0));
+      case "sqrt":
+        return unary(UnaryOp.SQRT, arg(name, args, 1).get(0));
+      case "abs":
+        return unary(UnaryOp.ABS, arg(name, args, 1).get(0));
+      case "pow":
+        arg(name, args, 2);
+        return binary(BinaryOp.POW, args.get(0), args.get(1));
+      case "min":
+        arg(name, args, 2);
+        return binary(BinaryOp.MIN, args.get(0), args.get(1));
+      case "max":
+        arg(name, args, 2);
+        return binary(BinaryOp.MAX, args.get(0), args.get(1));
+      case "fillnan":
+        arg(name, args, 2);
+        return binary(BinaryOp.FILLNAN, args.get(0), args.get(1));
+      default:
+        throw error("Unknown function '" + name.text + "'", name);
+      }
+    }
+
+    private List<Node> arg(Token name, List<Node> args, int n) {
+      if (args.size() != n) {
+        throw error("Function " + name.text + " takes " + n + " argument(s), got " + args.size(), name);
+      }
+      return args;
+    }
+
+    private Node unary(UnaryOp op, Node arg) {
+      if (arg instanceof Constant) {
+        return new Constant(op.apply(((Constant) arg).value));
+      }
+      return new Unary(op, arg);
+    }
+
+    private Node binary(BinaryOp op, Node left, Node right) {
+      if (left instanceof Constant && right instanceof Constant) {
+        return new Constant(op.apply(((Constant) left).value, ((Constant) right).value));
+      }
+      return new Binary(op, left, right, nSlots++);
+    }
+
+    private void expect(TokenType type) {
+      Token t = tokens.next();
+      if (t.type != type) {
+        throw error("Expected " + type + " but found '" + t.text + "'", t);
+      }
+    }
+
+    private IllegalArgumentException error(String message, Token t) {
+      return new IllegalArgumentException(message + " at position " + t.pos + " in expression: " + expression);
+    }
+  }
+}
@@ -1,20 +1,30 @@
 package edu.unc.utils;
 
-import org.apache.commons.math3.analysis.UnivariateFunction;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.apache.commons.math3.analysis.interpolation.SplineInterpolator;
-import org.apache.commons.math3.analysis.interpolation.UnivariateInterpolator;
+import org.apache.commons.math3.analysis.polynomials.PolynomialFunction;
+import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
 
 /**
  * Generate scaled versions of an array with different resolution Can be used
  * for downsampling/upsampling a 1D array using interpolation Interpolation
  * routines are from Apache commons-math3
  * 
+ * Scaled arrays are evaluated by walking the spline segments in order (rather
+ * than searching for the segment of every point) and are cached by length. An
+ * ArrayScaler can be shared between threads.
+ * 
  * @author timpalpant
  *
  */
 public class ArrayScaler {
 
-  private UnivariateFunction interp;
+  private final double[] knots;
+  private final double[][] coefficients;
+  private final ConcurrentMap<Integer, double[]> cache = new ConcurrentHashMap<>();
 
   /**
    * Create a new ArrayScaler
@@ -28,8 +38,14 @@ public class ArrayScaler {
       indices[i] = ((double) i) / (x.length - 1);
     }
 
-    UnivariateInterpolator interpolator = new SplineInterpolator();
-    interp = interpolator.interpolate(indices, x);
+    SplineInterpolator interpolator = new SplineInterpolator();
+    PolynomialSplineFunction interp = interpolator.interpolate(indices, x);
+    knots = interp.getKnots();
+    PolynomialFunction[] polynomials = interp.getPolynomials();
+    coefficients = new double[polynomials.length][];
+    for (int i = 0; i < polynomials.length; i++) {
+      coefficients[i] = polynomials[i].getCoefficients();
+    }
   }
 
   /**
@@ -40,10 +56,130 @@ public class ArrayScaler {
    * @return a new vector of length l created by interpolating x
    */
   public double[] getScaled(int l) {
+    double[] stretched = cache.get(l);
+    if (stretched == null) {
+      stretched = evaluate(l);
+      cache.putIfAbsent(l, stretched);
+    }
+    return Arrays.copyOf(stretched, l);
+  }
+
+  /**
+   * Evaluate the spline at i/l for i = 0..l-1
+   */
+  private double[] evaluate(int l) {
     double[] stretched = new double[l];
+    int segment = 0;
     for (int i = 0; i < l; i++) {
-      stretched[i] = interp.value(((double) i) / l);
+      double t = ((double) i) / l;
+      while (segment < coefficients.length - 1 && t >= knots[segment + 1]) {
+        segment++;
+      }
+      // Horner's rule in the local coordinate of the segment
+      double[] c = coefficients[segment];
+      double dt = t - knots[segment];
+      double value = 0;
+      for (int k = c.length - 1; k >= 0; k--) {
+        value = value * dt + c[k];
+      }
+      stretched[i] = value;
     }
     return stretched;
   }
+
+  /**
+   * Precompute the scaled vectors for a range of lengths
+   * 
+   * @param min
+   *          the shortest length
+   * @param max
+   *          the longest length (exclusive)
+   * @param step
+   *          the increment in length between scales
+   * @return a bank of the vectors scaled to lengths min, min+step, ... < max
+   */
+  public KernelBank getKernelBank(int min, int max, int step) {
+    if (min < 1 || step < 1 || max <= min) {
+      throw new IllegalArgumentException("Invalid range of lengths: min = " + min + ", max = " + max + ", step = "
+          + step);
+    }
+    return new KernelBank(min, max, step);
+  }
+
+  /**
+   * An immutable set of scaled vectors, stored contiguously, with the sum and
+   * sum of squares of each one
+   */
+  public class KernelBank {
+
+    private final int[] lengths;
+    private final int[] offsets;
+    private final double[] values;
+    private final double[] sums;
+    private final double[] sumSqs;
+
+    private KernelBank(int min, int max, int step) {
+      int n = (max - min + step - 1) / step;
+      lengths = new int[n];
+      offsets = new int[n + 1];
+      for (int i = 0; i < n; i++) {
+        lengths[i] = min + i * step;
+        offsets[i + 1] = offsets[i] + lengths[i];
+      }
+
+      values = new double[offsets[n]];
+      sums = new double[n];
+      sumSqs = new double[n];
+      for (int i = 0; i < n; i++) {
+        double[] scaled = getScaled(lengths[i]);
+        System.arraycopy(scaled, 0, values, offsets[i], scaled.length);
+        for (double y : scaled) {
+          sums[i] += y;
+          sumSqs[i] += y * y;
+        }
+      }
+    }
+
+    /**
+     * @return the number of scales in the bank
+     */
+    public int size() {
+      return lengths.length;
+    }
+
+    /**
+     * @return the length of scale i
+     */
+    public int getLength(int i) {
+      return lengths[i];
+    }
+
+    /**
+     * @return a copy of the vector for scale i
+     */
+    public double[] get(int i) {
+      return Arrays.copyOfRange(values, offsets[i], offsets[i + 1]);
+    }
+
+    /**
+     * @return element j of the vector for scale i
+     */
+    public double get(int i, int j) {
+      return values[offsets[i] + j];
+    }
+
+    /**
+     * @return the sum of the values of scale i
+     */
+    public double getSum(int i) {
+      return sums[i];
+    }
+
+    /**
+     * @return the sum of the squared values of scale i
+     */
+    public double getSumOfSquares(int i) {
+      return sumSqs[i];
+    }
+  }
 }
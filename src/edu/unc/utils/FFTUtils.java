@@ -1,14 +1,192 @@
 package edu.unc.utils;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jtransforms.fft.DoubleFFT_1D;
 import org.jtransforms.fft.FloatFFT_1D;
 
 /**
  * Routines for working with Fourier transforms and frequency spectrum data
  * 
+ * Transform plans are cached by length and shared between threads, since
+ * computing the twiddle factors for a plan costs about as much as a transform.
+ * Plans for powers of 2 are always kept, and only the few most recently used
+ * plans for other lengths, so that transforming data of many different lengths
+ * does not accumulate plans.
+ * Correlations and convolutions are computed directly when they are short, and
+ * with zero-padded FFTs in O(n log n) otherwise.
+ * 
  * @author timpalpant
  *
  */
 public class FFTUtils {
+
+  /**
+   * Relative cost of one term of an O(n log n) FFT correlation vs. one
+   * multiply-add of a direct correlation, used to choose between them
+   */
+  private static final double FFT_COST = 6;
+
+  /**
+   * The number of plans to keep for lengths that are not powers of 2
+   */
+  private static final int MAX_OTHER_PLANS = 8;
+
+  private static final ConcurrentMap<Integer, FloatFFT_1D> floatPlans = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<Integer, DoubleFFT_1D> doublePlans = new ConcurrentHashMap<>();
+  private static final Map<Integer, FloatFFT_1D> otherFloatPlans = newLRUCache(MAX_OTHER_PLANS);
+  private static final Map<Integer, DoubleFFT_1D> otherDoublePlans = newLRUCache(MAX_OTHER_PLANS);
+
+  /**
+   * Scratch buffers for zero-padded transforms, reused by each thread
+   */
+  private static final ThreadLocal<double[][]> scratch = new ThreadLocal<double[][]>() {
+    @Override
+    protected double[][] initialValue() {
+      return new double[2][0];
+    }
+  };
+
+  /**
+   * @param n
+   *          the length of the transform
+   * @return a (cached) single-precision FFT plan for data of length n
+   */
+  public static FloatFFT_1D getFloatFFT(int n) {
+    if (Integer.bitCount(n) != 1) {
+      synchronized (otherFloatPlans) {
+        FloatFFT_1D fft = otherFloatPlans.get(n);
+        if (fft == null) {
+          fft = new FloatFFT_1D(n);
+          otherFloatPlans.put(n, fft);
+        }
+        return fft;
+      }
+    }
+
+    FloatFFT_1D fft = floatPlans.get(n);
+    if (fft == null) {
+      fft = new FloatFFT_1D(n);
+      FloatFFT_1D existing = floatPlans.putIfAbsent(n, fft);
+      if (existing != null) {
+        fft = existing;
+      }
+    }
+    return fft;
+  }
+
+  /**
+   * @param n
+   *          the length of the transform
+   * @return a (cached) double-precision FFT plan for data of length n
+   */
+  public static DoubleFFT_1D getDoubleFFT(int n) {
+    if (Integer.bitCount(n) != 1) {
+      synchronized (otherDoublePlans) {
+        DoubleFFT_1D fft = otherDoublePlans.get(n);
+        if (fft == null) {
+          fft = new DoubleFFT_1D(n);
+          otherDoublePlans.put(n, fft);
+        }
+        return fft;
+      }
+    }
+
+    DoubleFFT_1D fft = doublePlans.get(n);
+    if (fft == null) {
+      fft = new DoubleFFT_1D(n);
+      DoubleFFT_1D existing = doublePlans.putIfAbsent(n, fft);
+      if (existing != null) {
+        fft = existing;
+      }
+    }
+    return fft;
+  }
+
+  /**
+   * @return a map that keeps only its maxSize most recently used entries (not
+   *         synchronized)
+   */
+  private static <V> Map<Integer, V> newLRUCache(final int maxSize) {
+    return new LinkedHashMap<Integer, V>(2 * maxSize, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, V> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @return the smallest power of 2 that is >= n
+   */
+  public static int nextPowerOf2(int n) {
+    if (n <= 1) {
+      return 1;
+    }
+    int p = Integer.highestOneBit(n - 1) << 1;
+    if (p <= 0) {
+      throw new IllegalArgumentException("Cannot pad " + n + " to a power of 2");
+    }
+    return p;
+  }
+
+  /**
+   * @return true if a correlation with nTerms multiply-adds should be computed
+   *         with FFTs of length m instead
+   */
+  private static boolean useFFT(long nTerms, int m) {
+    return nTerms > FFT_COST * m * (32 - Integer.numberOfLeadingZeros(m));
+  }
+
+  /**
+   * @return this thread's scratch buffer i, zeroed, with at least length n
+   */
+  private static double[] getScratch(int i, int n) {
+    double[][] buffers = scratch.get();
+    if (buffers[i].length < n) {
+      buffers[i] = new double[n];
+    } else {
+      Arrays.fill(buffers[i], 0, n, 0);
+    }
+    return buffers[i];
+  }
+
+  /**
+   * Multiply two real DFTs in the packed layout of JTransforms realForward()
+   * (for even lengths), storing the result in a
+   */
+  private static void multiplyPacked(double[] a, double[] b, int m) {
+    a[0] *= b[0];
+    a[1] *= b[1];
+    for (int k = 2; k < m; k += 2) {
+      double re = a[k] * b[k] - a[k + 1] * b[k + 1];
+      double im = a[k] * b[k + 1] + a[k + 1] * b[k];
+      a[k] = re;
+      a[k + 1] = im;
+    }
+  }
+  /**
+   * Multiply the complex conjugate of a real DFT by another, in the packed
+   * layout of JTransforms realForward() (for even lengths), storing the result
+   * in a
+   */
+  private static void multiplyConjugatePacked(double[] a, double[] b, int m) {
+    a[0] *= b[0];
+    a[1] *= b[1];
+    for (int k = 2; k < m; k += 2) {
+      double re = a[k] * b[k] + a[k + 1] * b[k + 1];
+      double im = a[k] * b[k + 1] - a[k + 1] * b[k];
+      a[k] = re;
+      a[k + 1] = im;
+    }
+  }
+
   /**
    * Computes the power spectrum from FFT data taking into account even/odd
    * length arrays refer to JTransforms documentation for layout of the FFT data
@@ -18,7 +196,19 @@ public class FFTUtils {
    * @return the power spectrum of the complex frequency spectrum in f
    */
   public static float[] abs2(float[] f) {
-    int n = f.length;
+    return abs2(f, f.length);
+  }
+
+  /**
+   * Computes the power spectrum from FFT data in the first n values of f
+   * 
+   * @param f
+   *          the DFT-transformed data from JTransforms.realForward()
+   * @param n
+   *          the length of the transform
+   * @return the power spectrum of the complex frequency spectrum in f
+   */
+  public static float[] abs2(float[] f, int n) {
     float[] ps = new float[n / 2 + 1];
     // DC component
     ps[0] = (f[0] * f[0]) / (n * n);
@@ -52,20 +242,55 @@ public class FFTUtils {
    *         maxShift)
    */
   public static float[] autocovariance(float[] x, int maxShift) {
-    float total = 0;
-    for (int i = 0; i < x.length; i++) {
+    int n = x.length;
+    double total = 0;
+    for (int i = 0; i < n; i++) {
       total += x[i];
     }
-    float mean = total / x.length;
+    double mean = total / n;
 
-    int stop = Math.min(x.length, maxShift);
+    int stop = Math.max(Math.min(n, maxShift), 0);
     float[] auto = new float[stop];
-    for (int i = 0; i < stop; i++) {
-      for (int j = 0; j < x.length - i; j++) {
-        auto[i] += (x[j] - mean) * (x[j + i] - mean);
+    if (stop == 0) {
+      return auto;
+    }
+
+    // Zero-padded so that the circular correlation does not wrap for the
+    // shifts that are computed
+    int m = nextPowerOf2(n + stop - 1);
+    if (m < 2 || !useFFT(((long) n) * stop, m)) {
+      double[] y = getScratch(0, n);
+      for (int i = 0; i < n; i++) {
+        y[i] = x[i] - mean;
+      }
+      for (int i = 0; i < stop; i++) {
+        double sum = 0;
+        for (int j = 0; j < n - i; j++) {
+          sum += y[j] * y[j + i];
+        }
+        auto[i] = (float) sum;
       }
+      return auto;
     }
 
+    double[] y = getScratch(0, m);
+    for (int i = 0; i < n; i++) {
+      y[i] = x[i] - mean;
+    }
+    DoubleFFT_1D fft = getDoubleFFT(m);
+    fft.realForward(y);
+    // Power spectrum (the imaginary parts are 0)
+    y[0] *= y[0];
+    y[1] *= y[1];
+    for (int k = 2; k < m; k += 2) {
+      y[k] = y[k] * y[k] + y[k + 1] * y[k + 1];
+      y[k + 1] = 0;
+    }
+    fft.realInverse(y, true);
+
+    for (int i = 0; i < stop; i++) {
+      auto[i] = (float) y[i];
+    }
     return auto;
   }
 
@@ -79,9 +304,200 @@ public class FFTUtils {
   public static float[] autocovariance(float[] x) {
     return autocovariance(x, x.length);
   }
-  
-  //public static float[] convolve(float[] x, float[] y) {
-    // TODO
-  //}
+
+  /**
+   * Adds the lagged products sum_i x[i] * x[i+j] to sums[j] for each shift j =
+   * 0..maxShift, where i ranges over the first n values of x. Values of x past
+   * the end of the array are taken to be 0. Long inputs are correlated in
+   * blocks of a few times maxShift with zero-padded FFTs, so that memory does
+   * not grow with n. The FFT sums for a block of integer values (such as read
+   * counts) are rounded to the nearest integer, so they are exact as long as
+   * they are below 2^53 and the round-off is below 0.5. Sums for other data
+   * are accurate to the FFT round-off (about 1e-15 of the largest product
+   * sum).
+   * 
+   * @param x
+   *          a vector of real data
+   * @param n
+   *          the number of values of x to use as the left element of each
+   *          product
+   * @param maxShift
+   *          the maximum phase shift to calculate
+   * @param sums
+   *          the sums to add to, having length at least maxShift + 1
+   */
+  public static void addLaggedProducts(float[] x, int n, int maxShift, double[] sums) {
+    n = Math.min(n, x.length);
+    if (n <= 0 || maxShift < 0) {
+      return;
+    }
+
+    // Each block of b left values is correlated with the following b +
+    // maxShift values, which does not wrap in a transform of length m
+    int m = nextPowerOf2(Math.min(n, 3 * (maxShift + 1)) + maxShift);
+    int b = m - maxShift;
+    if (m < 2 || !useFFT(((long) b) * (maxShift + 1), m)) {
+      for (int i = 0; i < n; i++) {
+        double xi = x[i];
+        if (xi != 0) {
+          int stop = Math.min(maxShift, x.length - 1 - i);
+          for (int j = 0; j <= stop; j++) {
+            sums[j] += xi * x[i + j];
+          }
+        }
+      }
+      return;
+    }
+
+    DoubleFFT_1D fft = getDoubleFFT(m);
+    for (int start = 0; start < n; start += b) {
+      double[] left = getScratch(0, m);
+      double[] right = getScratch(1, m);
+      int leftStop = Math.min(start + b, n);
+      for (int i = start; i < leftStop; i++) {
+        left[i - start] = x[i];
+      }
+      int rightStop = Math.min(start + m, x.length);
+      boolean integral = true;
+      for (int i = start; i < rightStop; i++) {
+        right[i - start] = x[i];
+        integral &= (x[i] == Math.rint(x[i]));
+      }
+      fft.realForward(left);
+      fft.realForward(right);
+      multiplyConjugatePacked(left, right, m);
+      fft.realInverse(left, true);
+      for (int j = 0; j <= maxShift; j++) {
+        sums[j] += integral ? Math.rint(left[j]) : left[j];
+      }
+    }
+  }
+
+  /**
+   * Computes the (full, linear) convolution of x and y
+   * 
+   * @param x
+   *          a vector of real data
+   * @param y
+   *          a vector of real data
+   * @return the convolution of x and y, having length x.length + y.length - 1
+   */
+  public static float[] convolve(float[] x, float[] y) {
+    if (x.length == 0 || y.length == 0) {
+      return new float[0];
+    }
+
+    int length = x.length + y.length - 1;
+    float[] result = new float[length];
+    int m = nextPowerOf2(length);
+    if (m < 2 || !useFFT(((long) x.length) * y.length, m)) {
+      double[] sums = getScratch(0, length);
+      for (int i = 0; i < x.length; i++) {
+        for (int j = 0; j < y.length; j++) {
+          sums[i + j] += (double) x[i] * y[j];
+        }
+      }
+      for (int i = 0; i < length; i++) {
+        result[i] = (float) sums[i];
+      }
+      return result;
+    }
+
+    double[] a = getScratch(0, m);
+    double[] b = getScratch(1, m);
+    for (int i = 0; i < x.length; i++) {
+      a[i] = x[i];
+    }
+    for (int i = 0; i < y.length; i++) {
+      b[i] = y[i];
+    }
+    DoubleFFT_1D fft = getDoubleFFT(m);
+    fft.realForward(a);
+    fft.realForward(b);
+    multiplyPacked(a, b, m);
+    fft.realInverse(a, true);
+
+    for (int i = 0; i < length; i++) {
+      result[i] = (float) a[i];
+    }
+    return result;
+  }
+
+  /**
+   * A fixed kernel for convolving long signals in blocks (overlap-save). The
+   * kernel is transformed once, and each block of a few times the kernel length
+   * costs one forward and one inverse FFT, so convolving n values takes O(n log
+   * k) time and O(k) scratch space for a kernel of length k. Kernels are
+   * immutable and may be shared between threads.
+   */
+  public static class Kernel {
+
+    /**
+     * The block length as a multiple of the kernel length
+     */
+    private static final int BLOCK_FACTOR = 4;
+
+    private final int length;
+    private final int m;
+    private final double[] spectrum;
+
+    /**
+     * @param y
+     *          the kernel values
+     */
+    public Kernel(float[] y) {
+      if (y.length == 0) {
+        throw new IllegalArgumentException("Kernel must have at least one value");
+      }
+      length = y.length;
+      m = nextPowerOf2(BLOCK_FACTOR * length);
+      spectrum = new double[m];
+      for (int i = 0; i < length; i++) {
+        spectrum[i] = y[i];
+      }
+      getDoubleFFT(m).realForward(spectrum);
+    }
+
+    /**
+     * @return the length of the kernel
+     */
+    public int length() {
+      return length;
+    }
+
+    /**
+     * Computes the values of the convolution of x with this kernel that do not
+     * extend past the ends of x, i.e. the full convolution from index
+     * length() - 1 to x.length - 1
+     * 
+     * @param x
+     *          a vector of real data
+     * @param result
+     *          stores the convolution value j in result[offset + j], for j = 0
+     *          to x.length - length()
+     * @param offset
+     *          the index in result of the first value
+     */
+    public void convolveValid(float[] x, float[] result, int offset) {
+      int nValid = x.length - length + 1;
+      int step = m - length + 1;
+      DoubleFFT_1D fft = getDoubleFFT(m);
+      for (int start = 0; start < nValid; start += step) {
+        double[] a = getScratch(0, m);
+        int stop = Math.min(start + m, x.length);
+        for (int i = start; i < stop; i++) {
+          a[i - start] = x[i];
+        }
+        fft.realForward(a);
+        multiplyPacked(a, spectrum, m);
+        fft.realInverse(a, true);
+        // The first length - 1 values of each block wrap around
+        int n = Math.min(step, nValid - start);
+        for (int j = 0; j < n; j++) {
+          result[offset + start + j] = (float) a[j + length - 1];
+        }
+      }
+    }
+  }
 
 }
@@ -0,0 +1,188 @@
+package edu.unc.utils;
+
+/**
+ * A sorted multiset of float values supporting insertion, removal, and lookup
+ * by rank in O(log n), for computing order statistics (median, percentiles)
+ * over a sliding window. Each link in the skip list records how many elements
+ * it spans, so the k-th smallest element can be found by walking down the
+ * levels. See: http://code.activestate.com/recipes/576930/
+ *
+ * Removed nodes are kept on per-height free lists so that sliding a window
+ * along a chromosome does not allocate a new node for every base pair.
+ *
+ * @author timpalpant
+ *
+ */
+public class IndexableSkipList {
+
+  private static final class Node {
+    float value;
+    final Node[] next;
+    final int[] width;
+
+    Node(int levels) {
+      next = new Node[levels];
+      width = new int[levels];
+    }
+  }
+
+  private final int maxLevels;
+  private final Node head;
+  private final Node[] free;
+  private final Node[] chain;
+  private final int[] stepsAtLevel;
+  private int size = 0;
+  private long seed = 0x2545F4914F6CDD1DL;
+
+  /**
+   * @param expectedSize
+   *          the maximum number of elements that will be held at one time
+   */
+  public IndexableSkipList(int expectedSize) {
+    maxLevels = 1 + (int) Math.ceil(Math.log(Math.max(expectedSize, 2)) / Math.log(2));
+    head = new Node(maxLevels);
+    free = new Node[maxLevels + 1];
+    chain = new Node[maxLevels];
+    stepsAtLevel = new int[maxLevels];
+    clear();
+  }
+
+  /**
+   * @return the number of elements in the list
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Remove all elements from the list
+   */
+  public void clear() {
+    for (int level = 0; level < maxLevels; level++) {
+      head.next[level] = null;
+      head.width[level] = 1;
+    }
+    size = 0;
+  }
+
+  /**
+   * Get the i-th smallest element
+   *
+   * @param i
+   *          the rank (0-based) of the element to get
+   * @return the element with rank i
+   */
+  public float get(int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+    }
+
+    Node node = head;
+    i++;
+    for (int level = maxLevels - 1; level >= 0; level--) {
+      while (node.next[level] != null && node.width[level] <= i) {
+        i -= node.width[level];
+        node = node.next[level];
+      }
+    }
+    return node.value;
+  }
+
+  /**
+   * Insert a value into the list
+   *
+   * @param value
+   *          the value to insert (must not be NaN)
+   */
+  public void insert(float value) {
+    // Find the last node at each level that is <= value
+    Node node = head;
+    for (int level = maxLevels - 1; level >= 0; level--) {
+      stepsAtLevel[level] = 0;
+      while (node.next[level] != null && node.next[level].value <= value) {
+        stepsAtLevel[level] += node.width[level];
+        node = node.next[level];
+      }
+      chain[level] = node;
+    }
+
+    int d = randomLevel();
+    Node newNode = allocate(d);
+    newNode.value = value;
+    int steps = 0;
+    for (int level = 0; level < d; level++) {
+      Node prev = chain[level];
+      newNode.next[level] = prev.next[level];
+      prev.next[level] = newNode;
+      newNode.width[level] = prev.width[level] - steps;
+      prev.width[level] = steps + 1;
+      steps += stepsAtLevel[level];
+    }
+    for (int level = d; level < maxLevels; level++) {
+      chain[level].width[level]++;
+    }
+    size++;
+  }
+
+  /**
+   * Remove one occurrence of a value from the list
+   *
+   * @param value
+   *          the value to remove
+   * @return true if the value was found and removed
+   */
+  public boolean remove(float value) {
+    // Find the last node at each level that is < value
+    Node node = head;
+    for (int level = maxLevels - 1; level >= 0; level--) {
+      while (node.next[level] != null && node.next[level].value < value) {
+        node = node.next[level];
+      }
+      chain[level] = node;
+    }
+
+    Node target = chain[0].next[0];
+    if (target == null || target.value != value) {
+      return false;
+    }
+
+    int d = target.next.length;
+    for (int level = 0; level < d; level++) {
+      Node prev = chain[level];
+      prev.width[level] += target.width[level] - 1;
+      prev.next[level] = target.next[level];
+    }
+    for (int level = d; level < maxLevels; level++) {
+      chain[level].width[level]--;
+    }
+    size--;
+
+    // Recycle the node
+    target.next[0] = free[d];
+    free[d] = target;
+    return true;
+  }
+
+  private Node allocate(int levels) {
+    Node node = free[levels];
+    if (node == null) {
+      return new Node(levels);
+    }
+    free[levels] = node.next[0];
+    return node;
+  }
+
+  /**
+   * @return a geometrically-distributed level in [1, maxLevels]
+   */
+  private int randomLevel() {
+    // xorshift64* generator, so that results are reproducible
+    seed ^= seed >>> 12;
+    seed ^= seed << 25;
+    seed ^= seed >>> 27;
+    long r = seed * 2685821657736338717L;
+    int level = 1 + Long.numberOfTrailingZeros(r | (1L << 62));
+    return Math.min(level, maxLevels);
+  }
+
+}
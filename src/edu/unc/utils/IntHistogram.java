@@ -0,0 +1,164 @@
+package edu.unc.utils;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of integer values in the range [min, max] with one bin per value,
+ * backed by a primitive array. Values outside of the range are counted in
+ * underflow and overflow buckets, and still count towards the total. Storage
+ * grows with the largest value seen, so wide ranges are cheap if they are
+ * sparsely used.
+ *
+ * Histograms with the same range can be merged, so that values can be counted
+ * on several threads and combined at the end.
+ *
+ * @author timpalpant
+ *
+ */
+public class IntHistogram {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  private final int min;
+  private final int max;
+  private int[] counts;
+  private long underflow = 0;
+  private long overflow = 0;
+  private long n = 0;
+  private int lowest = Integer.MAX_VALUE;
+  private int highest = Integer.MIN_VALUE;
+
+  /**
+   * @param min
+   *          the smallest value with its own bin
+   * @param max
+   *          the largest value with its own bin
+   */
+  public IntHistogram(int min, int max) {
+    if (max < min) {
+      throw new IllegalArgumentException("Histogram max (" + max + ") must be >= min (" + min + ")");
+    }
+    this.min = min;
+    this.max = max;
+    counts = new int[(int) Math.min(INITIAL_CAPACITY, (long) max - min + 1)];
+  }
+
+  public void addValue(int value) {
+    n++;
+    if (value < min) {
+      underflow++;
+    } else if (value > max) {
+      overflow++;
+    } else {
+      int i = value - min;
+      if (i >= counts.length) {
+        grow(i);
+      }
+      counts[i]++;
+      if (value < lowest) {
+        lowest = value;
+      }
+      if (value > highest) {
+        highest = value;
+      }
+    }
+  }
+
+  /**
+   * Add all of the counts in another histogram with the same range to this one
+   */
+  public void merge(IntHistogram other) {
+    if (other.min != min || other.max != max) {
+      throw new IllegalArgumentException("Cannot merge histograms with different ranges");
+    }
+    if (other.n == 0) {
+      return;
+    }
+    if (other.highest >= min && other.highest - min >= counts.length) {
+      grow(other.highest - min);
+    }
+    for (int i = 0; i < other.counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    underflow += other.underflow;
+    overflow += other.overflow;
+    n += other.n;
+    lowest = Math.min(lowest, other.lowest);
+    highest = Math.max(highest, other.highest);
+  }
+
+  private void grow(int i) {
+    long capacity = Math.max((long) i + 1, 2L * counts.length);
+    counts = Arrays.copyOf(counts, (int) Math.min(capacity, (long) max - min + 1));
+  }
+
+  public void clear() {
+    Arrays.fill(counts, 0);
+    underflow = 0;
+    overflow = 0;
+    n = 0;
+    lowest = Integer.MAX_VALUE;
+    highest = Integer.MIN_VALUE;
+  }
+
+  /**
+   * @return the number of times value was added, or 0 if it is out of range
+   */
+  public int getCount(int value) {
+    if (value < min || value > max || value - min >= counts.length) {
+      return 0;
+    }
+    return counts[value - min];
+  }
+
+  /**
+   * @return the fraction of all values (including those out of range) that
+   *         were equal to value, or NaN if the histogram is empty
+   */
+  public double getPct(int value) {
+    if (n == 0) {
+      return Double.NaN;
+    }
+    return ((double) getCount(value)) / n;
+  }
+
+  /**
+   * @return the total number of values added
+   */
+  public long getN() {
+    return n;
+  }
+
+  public long getUnderflow() {
+    return underflow;
+  }
+
+  public long getOverflow() {
+    return overflow;
+  }
+
+  /**
+   * @return the smallest value in range that has been added, or
+   *         Integer.MAX_VALUE if there are none
+   */
+  public int getLowest() {
+    return lowest;
+  }
+
+  /**
+   * @return the largest value in range that has been added, or
+   *         Integer.MIN_VALUE if there are none
+   */
+  public int getHighest() {
+    return highest;
+  }
+
+  public int getMin() {
+    return min;
+  }
+
+  public int getMax() {
+    return max;
+  }
+
+}
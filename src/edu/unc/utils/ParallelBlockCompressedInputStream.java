@@ -0,0 +1,259 @@
+package edu.unc.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF (block compressed gzip) stream, such as a BAM file, inflating
+ * blocks ahead of the reader on a pool of worker threads. The raw blocks are
+ * read from the underlying stream by the consumer thread and the decompressed
+ * bytes are returned in file order, so this is a drop-in replacement for a
+ * sequential BGZF decoder when reading a file from start to finish.
+ *
+ * See the SAM specification for the BGZF block format.
+ *
+ * @author timpalpant
+ *
+ */
+public class ParallelBlockCompressedInputStream extends InputStream {
+
+  /** The number of blocks to keep in flight for each inflater thread */
+  public static final int BLOCKS_PER_THREAD = 8;
+
+  private static final int FIXED_HEADER_LENGTH = 12;
+  private static final int FOOTER_LENGTH = 8;
+  private static final byte[] EMPTY = new byte[0];
+
+  private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater(true);
+    }
+  };
+
+  private final InputStream in;
+  private final ExecutorService pool;
+  private final int readAhead;
+  private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+  private final byte[] header = new byte[FIXED_HEADER_LENGTH];
+  private boolean eof = false;
+  private byte[] buffer = EMPTY;
+  private int pos = 0;
+
+  /**
+   * @param in
+   *          the raw (compressed) stream
+   * @param nThreads
+   *          the number of threads to use for inflating blocks
+   */
+  public ParallelBlockCompressedInputStream(InputStream in, int nThreads) {
+    if (nThreads < 1) {
+      throw new IllegalArgumentException("Must use at least 1 inflater thread");
+    }
+    this.in = in;
+    readAhead = BLOCKS_PER_THREAD * nThreads;
+    pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        // Don't keep the JVM alive if the stream is not closed
+        Thread t = new Thread(r, "BGZF inflater");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureBuffer()) {
+      return -1;
+    }
+    return buffer[pos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+
+    int n = 0;
+    while (n < len && ensureBuffer()) {
+      int count = Math.min(len - n, buffer.length - pos);
+      System.arraycopy(buffer, pos, b, off + n, count);
+      pos += count;
+      n += count;
+    }
+    return (n == 0) ? -1 : n;
+  }
+
+  @Override
+  public int available() {
+    return buffer.length - pos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    pool.shutdownNow();
+    pending.clear();
+    in.close();
+  }
+
+  /**
+   * Make sure that there are unread bytes in the current buffer
+   *
+   * @return false if the end of the stream has been reached
+   */
+  private boolean ensureBuffer() throws IOException {
+    while (pos == buffer.length) {
+      fill();
+      Future<byte[]> next = pending.poll();
+      if (next == null) {
+        return false;
+      }
+
+      try {
+        buffer = next.get();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while inflating BGZF block", e);
+      } catch (ExecutionException e) {
+        throw new IOException("Error inflating BGZF block", e.getCause());
+      }
+      pos = 0;
+    }
+    return true;
+  }
+
+  /**
+   * Read raw blocks and submit them to the pool until the read-ahead queue is
+   * full
+   */
+  private void fill() throws IOException {
+    while (!eof && pending.size() < readAhead) {
+      byte[] block = readBlock();
+      if (block == null) {
+        eof = true;
+      } else {
+        pending.add(pool.submit(new InflateTask(block)));
+      }
+    }
+  }
+
+  /**
+   * Read the next compressed block from the underlying stream
+   *
+   * @return the block following the gzip header (compressed data, CRC32 and
+   *         uncompressed size), or null at the end of the stream
+   */
+  private byte[] readBlock() throws IOException {
+    int n = readFully(header, 0, header.length);
+    if (n == 0) {
+      return null;
+    } else if (n < header.length) {
+      throw new EOFException("Truncated BGZF block header");
+    }
+
+    if ((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || header[2] != 8 || (header[3] & 4) == 0) {
+      throw new IOException("Invalid BGZF block header");
+    }
+
+    // Find the block size in the extra subfields
+    int xlen = unpackShort(header, 10);
+    byte[] extra = new byte[xlen];
+    if (readFully(extra, 0, xlen) < xlen) {
+      throw new EOFException("Truncated BGZF block header");
+    }
+    int blockSize = -1;
+    for (int i = 0; i + 4 <= xlen; i += 4 + unpackShort(extra, i + 2)) {
+      if (extra[i] == 66 && extra[i + 1] == 67) {
+        blockSize = unpackShort(extra, i + 4) + 1;
+        break;
+      }
+    }
+    if (blockSize < 0) {
+      throw new IOException("BGZF block is missing the block size");
+    }
+
+    int remaining = blockSize - FIXED_HEADER_LENGTH - xlen;
+    if (remaining < FOOTER_LENGTH) {
+      throw new IOException("Invalid BGZF block size: " + blockSize);
+    }
+    byte[] block = new byte[remaining];
+    if (readFully(block, 0, remaining) < remaining) {
+      throw new EOFException("Truncated BGZF block");
+    }
+    return block;
+  }
+
+  private int readFully(byte[] b, int off, int len) throws IOException {
+    int n = 0;
+    while (n < len) {
+      int count = in.read(b, off + n, len - n);
+      if (count < 0) {
+        break;
+      }
+      n += count;
+    }
+    return n;
+  }
+
+  private static int unpackShort(byte[] b, int i) {
+    return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8);
+  }
+
+  private static int unpackInt(byte[] b, int i) {
+    return unpackShort(b, i) | (unpackShort(b, i + 2) << 16);
+  }
+
+  /**
+   * Inflate one block and verify its checksum
+   */
+  private static class InflateTask implements Callable<byte[]> {
+
+    private final byte[] block;
+
+    InflateTask(byte[] block) {
+      this.block = block;
+    }
+
+    @Override
+    public byte[] call() throws IOException {
+      int compressedLength = block.length - FOOTER_LENGTH;
+      int expectedCrc = unpackInt(block, compressedLength);
+      int uncompressedLength = unpackInt(block, compressedLength + 4);
+      byte[] data = new byte[uncompressedLength];
+
+      Inflater inflater = inflaters.get();
+      inflater.reset();
+      inflater.setInput(block, 0, compressedLength);
+      try {
+        int n = inflater.inflate(data);
+        if (n != uncompressedLength) {
+          throw new IOException("BGZF block did not inflate to the expected size");
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt BGZF block", e);
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, uncompressedLength);
+      if ((int) crc.getValue() != expectedCrc) {
+        throw new IOException("BGZF block CRC32 mismatch");
+      }
+      return data;
+    }
+  }
+
+}
@@ -0,0 +1,117 @@
+package edu.unc.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Select a uniform random sample of k items from a stream of unknown length in
+ * a single pass, using Algorithm L: after the reservoir is full, the number of
+ * items to skip before the next replacement is drawn directly, so only
+ * O(k(1 + log(N/k))) random numbers are needed for N items.
+ *
+ * See: Li, K.-H. (1994) Reservoir-sampling algorithms of time complexity
+ * O(n(1 + log(N/n))). ACM TOMS 20(4):481-493
+ *
+ * @author timpalpant
+ *
+ */
+public class ReservoirSampler<T> {
+
+  private final int k;
+  private final Random rng;
+  private final Object[] items;
+  private final long[] indices;
+  private long n = 0;
+  private long next;
+  private double w;
+
+  /**
+   * @param k
+   *          the number of items to select
+   * @param rng
+   *          the source of randomness
+   */
+  public ReservoirSampler(int k, Random rng) {
+    if (k < 1) {
+      throw new IllegalArgumentException("Must select at least 1 item");
+    }
+    this.k = k;
+    this.rng = rng;
+    items = new Object[k];
+    indices = new long[k];
+  }
+
+  /**
+   * Offer the next item in the stream to the sample
+   *
+   * @param item
+   *          the next item
+   */
+  public void add(T item) {
+    if (n < k) {
+      items[(int) n] = item;
+      indices[(int) n] = n;
+      if (n == k - 1) {
+        w = Math.exp(Math.log(uniform()) / k);
+        next = n + skip() + 1;
+      }
+    } else if (n == next) {
+      int i = rng.nextInt(k);
+      items[i] = item;
+      indices[i] = n;
+      w *= Math.exp(Math.log(uniform()) / k);
+      long skip = skip();
+      next = (skip >= Long.MAX_VALUE - next) ? Long.MAX_VALUE : next + skip + 1;
+    }
+    n++;
+  }
+
+  /**
+   * @return the number of items that have been offered to the sample
+   */
+  public long getN() {
+    return n;
+  }
+
+  /**
+   * @return the selected items, in the order that they were added
+   */
+  @SuppressWarnings("unchecked")
+  public List<T> getSample() {
+    int size = (int) Math.min(n, k);
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i, Integer j) {
+        return Long.compare(indices[i], indices[j]);
+      }
+    });
+
+    List<T> sample = new ArrayList<>(size);
+    for (int i : order) {
+      sample.add((T) items[i]);
+    }
+    return sample;
+  }
+
+  /**
+   * @return the number of items to skip before the next replacement
+   */
+  private long skip() {
+    return (long) Math.floor(Math.log(uniform()) / Math.log(1 - w));
+  }
+
+  /**
+   * @return a uniform random number in (0, 1]
+   */
+  private double uniform() {
+    return 1 - rng.nextDouble();
+  }
+
+}
@@ -0,0 +1,74 @@
+package edu.unc.utils;
+
+/**
+ * Rolling minimum or maximum in amortized O(1) per value using a monotonic
+ * deque. The deque holds the candidates for the extremum in order of arrival;
+ * any value that is dominated by a newer value can never become the extremum
+ * and is discarded.
+ *
+ * @author timpalpant
+ *
+ */
+public class RollingMinMax extends RollingWindow {
+
+  private final boolean max;
+  // Circular deque of (index, value) pairs
+  private final long[] indices;
+  private final float[] values;
+  private int front = 0;
+  private int length = 0;
+
+  /**
+   * @param width
+   *          the number of values in the window
+   * @param max
+   *          true to compute the rolling maximum, false for the minimum
+   */
+  public RollingMinMax(int width, boolean max) {
+    super(width);
+    this.max = max;
+    indices = new long[width];
+    values = new float[width];
+  }
+
+  @Override
+  protected void insert(float value, long index) {
+    // Pop all dominated values off the back of the deque
+    while (length > 0) {
+      float back = values[(front + length - 1) % width];
+      if (max ? back <= value : back >= value) {
+        length--;
+      } else {
+        break;
+      }
+    }
+
+    int i = (front + length) % width;
+    indices[i] = index;
+    values[i] = value;
+    length++;
+  }
+
+  @Override
+  protected void remove(float value, long index) {
+    if (length > 0 && indices[front] == index) {
+      front = (front + 1) % width;
+      length--;
+    }
+  }
+
+  @Override
+  protected void reset() {
+    front = 0;
+    length = 0;
+  }
+
+  /**
+   * @return the minimum (or maximum) value in the window
+   */
+  @Override
+  public float getValue() {
+    return (length > 0) ? values[front] : Float.NaN;
+  }
+
+}
@@ -0,0 +1,91 @@
+package edu.unc.utils;
+
+/**
+ * Rolling median or percentile in O(log width) per value, using an indexable
+ * skip list to keep the window contents in sorted order
+ *
+ * Percentiles are linearly interpolated between the closest ranks (the same
+ * definition as R type 7 / numpy), so that the 50th percentile of an even
+ * number of values is the mean of the two middle values.
+ *
+ * @author timpalpant
+ *
+ */
+public class RollingPercentile extends RollingWindow {
+
+  private final IndexableSkipList sorted;
+  private final double percentile;
+
+  /**
+   * @param width
+   *          the number of values in the window
+   * @param percentile
+   *          the percentile to compute, in [0, 100]
+   */
+  public RollingPercentile(int width, double percentile) {
+    super(width);
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("Percentile must be in [0, 100]");
+    }
+    this.percentile = percentile;
+    sorted = new IndexableSkipList(width);
+  }
+
+  /**
+   * Create a rolling median
+   *
+   * @param width
+   *          the number of values in the window
+   */
+  public RollingPercentile(int width) {
+    this(width, 50);
+  }
+
+  @Override
+  protected void insert(float value, long index) {
+    sorted.insert(value);
+  }
+
+  @Override
+  protected void remove(float value, long index) {
+    sorted.remove(value);
+  }
+
+  @Override
+  protected void reset() {
+    sorted.clear();
+  }
+
+  /**
+   * Get an arbitrary percentile of the values in the current window
+   *
+   * @param p
+   *          the percentile to compute, in [0, 100]
+   * @return the p-th percentile of the values in the window
+   */
+  public float getPercentile(double p) {
+    int n = sorted.size();
+    if (n == 0) {
+      return Float.NaN;
+    }
+
+    double pos = p / 100 * (n - 1);
+    int lo = (int) Math.floor(pos);
+    int hi = (int) Math.ceil(pos);
+    float low = sorted.get(lo);
+    if (hi == lo) {
+      return low;
+    }
+    float high = sorted.get(hi);
+    return (float) (low + (pos - lo) * (high - low));
+  }
+
+  /**
+   * @return the percentile of the values in the window
+   */
+  @Override
+  public float getValue() {
+    return getPercentile(percentile);
+  }
+
+}
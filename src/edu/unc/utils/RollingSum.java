@@ -0,0 +1,129 @@
+package edu.unc.utils;
+
+/**
+ * Rolling sum, mean, and variance in O(1) per value
+ *
+ * The running totals are recomputed from the window contents after every
+ * width removals (amortized O(1)) so that floating-point error does not
+ * accumulate over long stretches of a chromosome. Infinite values are counted
+ * separately, so they only affect the windows that contain them.
+ *
+ * @author timpalpant
+ *
+ */
+public class RollingSum extends RollingWindow {
+
+  private double sum = 0;
+  private double sumSq = 0;
+  private int removals = 0;
+  private int posInf = 0;
+  private int negInf = 0;
+
+  public RollingSum(int width) {
+    super(width);
+  }
+
+  @Override
+  protected void insert(float value, long index) {
+    if (value == Float.POSITIVE_INFINITY) {
+      posInf++;
+    } else if (value == Float.NEGATIVE_INFINITY) {
+      negInf++;
+    } else {
+      sum += value;
+      sumSq += (double) value * value;
+    }
+  }
+
+  @Override
+  protected void remove(float value, long index) {
+    if (value == Float.POSITIVE_INFINITY) {
+      posInf--;
+    } else if (value == Float.NEGATIVE_INFINITY) {
+      negInf--;
+    } else if (++removals >= width) {
+      resync();
+    } else {
+      sum -= value;
+      sumSq -= (double) value * value;
+    }
+  }
+
+  @Override
+  protected void reset() {
+    sum = 0;
+    sumSq = 0;
+    removals = 0;
+    posInf = 0;
+    negInf = 0;
+  }
+
+  /**
+   * Recompute the totals from the current window. The value being removed has
+   * not yet been overwritten, so it is excluded explicitly.
+   */
+  private void resync() {
+    float[] values = getValues();
+    sum = 0;
+    sumSq = 0;
+    // values[0] is the oldest value, which is being removed
+    for (int i = 1; i < values.length; i++) {
+      if (!Float.isNaN(values[i]) && !Float.isInfinite(values[i])) {
+        sum += values[i];
+        sumSq += (double) values[i] * values[i];
+      }
+    }
+    removals = 0;
+  }
+
+  /**
+   * @return the sum of the values in the window (0 if the window is empty)
+   */
+  public double getSum() {
+    if (posInf > 0 && negInf > 0) {
+      return Double.NaN;
+    } else if (posInf > 0) {
+      return Double.POSITIVE_INFINITY;
+    } else if (negInf > 0) {
+      return Double.NEGATIVE_INFINITY;
+    }
+    return sum;
+  }
+
+  /**
+   * @return the mean of the values in the window
+   */
+  public double getMean() {
+    return (getN() > 0) ? getSum() / getN() : Double.NaN;
+  }
+
+  /**
+   * @return the (bias-corrected) sample variance of the values in the window
+   */
+  public double getVariance() {
+    int n = getN();
+    if (n == 0 || posInf > 0 || negInf > 0) {
+      return Double.NaN;
+    } else if (n == 1) {
+      return 0;
+    }
+    double var = (sumSq - sum * sum / n) / (n - 1);
+    return Math.max(var, 0);
+  }
+
+  /**
+   * @return the sample standard deviation of the values in the window
+   */
+  public double getStandardDeviation() {
+    return Math.sqrt(getVariance());
+  }
+
+  /**
+   * @return the mean of the values in the window
+   */
+  @Override
+  public float getValue() {
+    return (float) getMean();
+  }
+
+}
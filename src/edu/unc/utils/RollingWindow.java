@@ -0,0 +1,180 @@
+package edu.unc.utils;
+
+import java.util.Arrays;
+
+/**
+ * Base class for statistics computed over a sliding window of fixed width
+ *
+ * Values are pushed into the window with addValue(), which evicts the oldest
+ * value once the window is full. Subclasses maintain their statistic
+ * incrementally through the insert() and remove() hooks, so that sliding the
+ * window along a chromosome costs O(1) or O(log width) per base rather than
+ * O(width) as with commons-math DescriptiveStatistics.
+ *
+ * NaN values (missing data) occupy a position in the window but are not passed
+ * to the statistic. If a window contains only NaN, the statistic is NaN.
+ *
+ * @author timpalpant
+ *
+ */
+public abstract class RollingWindow {
+
+  protected final int width;
+  private final float[] window;
+  private int head = 0;
+  private int size = 0;
+  private int n = 0;
+  private long index = 0;
+
+  /**
+   * @param width
+   *          the number of values in the window
+   */
+  public RollingWindow(int width) {
+    if (width < 1) {
+      throw new IllegalArgumentException("Window width must be >= 1");
+    }
+    this.width = width;
+    window = new float[width];
+  }
+
+  /**
+   * Add a new value to the window, evicting the oldest value if the window is
+   * full
+   *
+   * @param value
+   *          the next value
+   */
+  public final void addValue(float value) {
+    if (size == width) {
+      float old = window[head];
+      if (!Float.isNaN(old)) {
+        n--;
+        remove(old, index - width);
+      }
+    } else {
+      size++;
+    }
+
+    window[head] = value;
+    if (!Float.isNaN(value)) {
+      n++;
+      insert(value, index);
+    }
+
+    index++;
+    if (++head == width) {
+      head = 0;
+    }
+  }
+
+  /**
+   * Empty the window
+   */
+  public void clear() {
+    Arrays.fill(window, 0);
+    head = 0;
+    size = 0;
+    n = 0;
+    index = 0;
+    reset();
+  }
+
+  /**
+   * @return the width of the window
+   */
+  public final int getWidth() {
+    return width;
+  }
+
+  /**
+   * @return the number of (non-NaN) values currently in the window
+   */
+  public final int getN() {
+    return n;
+  }
+
+  /**
+   * @return the value of the statistic for the current window
+   */
+  public abstract float getValue();
+
+  /**
+   * Compute the statistic in a centered window around each position of x.
+   * Positions beyond the ends of x are treated as missing.
+   *
+   * @param x
+   *          a vector of values
+   * @return the value of the statistic in the window centered at each position
+   *         of x
+   */
+  public float[] filter(float[] x) {
+    return filter(x, 0, x.length);
+  }
+
+  /**
+   * Compute the statistic in a sliding window over padded data. Window i spans
+   * x[from+i-width/2, from+i-width/2+width-1]. Positions beyond the ends of x
+   * are treated as missing.
+   *
+   * @param x
+   *          a vector of values, including padding for the windows
+   * @param from
+   *          the index of the center of the first window
+   * @param to
+   *          the index (exclusive) of the center of the last window
+   * @return the value of the statistic for each window
+   */
+  public float[] filter(float[] x, int from, int to) {
+    clear();
+    int halfWidth = width / 2;
+    float[] result = new float[Math.max(to - from, 0)];
+    int first = from - halfWidth;
+    for (int j = first; j < to - halfWidth + width - 1; j++) {
+      addValue((j >= 0 && j < x.length) ? x[j] : Float.NaN);
+      int i = j - (width - 1) - first;
+      if (i >= 0) {
+        result[i] = getValue();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Called when a non-NaN value enters the window
+   *
+   * @param value
+   *          the value entering the window
+   * @param index
+   *          the position of the value in the stream of all values added
+   */
+  protected abstract void insert(float value, long index);
+
+  /**
+   * Called when a non-NaN value leaves the window
+   *
+   * @param value
+   *          the value leaving the window
+   * @param index
+   *          the position of the value in the stream of all values added
+   */
+  protected abstract void remove(float value, long index);
+
+  /**
+   * Called when the window is cleared
+   */
+  protected abstract void reset();
+
+  /**
+   * @return the values currently in the window, oldest first
+   */
+  protected final float[] getValues() {
+    float[] values = new float[size];
+    int start = (size == width) ? head : 0;
+    for (int i = 0; i < size; i++) {
+      values[i] = window[(start + i) % width];
+    }
+    return values;
+  }
+
+}
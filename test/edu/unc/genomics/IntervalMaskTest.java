@@ -0,0 +1,86 @@
+package edu.unc.genomics;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IntervalMaskTest {
+
+  private IntervalMask mask;
+
+  @Before
+  public void setUp() {
+    mask = new IntervalMask();
+    // Added out of order, with nested, overlapping and abutting intervals
+    mask.add(new Interval("chr1", 50, 60));
+    mask.add(new Interval("chr1", 10, 20));
+    mask.add(new Interval("chr1", 12, 15));
+    mask.add(new Interval("chr1", 18, 25));
+    mask.add(new Interval("chr1", 26, 30));
+    mask.add(new Interval("chr2", 5, 1));
+  }
+
+  @Test
+  public void testMerge() {
+    assertEquals(3, mask.size());
+    assertTrue(mask.overlaps("chr1", 30, 40));
+    assertFalse(mask.overlaps("chr1", 31, 49));
+    assertTrue(mask.overlaps("chr2", 1, 1));
+    assertFalse(mask.overlaps("chr3", 1, 100));
+  }
+
+  @Test
+  public void testSortedNested() {
+    IntervalMask sorted = new IntervalMask();
+    sorted.add(new Interval("chr1", 1, 1000));
+    sorted.add(new Interval("chr1", 50, 60));
+    sorted.add(new Interval("chr1", 2000, 3000));
+    assertEquals(2, sorted.size());
+    assertTrue(sorted.overlaps("chr1", 500, 510));
+
+    float[] values = new float[10];
+    sorted.apply(new Interval("chr1", 500, 509), values);
+    for (float value : values) {
+      assertTrue(Float.isNaN(value));
+    }
+  }
+
+  @Test
+  public void testApply() {
+    float[] values = new float[30];
+    mask.apply(new Interval("chr1", 41, 70), values);
+    for (int i = 0; i < values.length; i++) {
+      int bp = 41 + i;
+      assertEquals(bp >= 50 && bp <= 60, Float.isNaN(values[i]));
+    }
+  }
+
+  @Test
+  public void testApplyStep() {
+    // Values cover 5 bp each: 1-5, 6-10, ..., 31-35
+    float[] values = new float[7];
+    mask.apply(new Interval("chr1", 1, 35), values, 5);
+    assertFalse(Float.isNaN(values[0]));
+    for (int i = 1; i < 6; i++) {
+      assertTrue(Float.isNaN(values[i]));
+    }
+    assertFalse(Float.isNaN(values[6]));
+  }
+
+  @Test
+  public void testUnmasked() {
+    List<Interval> runs = mask.unmasked(new Interval("chr1", 1, 55));
+    assertEquals(2, runs.size());
+    assertEquals(1, runs.get(0).low());
+    assertEquals(9, runs.get(0).high());
+    assertEquals(31, runs.get(1).low());
+    assertEquals(49, runs.get(1).high());
+
+    assertEquals(0, mask.unmasked(new Interval("chr1", 12, 28)).size());
+    assertEquals(1, mask.unmasked(new Interval("chr3", 1, 10)).size());
+  }
+
+}
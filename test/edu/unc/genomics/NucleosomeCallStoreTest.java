@@ -0,0 +1,104 @@
+package edu.unc.genomics;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.unc.genomics.io.IntervalFileReader;
+
+public class NucleosomeCallStoreTest {
+
+  private Path p;
+  private List<NucleosomeCall> calls = new ArrayList<>();
+
+  private static NucleosomeCall call(String chr, int start, int stop, int dyad, double occupancy) {
+    NucleosomeCall call = new NucleosomeCall(chr, start, stop);
+    call.setLength(Math.abs(stop - start) + 1);
+    call.setLengthStdev(2.5);
+    call.setDyad(dyad);
+    call.setDyadStdev(10.25);
+    call.setConditionalPosition(0.5);
+    call.setDyadMean(dyad + 1);
+    call.setOccupancy(occupancy);
+    return call;
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    // Out of order, with a call on the - strand
+    calls.add(call("chr2", 500, 646, 573, 4));
+    calls.add(call("chr1", 300, 446, 373, 2));
+    calls.add(call("chr1", 100, 246, 173, 1));
+    calls.add(call("chr1", 1000, 700, 850, 3));
+    // Values from real calls, which are not exactly representable as floats
+    calls.get(3).setConditionalPosition(0.008058791598814147);
+    calls.get(3).setDyadStdev(41.73541341668847);
+    p = Files.createTempFile("calls", ".nuc");
+    assertEquals(4, NucleosomeCallStore.write(calls, p));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(p);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    try (NucleosomeCallStore store = new NucleosomeCallStore(p)) {
+      assertEquals(4, store.count());
+      assertEquals(2, store.chromosomes().size());
+      assertTrue(store.chromosomes().contains("chr1"));
+
+      NucleosomeCallStore.Calls chr1 = store.getCalls("chr1");
+      assertEquals(3, chr1.size());
+      // Sorted by dyad
+      assertEquals(173, chr1.getDyad(0));
+      assertEquals(373, chr1.getDyad(1));
+      assertEquals(850, chr1.getDyad(2));
+      assertEquals(1, chr1.indexOf(200));
+
+      NucleosomeCall call = chr1.get(2);
+      assertEquals(calls.get(3).toOutput(), call.toOutput());
+      assertEquals(851, call.getDyadMean());
+      assertEquals(3, call.occupancy(), 0);
+      assertEquals(0.008058791598814147, call.getConditionalPosition(), 0);
+      assertEquals(41.73541341668847, call.getDyadStdev(), 0);
+    }
+  }
+
+  @Test
+  public void testQuery() throws IOException {
+    try (NucleosomeCallStore store = new NucleosomeCallStore(p)) {
+      List<NucleosomeCall> result = store.load("chr1", 240, 310);
+      assertEquals(2, result.size());
+      assertEquals(173, result.get(0).getDyad());
+      assertEquals(373, result.get(1).getDyad());
+
+      // Reaches the - strand call from its low end
+      Iterator<NucleosomeCall> it = store.query("chr1", 690, 700);
+      assertTrue(it.hasNext());
+      assertEquals(850, it.next().getDyad());
+      assertFalse(it.hasNext());
+
+      assertEquals(0, store.load("chr1", 447, 699).size());
+      assertEquals(0, store.load("chr3", 1, 1000).size());
+    }
+  }
+
+  @Test
+  public void testAutodetect() throws IOException {
+    try (IntervalFileReader<NucleosomeCall> reader = NucleosomeCallsFileReader.autodetect(p)) {
+      assertTrue(reader instanceof NucleosomeCallStore);
+    }
+  }
+
+}
@@ -0,0 +1,65 @@
+package edu.unc.genomics;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+public class OrderedExecutorTest {
+
+  private static class Collector extends OrderedExecutor<Integer> {
+    final List<Integer> results = new ArrayList<>();
+
+    Collector(int nThreads) {
+      super(nThreads);
+    }
+
+    @Override
+    protected void handle(Integer result) {
+      results.add(result);
+    }
+  }
+
+  @Test
+  public void testOrder() throws IOException {
+    try (Collector executor = new Collector(4)) {
+      for (int i = 0; i < 50; i++) {
+        final int n = i;
+        executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws InterruptedException {
+            // Later tasks finish first
+            Thread.sleep((50 - n) % 7);
+            return n;
+          }
+        });
+        // Never more than 2 per thread waiting to be handled
+        assertTrue(n + 1 - executor.results.size() <= 8);
+      }
+      executor.finish();
+
+      assertEquals(50, executor.results.size());
+      for (int i = 0; i < 50; i++) {
+        assertEquals(i, executor.results.get(i).intValue());
+      }
+    }
+  }
+
+  @Test(expected = CommandLineToolException.class)
+  public void testException() throws IOException {
+    try (Collector executor = new Collector(2)) {
+      executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws IOException {
+          throw new IOException("failed");
+        }
+      });
+      executor.finish();
+    }
+  }
+
+}
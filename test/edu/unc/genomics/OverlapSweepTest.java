@@ -0,0 +1,64 @@
+package edu.unc.genomics;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OverlapSweepTest {
+
+  private static List<String> sweep(List<Interval> queries, List<Interval> targets) {
+    final List<String> pairs = new ArrayList<>();
+    OverlapSweep.sweep(queries, targets, new OverlapSweep.Visitor<Interval>() {
+      @Override
+      public void visit(int query, Interval target) {
+        pairs.add(query + ":" + target.low() + "-" + target.high());
+      }
+    });
+    return pairs;
+  }
+
+  @Test
+  public void testSweep() {
+    List<Interval> queries = Arrays.asList(new Interval("chr1", 100, 200), new Interval("chr1", 10, 20),
+        new Interval("chr1", 120, 130), new Interval("chr1", 300, 250));
+    List<Interval> targets = new ArrayList<>(Arrays.asList(new Interval("chr1", 190, 210), new Interval("chr1", 1,
+        10), new Interval("chr1", 125, 140), new Interval("chr1", 21, 99), new Interval("chr1", 240, 249)));
+    List<String> expected = Arrays.asList("1:1-10", "0:125-140", "0:190-210", "2:125-140");
+    assertEquals(expected, sweep(queries, targets));
+  }
+
+  @Test
+  public void testRandom() {
+    Random rng = new Random(42);
+    List<Interval> queries = new ArrayList<>();
+    List<Interval> targets = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      int low = rng.nextInt(100_000);
+      queries.add(new Interval("chr1", low, low + rng.nextInt(2000)));
+      low = rng.nextInt(100_000);
+      targets.add(new Interval("chr1", low, low + rng.nextInt(200)));
+    }
+
+    List<String> pairs = sweep(queries, targets);
+    int expected = 0;
+    for (Interval q : queries) {
+      for (Interval t : targets) {
+        if (t.low() <= q.high() && t.high() >= q.low()) {
+          expected++;
+        }
+      }
+    }
+    assertEquals(expected, pairs.size());
+    assertEquals(expected, new HashSet<>(pairs).size());
+    for (int i = 1; i < targets.size(); i++) {
+      assertTrue(targets.get(i - 1).low() <= targets.get(i).low());
+    }
+  }
+
+}
@@ -0,0 +1,121 @@
+package edu.unc.genomics.nucleosomes;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.unc.genomics.NucleosomeCall;
+
+public class GreedyCallerTest {
+
+  /**
+   * The original algorithm: visit every position in descending order of
+   * smoothed value (lowest position first for ties), zeroing the positions
+   * around each call
+   */
+  private static List<NucleosomeCall> sortedCall(String chr, int paddedStart, float[] dyads, final float[] values,
+      int nucleosomeSize) {
+    float[] smoothed = values.clone();
+    int halfNuc = nucleosomeSize / 2;
+    int paddedStop = paddedStart + smoothed.length - 1;
+    List<NucleosomeCall> calls = new ArrayList<>();
+    Integer[] order = new Integer[values.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i, Integer j) {
+        int c = Float.compare(values[j], values[i]);
+        return (c != 0) ? c : Integer.compare(i, j);
+      }
+    });
+    for (int i : order) {
+      int dyad = paddedStart + i;
+      if (smoothed[i] > 0) {
+        int nucStart = Math.max(paddedStart, dyad - halfNuc);
+        int nucStop = Math.min(dyad + halfNuc, paddedStop);
+        NucleosomeCall call = new NucleosomeCall(chr, nucStart, nucStop);
+        call.setDyad(dyad);
+        double occupancy = 0;
+        double weightedSum = 0;
+        double smoothedSum = 0;
+        for (int bp = nucStart; bp <= nucStop; bp++) {
+          occupancy += dyads[bp - paddedStart];
+          weightedSum += dyads[bp - paddedStart] * bp;
+          smoothedSum += smoothed[bp - paddedStart];
+        }
+        call.setOccupancy(occupancy);
+        double dyadMean = weightedSum / occupancy;
+        if (occupancy > 0) {
+          call.setDyadMean((int) Math.round(dyadMean));
+          call.setConditionalPosition(smoothed[i] / smoothedSum);
+          double sumOfSquares = 0;
+          for (int bp = nucStart; bp <= nucStop; bp++) {
+            sumOfSquares += dyads[bp - paddedStart] * Math.pow(bp - dyadMean, 2);
+          }
+          call.setDyadStdev(Math.sqrt(sumOfSquares / occupancy));
+          calls.add(call);
+          int low = Math.max(i - nucleosomeSize, 0);
+          int high = Math.min(i + nucleosomeSize, smoothed.length - 1);
+          for (int k = low; k <= high; k++) {
+            smoothed[k] = 0;
+          }
+        }
+      }
+    }
+    return calls;
+  }
+
+  private static void assertSameCalls(List<NucleosomeCall> expected, List<NucleosomeCall> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).toOutput(), actual.get(i).toOutput());
+    }
+  }
+
+  @Test
+  public void testRejectedPeak() {
+    // One hill peaking at 1000, with reads only off to one side of it
+    float[] smoothed = new float[3000];
+    for (int i = 0; i < smoothed.length; i++) {
+      smoothed[i] = (float) Math.exp(-Math.pow(i + 1 - 1000, 2) / (2 * 50 * 50));
+    }
+    float[] dyads = new float[3000];
+    dyads[1080 - 1] = 1;
+
+    List<NucleosomeCall> calls = GreedyCaller.call("chr1", 1, dyads, smoothed, 147, 1, 3000);
+    assertEquals(1, calls.size());
+    assertEquals(1007, calls.get(0).getDyad());
+    assertSameCalls(sortedCall("chr1", 1, dyads, smoothed, 147), calls);
+  }
+
+  @Test
+  public void testRandom() {
+    Random rng = new Random(42);
+    float[] smoothed = new float[20000];
+    float[] dyads = new float[smoothed.length];
+    for (int k = 0; k < 100; k++) {
+      // Smooth hills, with reads up to 120 bp to either side of each peak
+      int peak = rng.nextInt(smoothed.length);
+      double height = 1 + rng.nextDouble();
+      for (int i = Math.max(peak - 200, 0); i < Math.min(peak + 200, smoothed.length); i++) {
+        smoothed[i] += (float) (height * Math.exp(-Math.pow(i - peak, 2) / (2 * 40 * 40)));
+      }
+      int read = peak + rng.nextInt(241) - 120;
+      if (read >= 0 && read < dyads.length) {
+        dyads[read] += 1 + rng.nextInt(5);
+      }
+    }
+
+    List<NucleosomeCall> expected = sortedCall("chr1", 101, dyads, smoothed, 147);
+    assertSameCalls(expected, GreedyCaller.call("chr1", 101, dyads, smoothed, 147, 101, 101 + smoothed.length - 1));
+  }
+
+}
@@ -0,0 +1,86 @@
+package edu.unc.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ArrayExpressionTest {
+
+  private static final float[] A = { 1, 4, 9, Float.NaN, 16, 2 };
+  private static final float[] B = { 0, 2, 3, 1, 0, 2 };
+
+  @Test
+  public void testArithmetic() {
+    ArrayExpression e = new ArrayExpression("a - 2*b + 1", Arrays.asList("a", "b"));
+    float[] expected = { 2, 1, 4, Float.NaN, 17, -1 };
+    assertArrayEquals(expected, e.evaluate(A, B), 1e-6f);
+  }
+
+  @Test
+  public void testPrecedence() {
+    ArrayExpression e = new ArrayExpression("-2^2 + 3*(1+1)", Arrays.asList("a"));
+    assertTrue(e.isConstant());
+    assertArrayEquals(new float[] { 2, 2 }, e.evaluate(new float[2]), 1e-6f);
+  }
+
+  @Test
+  public void testFunctions() {
+    ArrayExpression e = new ArrayExpression("log2((a - b) / sqrt(a))", Arrays.asList("a", "b"));
+    float[] result = e.evaluate(A, B);
+    assertEquals(0, result[0], 1e-6f);
+    assertEquals(0, result[1], 1e-6f);
+    assertEquals(1, result[2], 1e-6f);
+    assertTrue(Float.isNaN(result[3]));
+    assertEquals(2, result[4], 1e-6f);
+    assertEquals(Float.NEGATIVE_INFINITY, result[5], 0);
+  }
+
+  @Test
+  public void testDivideByZero() {
+    ArrayExpression e = new ArrayExpression("a / b", Arrays.asList("a", "b"));
+    float[] result = e.evaluate(A, B);
+    assertTrue(Float.isNaN(result[0]));
+    assertEquals(2, result[1], 1e-6f);
+    assertTrue(Float.isNaN(result[4]));
+  }
+
+  @Test
+  public void testFillNaN() {
+    ArrayExpression e = new ArrayExpression("fillnan(a, 0) + max(b, 1)", Arrays.asList("a", "b"));
+    float[] expected = { 2, 6, 12, 1, 17, 4 };
+    assertArrayEquals(expected, e.evaluate(A, B), 1e-6f);
+  }
+
+  @Test
+  public void testMultipleBlocks() {
+    int n = 3 * ArrayExpression.BLOCK_SIZE + 17;
+    float[] x = new float[n];
+    for (int i = 0; i < n; i++) {
+      x[i] = i;
+    }
+    float[] result = new ArrayExpression("x*x - x", Arrays.asList("x")).evaluate(x);
+    for (int i = 0; i < n; i++) {
+      assertEquals((float) i * i - i, result[i], 1e-6f);
+    }
+  }
+
+  @Test
+  public void testGetVariables() {
+    Set<String> vars = ArrayExpression.getVariables("log2((treat - input) / sqrt(depth)) + treat");
+    assertArrayEquals(new String[] { "treat", "input", "depth" }, vars.toArray());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownVariable() {
+    new ArrayExpression("a + c", Arrays.asList("a", "b"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSyntaxError() {
+    new ArrayExpression("(a + b", Arrays.asList("a", "b"));
+  }
+
+}
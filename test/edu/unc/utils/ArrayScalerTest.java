@@ -2,6 +2,8 @@ package edu.unc.utils;
 
 import static org.junit.Assert.*;
 
+import org.apache.commons.math3.analysis.UnivariateFunction;
+import org.apache.commons.math3.analysis.interpolation.SplineInterpolator;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -28,4 +30,47 @@ public class ArrayScalerTest {
     assertEquals(scaled20.length, 20);
   }
 
+  @Test
+  public void testMatchesSpline() {
+    double[] indices = new double[TEST_DATA.length];
+    for (int i = 0; i < TEST_DATA.length; i++) {
+      indices[i] = ((double) i) / (TEST_DATA.length - 1);
+    }
+    UnivariateFunction interp = new SplineInterpolator().interpolate(indices, TEST_DATA);
+
+    for (int l : new int[] { 3, 9, 10, 57, 200 }) {
+      double[] scaled = scaler.getScaled(l);
+      for (int i = 0; i < l; i++) {
+        assertEquals(interp.value(((double) i) / l), scaled[i], 1e-12);
+      }
+    }
+  }
+
+  @Test
+  public void testGetScaledReturnsCopies() {
+    double[] scaled = scaler.getScaled(20);
+    scaled[1] = 1000;
+    assertFalse(scaler.getScaled(20)[1] == 1000);
+  }
+
+  @Test
+  public void testKernelBank() {
+    ArrayScaler.KernelBank bank = scaler.getKernelBank(10, 30, 5);
+    assertEquals(4, bank.size());
+    for (int i = 0; i < bank.size(); i++) {
+      int l = 10 + 5 * i;
+      assertEquals(l, bank.getLength(i));
+      double[] expected = scaler.getScaled(l);
+      assertArrayEquals(expected, bank.get(i), 0);
+      double sum = 0, sumSq = 0;
+      for (int j = 0; j < l; j++) {
+        assertEquals(expected[j], bank.get(i, j), 0);
+        sum += expected[j];
+        sumSq += expected[j] * expected[j];
+      }
+      assertEquals(sum, bank.getSum(i), 1e-12);
+      assertEquals(sumSq, bank.getSumOfSquares(i), 1e-12);
+    }
+  }
+
 }
@@ -0,0 +1,190 @@
+package edu.unc.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.jtransforms.fft.FloatFFT_1D;
+import org.junit.Test;
+
+public class FFTUtilsTest {
+
+  private static float[] random(int n, long seed) {
+    Random rng = new Random(seed);
+    float[] x = new float[n];
+    for (int i = 0; i < n; i++) {
+      x[i] = (float) (10 * rng.nextDouble());
+    }
+    return x;
+  }
+
+  private static double[] naiveAutocovariance(float[] x, int maxShift) {
+    double mean = 0;
+    for (float v : x) {
+      mean += v;
+    }
+    mean /= x.length;
+    double[] auto = new double[Math.min(x.length, maxShift)];
+    for (int i = 0; i < auto.length; i++) {
+      for (int j = 0; j < x.length - i; j++) {
+        auto[i] += (x[j] - mean) * (x[j + i] - mean);
+      }
+    }
+    return auto;
+  }
+
+  private static void assertClose(double[] expected, float[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], actual[i], 1e-4 * Math.max(1, Math.abs(expected[0])));
+    }
+  }
+
+  @Test
+  public void testAutocovarianceShort() {
+    float[] x = { 1, 2, 3, 4, 5 };
+    // mean = 3, deviations = -2,-1,0,1,2
+    float[] auto = FFTUtils.autocovariance(x, 3);
+    assertArrayEquals(new float[] { 10, 4, -1 }, auto, 1e-6f);
+  }
+
+  @Test
+  public void testAutocovarianceFFT() {
+    // Large enough to use FFTs
+    for (int n : new int[] { 5000, 4096, 12345 }) {
+      float[] x = random(n, n);
+      assertClose(naiveAutocovariance(x, 500), FFTUtils.autocovariance(x, 500));
+      assertClose(naiveAutocovariance(x, n), FFTUtils.autocovariance(x));
+    }
+  }
+
+  @Test
+  public void testAutocovarianceEmpty() {
+    assertEquals(0, FFTUtils.autocovariance(new float[0], 10).length);
+    assertEquals(0, FFTUtils.autocovariance(random(10, 1), 0).length);
+  }
+
+  @Test
+  public void testConvolve() {
+    float[] x = { 1, 2, 3 };
+    float[] y = { 0, 1, 0.5f };
+    assertArrayEquals(new float[] { 0, 1, 2.5f, 4, 1.5f }, FFTUtils.convolve(x, y), 1e-6f);
+
+    float[] a = random(3000, 1);
+    float[] b = random(1000, 2);
+    double[] expected = new double[a.length + b.length - 1];
+    for (int i = 0; i < a.length; i++) {
+      for (int j = 0; j < b.length; j++) {
+        expected[i + j] += (double) a[i] * b[j];
+      }
+    }
+    float[] result = FFTUtils.convolve(a, b);
+    assertEquals(expected.length, result.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], result[i], 1e-3);
+    }
+  }
+
+  @Test
+  public void testKernel() {
+    float[] x = { 1, 2, 3, 4 };
+    float[] result = new float[4];
+    new FFTUtils.Kernel(new float[] { 0, 1, 0.5f }).convolveValid(x, result, 1);
+    assertArrayEquals(new float[] { 0, 2.5f, 4, 0 }, result, 1e-6f);
+
+    // Several blocks, with a partial block at the end
+    float[] a = random(5000, 3);
+    float[] b = random(100, 4);
+    float[] expected = FFTUtils.convolve(a, b);
+    FFTUtils.Kernel kernel = new FFTUtils.Kernel(b);
+    result = new float[a.length - b.length + 1];
+    kernel.convolveValid(a, result, 0);
+    for (int j = 0; j < result.length; j++) {
+      assertEquals(expected[j + b.length - 1], result[j], 1e-3);
+    }
+
+    // Shorter than the kernel
+    kernel.convolveValid(random(50, 5), result, 0);
+  }
+
+  @Test
+  public void testAddLaggedProducts() {
+    for (int maxShift : new int[] { 0, 3, 300 }) {
+      float[] x = random(5000, maxShift);
+      int n = 4900;
+      double[] expected = new double[maxShift + 1];
+      for (int i = 0; i < n; i++) {
+        for (int j = 0; j <= maxShift && i + j < x.length; j++) {
+          expected[j] += (double) x[i] * x[i + j];
+        }
+      }
+
+      double[] sums = new double[maxShift + 1];
+      sums[0] = 1;
+      FFTUtils.addLaggedProducts(x, n, maxShift, sums);
+      expected[0] += 1;
+      for (int j = 0; j <= maxShift; j++) {
+        assertEquals(expected[j], sums[j], 1e-9 * expected[0]);
+      }
+    }
+  }
+
+  @Test
+  public void testAddLaggedProductsCounts() {
+    // Sparse read counts give exact integer sums
+    Random rng = new Random(7);
+    float[] x = new float[20000];
+    for (int i = 0; i < x.length; i++) {
+      if (rng.nextInt(10) == 0) {
+        x[i] = rng.nextInt(4);
+      }
+    }
+    int maxShift = 300;
+    double[] expected = new double[maxShift + 1];
+    for (int i = 0; i < x.length; i++) {
+      for (int j = 0; j <= maxShift && i + j < x.length; j++) {
+        expected[j] += (double) x[i] * x[i + j];
+      }
+    }
+
+    double[] sums = new double[maxShift + 1];
+    FFTUtils.addLaggedProducts(x, x.length, maxShift, sums);
+    assertArrayEquals(expected, sums, 0);
+  }
+
+  @Test
+  public void testNextPowerOf2() {
+    assertEquals(1, FFTUtils.nextPowerOf2(1));
+    assertEquals(2, FFTUtils.nextPowerOf2(2));
+    assertEquals(8, FFTUtils.nextPowerOf2(5));
+    assertEquals(1024, FFTUtils.nextPowerOf2(1024));
+  }
+
+  @Test
+  public void testPlanCache() {
+    assertSame(FFTUtils.getFloatFFT(1024), FFTUtils.getFloatFFT(1024));
+    assertSame(FFTUtils.getFloatFFT(1000), FFTUtils.getFloatFFT(1000));
+    // Plans for other lengths are evicted, but powers of 2 are kept
+    FloatFFT_1D fft = FFTUtils.getFloatFFT(1024);
+    FloatFFT_1D other = FFTUtils.getFloatFFT(1000);
+    for (int n = 1001; n < 1100; n++) {
+      FFTUtils.getFloatFFT(n);
+    }
+    assertSame(fft, FFTUtils.getFloatFFT(1024));
+    assertNotSame(other, FFTUtils.getFloatFFT(1000));
+  }
+
+  @Test
+  public void testAbs2Prefix() {
+    Random rng = new Random(7);
+    float[] x = new float[15];
+    float[] padded = new float[32];
+    for (int i = 0; i < x.length; i++) {
+      x[i] = padded[i] = rng.nextFloat();
+    }
+    FFTUtils.getFloatFFT(15).realForward(x);
+    FFTUtils.getFloatFFT(15).realForward(padded);
+    assertArrayEquals(FFTUtils.abs2(x), FFTUtils.abs2(padded, 15), 0);
+  }
+
+}
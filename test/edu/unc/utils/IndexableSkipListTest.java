@@ -0,0 +1,78 @@
+package edu.unc.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexableSkipListTest {
+
+  private static final float[] VALUES = { 5, 1, 4, 1, 3, 9, 2, 6 };
+  private IndexableSkipList list;
+
+  @Before
+  public void setUp() throws Exception {
+    list = new IndexableSkipList(VALUES.length);
+    for (float value : VALUES) {
+      list.insert(value);
+    }
+  }
+
+  @Test
+  public void testGet() {
+    float[] sorted = { 1, 1, 2, 3, 4, 5, 6, 9 };
+    assertEquals(sorted.length, list.size());
+    for (int i = 0; i < sorted.length; i++) {
+      assertEquals(sorted[i], list.get(i), 0);
+    }
+  }
+
+  @Test
+  public void testRemove() {
+    assertTrue(list.remove(1));
+    assertTrue(list.remove(9));
+    assertFalse(list.remove(7));
+    float[] sorted = { 1, 2, 3, 4, 5, 6 };
+    assertEquals(sorted.length, list.size());
+    for (int i = 0; i < sorted.length; i++) {
+      assertEquals(sorted[i], list.get(i), 0);
+    }
+  }
+
+  @Test
+  public void testRandomized() {
+    Random rng = new Random(42);
+    IndexableSkipList skip = new IndexableSkipList(100);
+    List<Float> reference = new ArrayList<>();
+    for (int iter = 0; iter < 5000; iter++) {
+      if (reference.size() < 100 && (reference.isEmpty() || rng.nextBoolean())) {
+        float value = rng.nextInt(20);
+        skip.insert(value);
+        reference.add(value);
+      } else {
+        float value = reference.remove(rng.nextInt(reference.size()));
+        assertTrue(skip.remove(value));
+      }
+
+      Collections.sort(reference);
+      assertEquals(reference.size(), skip.size());
+      for (int i = 0; i < reference.size(); i++) {
+        assertEquals(reference.get(i), skip.get(i), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testClear() {
+    list.clear();
+    assertEquals(0, list.size());
+    list.insert(3);
+    assertEquals(3, list.get(0), 0);
+  }
+
+}
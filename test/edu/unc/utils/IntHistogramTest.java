@@ -0,0 +1,67 @@
+package edu.unc.utils;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class IntHistogramTest {
+
+  @Test
+  public void testCounts() {
+    IntHistogram hist = new IntHistogram(10, 20);
+    for (int v : new int[] { 9, 10, 10, 15, 20, 21, 1000 }) {
+      hist.addValue(v);
+    }
+    assertEquals(7, hist.getN());
+    assertEquals(1, hist.getUnderflow());
+    assertEquals(2, hist.getOverflow());
+    assertEquals(2, hist.getCount(10));
+    assertEquals(1, hist.getCount(15));
+    assertEquals(0, hist.getCount(16));
+    assertEquals(0, hist.getCount(1000));
+    assertEquals(2.0 / 7, hist.getPct(10), 1e-12);
+    assertEquals(10, hist.getLowest());
+    assertEquals(20, hist.getHighest());
+  }
+
+  @Test
+  public void testGrowsToWideRange() {
+    IntHistogram hist = new IntHistogram(0, Integer.MAX_VALUE);
+    hist.addValue(5);
+    hist.addValue(100_000);
+    assertEquals(1, hist.getCount(5));
+    assertEquals(1, hist.getCount(100_000));
+    assertEquals(0, hist.getCount(Integer.MAX_VALUE));
+    assertEquals(100_000, hist.getHighest());
+  }
+
+  @Test
+  public void testMerge() {
+    IntHistogram h1 = new IntHistogram(1, 1000);
+    IntHistogram h2 = new IntHistogram(1, 1000);
+    h1.addValue(3);
+    h1.addValue(0);
+    h2.addValue(3);
+    h2.addValue(900);
+    h2.addValue(1001);
+    h1.merge(h2);
+    assertEquals(5, h1.getN());
+    assertEquals(2, h1.getCount(3));
+    assertEquals(1, h1.getCount(900));
+    assertEquals(1, h1.getUnderflow());
+    assertEquals(1, h1.getOverflow());
+    assertEquals(3, h1.getLowest());
+    assertEquals(900, h1.getHighest());
+  }
+
+  @Test
+  public void testEmpty() {
+    IntHistogram hist = new IntHistogram(0, 10);
+    assertTrue(Double.isNaN(hist.getPct(0)));
+    hist.addValue(5);
+    hist.clear();
+    assertEquals(0, hist.getN());
+    assertEquals(0, hist.getCount(5));
+  }
+
+}
@@ -0,0 +1,80 @@
+package edu.unc.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelBlockCompressedInputStreamTest {
+
+  private File file;
+  private byte[] data;
+
+  @Before
+  public void setUp() throws Exception {
+    // Several blocks worth of compressible data
+    data = new byte[500_000];
+    Random rng = new Random(42);
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ('A' + rng.nextInt(4));
+    }
+
+    file = File.createTempFile("test", ".gz");
+    try (BlockCompressedOutputStream out = new BlockCompressedOutputStream(file)) {
+      out.write(data);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  private byte[] readAll(InputStream in, int bufferSize) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[bufferSize];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testRead() throws IOException {
+    for (int nThreads = 1; nThreads <= 4; nThreads++) {
+      try (InputStream in = new ParallelBlockCompressedInputStream(new FileInputStream(file), nThreads)) {
+        assertArrayEquals(data, readAll(in, 8192));
+      }
+    }
+  }
+
+  @Test
+  public void testReadSingleBytes() throws IOException {
+    try (InputStream in = new ParallelBlockCompressedInputStream(new FileInputStream(file), 2)) {
+      for (int i = 0; i < data.length; i++) {
+        assertEquals(data[i] & 0xff, in.read());
+      }
+      assertEquals(-1, in.read());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testCorrupt() throws IOException {
+    try (InputStream in = new ParallelBlockCompressedInputStream(new ByteArrayInputStream(new byte[100]), 2)) {
+      readAll(in, 1024);
+    }
+  }
+
+}
@@ -0,0 +1,69 @@
+package edu.unc.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReservoirSamplerTest {
+
+  private static ReservoirSampler<Integer> sample(int k, int n, long seed) {
+    ReservoirSampler<Integer> sampler = new ReservoirSampler<>(k, new Random(seed));
+    for (int i = 0; i < n; i++) {
+      sampler.add(i);
+    }
+    return sampler;
+  }
+
+  @Test
+  public void testSampleIsOrderedAndDistinct() {
+    ReservoirSampler<Integer> sampler = sample(100, 100_000, 1);
+    assertEquals(100_000, sampler.getN());
+    List<Integer> sample = sampler.getSample();
+    assertEquals(100, sample.size());
+    for (int i = 1; i < sample.size(); i++) {
+      assertTrue(sample.get(i) > sample.get(i - 1));
+    }
+  }
+
+  @Test
+  public void testFewerItemsThanK() {
+    List<Integer> sample = sample(10, 4, 1).getSample();
+    assertEquals(4, sample.size());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i, (int) sample.get(i));
+    }
+  }
+
+  @Test
+  public void testSeededIsReproducible() {
+    assertEquals(sample(50, 10_000, 42).getSample(), sample(50, 10_000, 42).getSample());
+  }
+
+  @Test
+  public void testUniform() {
+    // Each of 20 items should be selected ~k/n of the time
+    int k = 5;
+    int n = 20;
+    int trials = 20_000;
+    int[] counts = new int[n];
+    Random rng = new Random(7);
+    for (int t = 0; t < trials; t++) {
+      ReservoirSampler<Integer> sampler = new ReservoirSampler<>(k, rng);
+      for (int i = 0; i < n; i++) {
+        sampler.add(i);
+      }
+      for (int i : sampler.getSample()) {
+        counts[i]++;
+      }
+    }
+
+    double expected = (double) trials * k / n;
+    for (int count : counts) {
+      assertEquals(expected, count, 0.05 * expected);
+    }
+  }
+
+}
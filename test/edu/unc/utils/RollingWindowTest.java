@@ -0,0 +1,102 @@
+package edu.unc.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RollingWindowTest {
+
+  private static final float[] DATA = { 3, 1, 4, 1, 5, Float.NaN, 9, 2, 6, 5, 3 };
+
+  @Test
+  public void testRollingMinMax() {
+    float[] min = { 1, 1, 1, 1, 1, 5, 2, 2, 2, 3, 3 };
+    float[] max = { 3, 4, 4, 5, 5, 9, 9, 9, 6, 6, 5 };
+    assertArrayEquals(min, new RollingMinMax(3, false).filter(DATA), 0);
+    assertArrayEquals(max, new RollingMinMax(3, true).filter(DATA), 0);
+  }
+
+  @Test
+  public void testRollingMedian() {
+    float[] median = { 2, 3, 1, 4, 3, 7, 5.5f, 6, 5, 5, 4 };
+    assertArrayEquals(median, new RollingPercentile(3).filter(DATA), 1e-6f);
+  }
+
+  @Test
+  public void testRollingSum() {
+    RollingSum sum = new RollingSum(3);
+    float[] mean = { 2, 8 / 3f, 2, 10 / 3f, 3, 7, 5.5f, 17 / 3f, 13 / 3f, 14 / 3f, 4 };
+    assertArrayEquals(mean, sum.filter(DATA), 1e-6f);
+    // The last window is {5, 3}
+    assertEquals(8, sum.getSum(), 1e-6);
+    assertEquals(2, sum.getVariance(), 1e-6);
+  }
+
+  @Test
+  public void testRollingSumInfinity() {
+    float[] data = { 1, Float.NEGATIVE_INFINITY, 2, 3, 4, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 5, 6, 7 };
+    float[] sums = new float[data.length];
+    RollingSum sum = new RollingSum(2);
+    for (int i = 0; i < data.length; i++) {
+      sum.addValue(data[i]);
+      sums[i] = (float) sum.getSum();
+    }
+    float[] expected = { 1, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, 5, 7, Float.POSITIVE_INFINITY, Float.NaN,
+        Float.NEGATIVE_INFINITY, 11, 13 };
+    assertArrayEquals(expected, sums, 0);
+  }
+
+  @Test
+  public void testEmptyWindow() {
+    float[] data = { 1, Float.NaN, Float.NaN, Float.NaN, 2 };
+    float[] result = new RollingPercentile(3).filter(data);
+    assertTrue(Float.isNaN(result[2]));
+    result = new RollingMinMax(3, true).filter(data);
+    assertTrue(Float.isNaN(result[2]));
+    result = new RollingSum(3).filter(data);
+    assertTrue(Float.isNaN(result[2]));
+  }
+
+  @Test
+  public void testAgainstBruteForce() {
+    Random rng = new Random(7);
+    float[] data = new float[2000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (rng.nextInt(10) == 0) ? Float.NaN : rng.nextInt(50);
+    }
+
+    int width = 25;
+    float[] min = new RollingMinMax(width, false).filter(data);
+    float[] max = new RollingMinMax(width, true).filter(data);
+    float[] p90 = new RollingPercentile(width, 90).filter(data);
+    float[] mean = new RollingSum(width).filter(data);
+    for (int i = 0; i < data.length; i++) {
+      float[] window = new float[width];
+      int n = 0;
+      for (int j = i - width / 2; j < i - width / 2 + width; j++) {
+        if (j >= 0 && j < data.length && !Float.isNaN(data[j])) {
+          window[n++] = data[j];
+        }
+      }
+      window = Arrays.copyOf(window, n);
+      Arrays.sort(window);
+      double total = 0;
+      for (float x : window) {
+        total += x;
+      }
+      double pos = 0.9 * (n - 1);
+      int lo = (int) Math.floor(pos);
+      int hi = (int) Math.ceil(pos);
+      float expected = (float) (window[lo] + (pos - lo) * (window[hi] - window[lo]));
+
+      assertEquals(window[0], min[i], 0);
+      assertEquals(window[n - 1], max[i], 0);
+      assertEquals(expected, p90[i], 1e-4f);
+      assertEquals(total / n, mean[i], 1e-4f);
+    }
+  }
+
+}